@@ -1,9 +1,11 @@
 LOCAL_PATH := $(call my-dir)
 
-include $(CLEAN_VARS)
+include $(CLEAR_VARS)
 
 LOCAL_MODULE_FILENAME := bindings
 LOCAL_MODULE := bindings
 LOCAL_SRC_FILES := bindings.cpp
+# Lets the pixel loops be vectorized on ABIs with NEON or SSE.
+LOCAL_CFLAGS := -O3 -ftree-vectorize
 
 include $(BUILD_SHARED_LIBRARY)
@@ -1,5 +1,7 @@
 #include <jni.h>
 #include <stdio.h>
+#include <stdint.h>
+#include <string.h>
 #include <linux/fb.h>
 #include <sys/ioctl.h>
 #include <sys/types.h>
@@ -7,75 +9,433 @@
 #include <fcntl.h>
 #include <sys/mman.h>
 #include <stdlib.h>
+#include <unistd.h>
 
 extern "C" {
 JNIEXPORT jdouble JNICALL
 Java_edu_umich_PowerTutor_components_OLED_getScreenPixPower(
-    JNIEnv * env, jobject thiz, jdouble rcoef, jdouble gcoef,
+    JNIEnv * env, jobject thiz, jint display, jdouble rcoef, jdouble gcoef,
     jdouble bcoef, jdouble modul_coef);
+JNIEXPORT jboolean JNICALL
+Java_edu_umich_PowerTutor_components_OLED_screenUnchanged(
+    JNIEnv * env, jobject thiz, jint display);
+JNIEXPORT jboolean JNICALL
+Java_edu_umich_PowerTutor_components_DisplayGeometry_readScreenInfo(
+    JNIEnv * env, jobject thiz, jint display, jintArray info);
 }
 
-#define NUMBER_OF_SAMPLES 500
+/* Every ROW_STRIDE'th row of the frame is used in full.  Whole rows keep the
+ * inner loop over contiguous memory so that the compiler can vectorize it
+ * with NEON or SSE.
+ */
+#define ROW_STRIDE 4
 
-static int fd = -2;
-static struct fb_fix_screeninfo screeninfo;
-static unsigned char* buf;
+/* Pixels summed in 32 bits before being added to the 64 bit totals.  A
+ * pixel adds at most 765^2 to the sum of s^2 so this many can't overflow.
+ */
+#define RUN_PIXELS 4096
 
-static unsigned int samples[NUMBER_OF_SAMPLES];
+/* Pixels of the frame hashed to tell whether it has been seen recently. */
+#define HASH_SAMPLES 1024
 
-JNIEXPORT jdouble JNICALL
-Java_edu_umich_PowerTutor_components_OLED_getScreenPixPower(
-    JNIEnv * env, jobject thiz, jdouble rcoef, jdouble gcoef,
-    jdouble bcoef, jdouble modul_coef) {
-  if(fd == -1) {
-    return (jdouble)-1.0;
-  } else if(fd == -2) {
-    fd = open("/dev/graphics/fb0", O_RDWR);
-    if(fd == -1) {
-      fd = open("/dev/fb0", O_RDWR);
+/* Number of recent frames whose sums are kept. */
+#define CACHE_SIZE 8
+
+/* Frame buffers fb0 up to this are looked at. */
+#define MAX_DISPLAYS 4
+
+/* The power model is quadratic in r, g, b and r + g + b so these sums over
+ * the sampled pixels are all that is needed to evaluate it for any
+ * coefficients.
+ */
+struct Moments {
+  uint64_t rr;
+  uint64_t gg;
+  uint64_t bb;
+  uint64_t ss;
+  uint64_t count;
+};
+
+struct CacheEntry {
+  int valid;
+  uint32_t hash;
+  Moments moments;
+};
+
+/* Everything known about one frame buffer.  The layout is read again for
+ * every frame since the buffer being shown moves on every flip of a double
+ * buffered display.  If anything else about the layout changes, say because
+ * the mode was changed, the hash samples are picked again and the cache is
+ * dropped.
+ */
+struct Display {
+  int fd;
+  struct fb_fix_screeninfo fixinfo;
+  struct fb_var_screeninfo varinfo;
+  unsigned char* buf;
+  size_t bufLen;
+
+  /* Byte offsets from the first visible pixel. */
+  unsigned int hashOffsets[HASH_SAMPLES];
+  CacheEntry cache[CACHE_SIZE];
+  int cacheNext;
+
+  /* The last frame and the power worked out for it.  A static screen is
+   * answered from these without even looking in the cache.
+   */
+  int lastValid;
+  uint32_t lastHash;
+  jdouble lastCoef[4];
+  jdouble lastPower;
+  int lastUnchanged;
+};
+
+static Display displays[MAX_DISPLAYS];
+static int displaysInit;
+
+static Display* getDisplay(int display) {
+  if(!displaysInit) {
+    for(int i = 0; i < MAX_DISPLAYS; i++) {
+      displays[i].fd = -2;
+    }
+    displaysInit = 1;
+  }
+  if(display < 0 || display >= MAX_DISPLAYS) {
+    return NULL;
+  }
+  return &displays[display];
+}
+
+static int bytesPerPixel(const Display* d) {
+  return d->varinfo.bits_per_pixel / 8;
+}
+
+static int sameLayout(const fb_var_screeninfo* a, const fb_var_screeninfo* b) {
+  return a->xres == b->xres && a->yres == b->yres &&
+         a->bits_per_pixel == b->bits_per_pixel &&
+         a->red.offset == b->red.offset && a->red.length == b->red.length &&
+         a->green.offset == b->green.offset &&
+         a->green.length == b->green.length &&
+         a->blue.offset == b->blue.offset && a->blue.length == b->blue.length;
+}
+
+/* Checks that the visible part of the frame lies inside the mapping and is
+ * made of pixels that can be read.
+ */
+static int layoutOk(const Display* d) {
+  const fb_var_screeninfo* v = &d->varinfo;
+  if(v->bits_per_pixel != 16 && v->bits_per_pixel != 24 &&
+     v->bits_per_pixel != 32) {
+    return 0;
+  }
+  if(v->red.length > 8 || v->green.length > 8 || v->blue.length > 8) {
+    return 0;
+  }
+  uint64_t rowBytes = (uint64_t)(v->xoffset + v->xres) * bytesPerPixel(d);
+  return v->xres > 0 && v->yres > 0 &&
+         d->fixinfo.line_length >= rowBytes &&
+         (uint64_t)d->fixinfo.line_length * (v->yoffset + v->yres) <=
+         d->fixinfo.smem_len;
+}
+
+static void closeDisplay(Display* d) {
+  if(d->buf != NULL) {
+    munmap(d->buf, d->bufLen);
+    d->buf = NULL;
+  }
+  if(d->fd >= 0) {
+    close(d->fd);
+  }
+  d->fd = -1;
+}
+
+/* Spread the hash samples over the visible frame. */
+static void pickHashOffsets(Display* d) {
+  unsigned int pixels = d->varinfo.xres * d->varinfo.yres;
+  srand(555);
+  for(int i = 0; i < HASH_SAMPLES; i++) {
+    unsigned int a = (uint64_t)pixels * i / HASH_SAMPLES;
+    unsigned int b = (uint64_t)pixels * (i + 1) / HASH_SAMPLES;
+    unsigned int p = b <= a + 1 ? a : a + rand() % (b - a);
+    d->hashOffsets[i] = p / d->varinfo.xres * d->fixinfo.line_length +
+                        p % d->varinfo.xres * bytesPerPixel(d);
+  }
+  memset(d->cache, 0, sizeof(d->cache));
+  d->lastValid = 0;
+}
+
+static int openDisplay(Display* d, int display) {
+  char path[32];
+  snprintf(path, sizeof(path), "/dev/graphics/fb%d", display);
+  d->fd = open(path, O_RDONLY);
+  if(d->fd == -1) {
+    snprintf(path, sizeof(path), "/dev/fb%d", display);
+    d->fd = open(path, O_RDONLY);
+  }
+  if(d->fd == -1) {
+    return 0;
+  }
+  if(ioctl(d->fd, FBIOGET_FSCREENINFO, &d->fixinfo) ||
+     ioctl(d->fd, FBIOGET_VSCREENINFO, &d->varinfo)) {
+    closeDisplay(d);
+    return 0;
+  }
+  return 1;
+}
+
+/* Reads the layout of the display, opening it if need be.  Returns 0 if the
+ * display can't be read or its layout isn't understood.
+ */
+static int refreshDisplay(Display* d, int display) {
+  if(d->fd == -1) {
+    return 0;
+  } else if(d->fd == -2) {
+    if(!openDisplay(d, display)) {
+      return 0;
     }
-    if(fd == -1) {
-      return (jdouble)-1.0;
+  } else {
+    fb_var_screeninfo varinfo;
+    if(ioctl(d->fd, FBIOGET_VSCREENINFO, &varinfo)) {
+      return 0;
     }
-    if(ioctl(fd, FBIOGET_FSCREENINFO, &screeninfo)) {
-      close(fd);
-      fd = -1;
-      return (jdouble)-1.0;
+    if(!sameLayout(&varinfo, &d->varinfo)) {
+      /* The row length and buffer size go with the mode. */
+      if(ioctl(d->fd, FBIOGET_FSCREENINFO, &d->fixinfo)) {
+        return 0;
+      }
+      d->varinfo = varinfo;
+      if(d->buf != NULL && d->bufLen != d->fixinfo.smem_len) {
+        munmap(d->buf, d->bufLen);
+        d->buf = NULL;
+      }
+      if(layoutOk(d)) {
+        pickHashOffsets(d);
+      }
+    } else {
+      d->varinfo = varinfo;
     }
-    buf = (unsigned char*)mmap(NULL, screeninfo.smem_len, PROT_READ,
-                               MAP_SHARED, fd, 0);
-    if(buf == (unsigned char*)-1) {
-      close(fd);
-      fd = -1;
-      return (jdouble)-1.0;
+  }
+  return layoutOk(d);
+}
+
+static int mapDisplay(Display* d) {
+  if(d->buf != NULL) {
+    return 1;
+  }
+  d->bufLen = d->fixinfo.smem_len;
+  d->buf = (unsigned char*)mmap(NULL, d->bufLen, PROT_READ, MAP_SHARED,
+                                d->fd, 0);
+  if(d->buf == (unsigned char*)-1) {
+    d->buf = NULL;
+    return 0;
+  }
+  pickHashOffsets(d);
+  return 1;
+}
+
+/* The first visible pixel. */
+static const unsigned char* frameStart(const Display* d) {
+  return d->buf + d->varinfo.yoffset * d->fixinfo.line_length +
+         d->varinfo.xoffset * bytesPerPixel(d);
+}
+
+/* Reads a pixel of any width little endian. */
+static uint32_t readPixel(const unsigned char* p, int bytes) {
+  uint32_t v = p[0] | p[1] << 8;
+  if(bytes > 2) v |= p[2] << 16;
+  if(bytes > 3) v |= (uint32_t)p[3] << 24;
+  return v;
+}
+
+/* FNV-1a over a sparse set of pixels.  Cheap enough to run every second and
+ * it changes if any sizable part of the screen does.
+ */
+static uint32_t frameHash(const Display* d) {
+  const unsigned char* frame = frameStart(d);
+  int bytes = bytesPerPixel(d);
+  uint32_t hash = 2166136261u;
+  for(int i = 0; i < HASH_SAMPLES; i++) {
+    hash = (hash ^ readPixel(frame + d->hashOffsets[i], bytes)) * 16777619u;
+  }
+  return hash;
+}
+
+/* Builds the table that widens a colour of the given length to 8 bits. */
+static void makeExpand(uint8_t* table, int length) {
+  int max = (1 << length) - 1;
+  for(int i = 0; i <= max; i++) {
+    table[i] = max == 0 ? 0 : i * 255 / max;
+  }
+}
+
+static void frameMoments(const Display* d, Moments* m) {
+  memset(m, 0, sizeof(*m));
+  const fb_var_screeninfo* v = &d->varinfo;
+  const unsigned char* frame = frameStart(d);
+  unsigned int width = v->xres;
+  int bytes = bytesPerPixel(d);
+
+  /* 8 bit colours on byte boundaries are read straight out of the pixel and
+   * get a loop the compiler can vectorize.  Anything else goes through
+   * tables.
+   */
+  if(bytes == 4 && v->red.length == 8 && v->green.length == 8 &&
+     v->blue.length == 8 && v->red.offset % 8 == 0 &&
+     v->green.offset % 8 == 0 && v->blue.offset % 8 == 0) {
+    unsigned int ri = v->red.offset / 8;
+    unsigned int gi = v->green.offset / 8;
+    unsigned int bi = v->blue.offset / 8;
+    for(unsigned int y = 0; y < v->yres; y += ROW_STRIDE) {
+      const unsigned char* row = frame + y * d->fixinfo.line_length;
+      for(unsigned int x0 = 0; x0 < width; x0 += RUN_PIXELS) {
+        unsigned int x1 = width - x0 < RUN_PIXELS ? width : x0 + RUN_PIXELS;
+        uint32_t rr = 0, gg = 0, bb = 0, ss = 0;
+        for(unsigned int x = x0; x < x1; x++) {
+          uint32_t r = row[4 * x + ri];
+          uint32_t g = row[4 * x + gi];
+          uint32_t b = row[4 * x + bi];
+          uint32_t s = r + g + b;
+          rr += r * r;
+          gg += g * g;
+          bb += b * b;
+          ss += s * s;
+        }
+        m->rr += rr;
+        m->gg += gg;
+        m->bb += bb;
+        m->ss += ss;
+      }
+      m->count += width;
     }
-    int range = screeninfo.smem_len / 12;
-    srand(555);
-    for(int i = 0; i < NUMBER_OF_SAMPLES; i++) {
-      int a = range * i / NUMBER_OF_SAMPLES;
-      int b = range * (i + 1) / NUMBER_OF_SAMPLES;
-      if(b <= a + 1) {
-        samples[i] = a;
-      } else  {
-        samples[i] = a + rand() % (b - a);
+    return;
+  }
+
+  uint8_t rexp[256], gexp[256], bexp[256];
+  makeExpand(rexp, v->red.length);
+  makeExpand(gexp, v->green.length);
+  makeExpand(bexp, v->blue.length);
+  uint32_t rmask = (1 << v->red.length) - 1;
+  uint32_t gmask = (1 << v->green.length) - 1;
+  uint32_t bmask = (1 << v->blue.length) - 1;
+  for(unsigned int y = 0; y < v->yres; y += ROW_STRIDE) {
+    const unsigned char* row = frame + y * d->fixinfo.line_length;
+    for(unsigned int x0 = 0; x0 < width; x0 += RUN_PIXELS) {
+      unsigned int x1 = width - x0 < RUN_PIXELS ? width : x0 + RUN_PIXELS;
+      uint32_t rr = 0, gg = 0, bb = 0, ss = 0;
+      for(unsigned int x = x0; x < x1; x++) {
+        uint32_t px = readPixel(row + bytes * x, bytes);
+        uint32_t r = rexp[px >> v->red.offset & rmask];
+        uint32_t g = gexp[px >> v->green.offset & gmask];
+        uint32_t b = bexp[px >> v->blue.offset & bmask];
+        uint32_t s = r + g + b;
+        rr += r * r;
+        gg += g * g;
+        bb += b * b;
+        ss += s * s;
       }
+      m->rr += rr;
+      m->gg += gg;
+      m->bb += bb;
+      m->ss += ss;
+    }
+    m->count += width;
+  }
+}
+
+/* Returns the average power of a pixel of the display at full brightness or
+ * -1 if the frame buffer can't be read.
+ */
+JNIEXPORT jdouble JNICALL
+Java_edu_umich_PowerTutor_components_OLED_getScreenPixPower(
+    JNIEnv * env, jobject thiz, jint display, jdouble rcoef, jdouble gcoef,
+    jdouble bcoef, jdouble modul_coef) {
+  Display* d = getDisplay(display);
+  if(d == NULL || !refreshDisplay(d, display) || !mapDisplay(d)) {
+    return (jdouble)-1.0;
+  }
+
+  uint32_t hash = frameHash(d);
+  d->lastUnchanged = d->lastValid && hash == d->lastHash;
+  if(d->lastUnchanged && d->lastCoef[0] == rcoef &&
+     d->lastCoef[1] == gcoef && d->lastCoef[2] == bcoef &&
+     d->lastCoef[3] == modul_coef) {
+    return d->lastPower;
+  }
+
+  const Moments* m = NULL;
+  for(int i = 0; i < CACHE_SIZE; i++) {
+    if(d->cache[i].valid && d->cache[i].hash == hash) {
+      m = &d->cache[i].moments;
+      break;
     }
   }
-  jdouble pixPower = 0.0;
-  for(int i = 0; i < NUMBER_OF_SAMPLES; i++) {
-    int x = 4 * samples[i];
-    int r = buf[x];
-    int g = buf[x + 1];
-    int b = buf[x + 2];
-
-    /* Calculate the power usage of this one pixel if it were at full
-     * brightness.  Linearly scale by brightness to get true power
-     * consumption.  To calculate whole screen compute average of sampled
-     * region and multiply by number of pixels.
-     */
-    int modul_val = r + g + b;
-    pixPower += rcoef * (r * r) + gcoef * (g * g) + bcoef * (b * b) -
-                modul_coef * (modul_val * modul_val);
-  }
-  return pixPower;
+  if(m == NULL) {
+    CacheEntry* entry = &d->cache[d->cacheNext];
+    d->cacheNext = (d->cacheNext + 1) % CACHE_SIZE;
+    frameMoments(d, &entry->moments);
+    entry->hash = hash;
+    entry->valid = 1;
+    m = &entry->moments;
+  }
+  if(m->count == 0) {
+    return (jdouble)-1.0;
+  }
+
+  /* Calculate the power usage of the sampled pixels if they were at full
+   * brightness.  Linearly scale by brightness to get true power
+   * consumption.  To calculate whole screen multiply the average by the
+   * number of pixels.
+   */
+  d->lastPower = (rcoef * m->rr + gcoef * m->gg + bcoef * m->bb -
+                  modul_coef * m->ss) / m->count;
+  d->lastHash = hash;
+  d->lastCoef[0] = rcoef;
+  d->lastCoef[1] = gcoef;
+  d->lastCoef[2] = bcoef;
+  d->lastCoef[3] = modul_coef;
+  d->lastValid = 1;
+  return d->lastPower;
+}
+
+/* Returns true if the frame seen by the last getScreenPixPower() call for the
+ * display was the same as the one before it.
+ */
+JNIEXPORT jboolean JNICALL
+Java_edu_umich_PowerTutor_components_OLED_screenUnchanged(
+    JNIEnv * env, jobject thiz, jint display) {
+  Display* d = getDisplay(display);
+  return d != NULL && d->lastUnchanged ? JNI_TRUE : JNI_FALSE;
+}
+
+/* Fills info with xres, yres, bits_per_pixel, line_length, xoffset, yoffset,
+ * smem_len and the offset and length of red, green and blue.  Returns false
+ * if the display can't be read.
+ */
+JNIEXPORT jboolean JNICALL
+Java_edu_umich_PowerTutor_components_DisplayGeometry_readScreenInfo(
+    JNIEnv * env, jobject thiz, jint display, jintArray info) {
+  Display* d = getDisplay(display);
+  if(d == NULL || env->GetArrayLength(info) < 13) {
+    return JNI_FALSE;
+  }
+  if(d->fd == -2 && !openDisplay(d, display)) {
+    return JNI_FALSE;
+  }
+  /* Read into copies so getScreenPixPower() still sees layout changes. */
+  struct fb_fix_screeninfo f;
+  struct fb_var_screeninfo v;
+  if(d->fd == -1 || ioctl(d->fd, FBIOGET_FSCREENINFO, &f) ||
+     ioctl(d->fd, FBIOGET_VSCREENINFO, &v)) {
+    return JNI_FALSE;
+  }
+  jint values[13] = {
+    (jint)v.xres, (jint)v.yres, (jint)v.bits_per_pixel,
+    (jint)f.line_length, (jint)v.xoffset, (jint)v.yoffset,
+    (jint)f.smem_len,
+    (jint)v.red.offset, (jint)v.red.length,
+    (jint)v.green.offset, (jint)v.green.length,
+    (jint)v.blue.offset, (jint)v.blue.length,
+  };
+  env->SetIntArrayRegion(info, 0, 13, values);
+  return JNI_TRUE;
 }
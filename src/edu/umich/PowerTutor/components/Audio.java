@@ -21,15 +21,18 @@ package edu.umich.PowerTutor.components;
 
 import edu.umich.PowerTutor.PowerNotifications;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.Recycler;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AudioManager;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.TreeSet;
 
 /**This class aims to log the audio device status once per log interval*/
@@ -50,16 +53,31 @@ public class Audio extends PowerComponent {
     }
 
     public boolean musicOn;
+    /* One of the ROUTE_ names. */
+    public String route;
+    /* The music stream's volume as a fraction of its maximum. */
+    public double volume;
+    /* The fraction of the audio this data is for when several uids are
+     * playing at once.
+     */
+    public double share;
   
     private AudioData() {
     }
 
-    public void init(boolean musicOn) {
+    public void init(boolean musicOn, String route, double volume,
+                     double share) {
       this.musicOn = musicOn;
+      this.route = route;
+      this.volume = volume;
+      this.share = share;
     }
   
-    public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      out.write("Audio-on " + musicOn + "\n");
+    public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("Audio-on ").append(musicOn)
+         .append("\nAudio-route ").append(route)
+         .append("\nAudio-volume ").append(volume)
+         .append("\nAudio-share ").append(share).append('\n');
     }
   }
 
@@ -95,11 +113,52 @@ public class Audio extends PowerComponent {
     }
   }
 
+  /* Where the sound is going. */
+  public static final String ROUTE_SPEAKER = "speaker";
+  public static final String ROUTE_WIRED = "wired";
+  public static final String ROUTE_BLUETOOTH = "bluetooth";
+
+  /* Broadcasts that aren't in the public API of every release this runs on.
+   */
+  private static final String ACTION_VOLUME_CHANGED =
+      "android.media.VOLUME_CHANGED_ACTION";
+  private static final String EXTRA_VOLUME_STREAM_TYPE =
+      "android.media.EXTRA_VOLUME_STREAM_TYPE";
+  private static final String EXTRA_VOLUME_STREAM_VALUE =
+      "android.media.EXTRA_VOLUME_STREAM_VALUE";
+  private static final String ACTION_A2DP_SINK_STATE_CHANGED =
+      "android.bluetooth.a2dp.action.SINK_STATE_CHANGED";
+  private static final String EXTRA_A2DP_SINK_STATE =
+      "android.bluetooth.a2dp.extra.SINK_STATE";
+  private static final String ACTION_A2DP_CONNECTION_STATE_CHANGED =
+      "android.bluetooth.a2dp.profile.action.CONNECTION_STATE_CHANGED";
+  private static final String EXTRA_PROFILE_STATE =
+      "android.bluetooth.profile.extra.STATE";
+  private static final String ACTION_AUDIO_BECOMING_NOISY =
+      "android.media.AUDIO_BECOMING_NOISY";
+  /* Both A2DP state extras use 2 for connected.  The older sink state also
+   * has 4 for playing.
+   */
+  private static final int A2DP_STATE_CONNECTED = 2;
+  private static final int A2DP_STATE_PLAYING = 4;
+
+  private Context context;
   private AudioManager audioManager;
   private PowerNotifications audioNotif;
   private TreeSet<MediaData> uidData;
+  private BroadcastReceiver routeReceiver;
+
+  /* The output route and volume are only looked at when a broadcast says
+   * they have changed.
+   */
+  private volatile boolean wiredOn;
+  private volatile boolean bluetoothOn;
+  private volatile double volume;
+  private int maxVolume;
+  private int[] assignUids;
 
   public Audio(Context context) {
+    this.context = context;
     if(NotificationService.available()) {
       uidData = new TreeSet<MediaData>();
       audioNotif = new NotificationService.DefaultReceiver() {
@@ -144,34 +203,106 @@ public class Audio extends PowerComponent {
 
     audioManager = (AudioManager)context.getSystemService(
                                              Context.AUDIO_SERVICE);
+    maxVolume = Math.max(1, audioManager.getStreamMaxVolume(
+        AudioManager.STREAM_MUSIC));
+    volume = (double)audioManager.getStreamVolume(AudioManager.STREAM_MUSIC) /
+             maxVolume;
+    bluetoothOn = audioManager.isBluetoothA2dpOn();
+    assignUids = new int[4];
+
+    routeReceiver = new BroadcastReceiver() {
+      public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if(Intent.ACTION_HEADSET_PLUG.equals(action)) {
+          wiredOn = intent.getIntExtra("state", 0) != 0;
+        } else if(ACTION_VOLUME_CHANGED.equals(action)) {
+          if(intent.getIntExtra(EXTRA_VOLUME_STREAM_TYPE, -1) ==
+             AudioManager.STREAM_MUSIC) {
+            volume = (double)intent.getIntExtra(EXTRA_VOLUME_STREAM_VALUE, 0) /
+                     maxVolume;
+          }
+        } else if(ACTION_A2DP_SINK_STATE_CHANGED.equals(action)) {
+          int state = intent.getIntExtra(EXTRA_A2DP_SINK_STATE, 0);
+          bluetoothOn = state == A2DP_STATE_CONNECTED ||
+                        state == A2DP_STATE_PLAYING;
+        } else if(ACTION_A2DP_CONNECTION_STATE_CHANGED.equals(action)) {
+          bluetoothOn = intent.getIntExtra(EXTRA_PROFILE_STATE, 0) ==
+                        A2DP_STATE_CONNECTED;
+        } else if(ACTION_AUDIO_BECOMING_NOISY.equals(action)) {
+          /* Headphones or a headset went away without a plug event for
+           * them yet.  Ask once where the sound goes now.
+           */
+          bluetoothOn = audioManager.isBluetoothA2dpOn();
+        }
+      }
+    };
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_HEADSET_PLUG);
+    filter.addAction(ACTION_VOLUME_CHANGED);
+    filter.addAction(ACTION_A2DP_SINK_STATE_CHANGED);
+    filter.addAction(ACTION_A2DP_CONNECTION_STATE_CHANGED);
+    filter.addAction(ACTION_AUDIO_BECOMING_NOISY);
+    /* The headset plug broadcast is sticky so this also gives its current
+     * state.
+     */
+    context.registerReceiver(routeReceiver, filter);
   }
 
   @Override
   protected void onExit() {
+    context.unregisterReceiver(routeReceiver);
     if(audioNotif != null) {
       NotificationService.removeHook(audioNotif);
     }
   }
 
+  private String getRoute() {
+    if(bluetoothOn) return ROUTE_BLUETOOTH;
+    if(wiredOn) return ROUTE_WIRED;
+    return ROUTE_SPEAKER;
+  }
+
   @Override
   public IterationData calculateIteration(long iteration) {
     IterationData result = IterationData.obtain();
+    String route = getRoute();
+    double vol = volume;
+
+    /* Without the notification hook the audio manager is the only way to
+     * tell if anything is playing.
+     */
     AudioData data = AudioData.obtain();
-    data.init(uidData != null && !uidData.isEmpty() ||
-              audioManager.isMusicActive());
-    result.setPowerData(data);
+    if(uidData == null) {
+      data.init(audioManager.isMusicActive(), route, vol, 1);
+      result.setPowerData(data);
+      return result;
+    }
 
-    if(uidData != null) synchronized(uidData) {
-      int last_uid = -1;
+    /* The output is shared evenly by the uids playing through it. */
+    int count = 0;
+    synchronized(uidData) {
       for(MediaData dat : uidData) {
-        if(dat.uid != last_uid) {
-          AudioData audioPower = AudioData.obtain();
-          audioPower.init(true);
-          result.addUidPowerData(dat.assignUid, audioPower);
+        int i = 0;
+        while(i < count && assignUids[i] != dat.assignUid) i++;
+        if(i < count) continue;
+        if(count == assignUids.length) {
+          int[] nuids = new int[count * 2];
+          System.arraycopy(assignUids, 0, nuids, 0, count);
+          assignUids = nuids;
         }
-        last_uid = dat.uid;
+        assignUids[count++] = dat.assignUid;
       }
     }
+    /* Music started by something the hook never saw is still charged to the
+     * total, just not to any uid.
+     */
+    data.init(count > 0 || audioManager.isMusicActive(), route, vol, 1);
+    result.setPowerData(data);
+    for(int i = 0; i < count; i++) {
+      AudioData audioPower = AudioData.obtain();
+      audioPower.init(true, route, vol, 1.0 / count);
+      result.addUidPowerData(assignUids[i], audioPower);
+    }
 
     return result;
   }
@@ -21,7 +21,9 @@ package edu.umich.PowerTutor.components;
 
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
+import edu.umich.PowerTutor.util.PiecewiseLinear;
 import edu.umich.PowerTutor.util.Recycler;
 import edu.umich.PowerTutor.util.SystemInfo;
 
@@ -34,7 +36,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
  
@@ -66,13 +67,11 @@ public class CPU extends PowerComponent {
       this.freq = freq;
     }
 
-    public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
-      res.append("CPU-sys ").append((long)Math.round(sysPerc))
+    public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("CPU-sys ").append((long)Math.round(sysPerc))
          .append("\nCPU-usr ").append((long)Math.round(usrPerc))
          .append("\nCPU-freq ").append(freq)
-         .append("\n");
-      out.write(res.toString());
+         .append('\n');
     }
   }
 
@@ -88,6 +87,7 @@ public class CPU extends PowerComponent {
   private long[] statsBuf;
 
   private PhoneConstants constants;
+  private PiecewiseLinear freqTable;
 
   public CPU(PhoneConstants constants) {
     this.constants = constants;
@@ -205,24 +205,19 @@ public class CPU extends PowerComponent {
                                   double sysPerc, double freq) {
     double[] freqs = constants.cpuFreqs();
     if(usrPerc + sysPerc < 1e-6) {
-      /* Don't waste time with the binary search if there is no utilization
-       * which will be the case a lot.
+      /* Don't waste time with the lookup if there is no utilization which will
+       * be the case a lot.
        */
       uidData.init(sysPerc, usrPerc, freqs[0]);
       return;
     }
-    int lo = 0;
-    int hi = freqs.length - 1;
-    double perc = sysPerc + usrPerc;
-    while(lo < hi) {
-      int mid = (lo + hi) / 2;
-      double nperc = perc * freq / freqs[mid];
-      if(nperc < 70) {
-        hi = mid;
-      } else {
-        lo = mid + 1;
-      }
+    /* The lowest frequency above the one that would put the usage at 70%. */
+    if(freqTable == null || !freqTable.isFor(freqs, null)) {
+      freqTable = new PiecewiseLinear(freqs, null, false);
     }
+    double perc = sysPerc + usrPerc;
+    int lo = Math.min(freqTable.upperBound(perc * freq / 70),
+                      freqs.length - 1);
     uidData.init(sysPerc * freq / freqs[lo], usrPerc * freq / freqs[lo],
                  freqs[lo]);
   }
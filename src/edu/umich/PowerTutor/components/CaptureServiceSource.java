@@ -0,0 +1,146 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/* Gets the screen from a capture service listening on a local socket.  The
+ * service captures the screen after composition, so hardware overlays are
+ * included, and downscales it for us.  It can run as the shell user or use
+ * the platform's screen capture API so that no root is needed.
+ *
+ * For each frame we send the width and height we want as two big endian
+ * ints.  The service answers with the width and height it sent, again as two
+ * ints, followed by that many RGBA pixels in row order.
+ */
+public class CaptureServiceSource extends ScreenSource {
+  private static final String TAG = "CaptureServiceSource";
+
+  public static final String SOCKET_NAME = "edu.umich.PowerTutor.capture";
+
+  /* The largest frame we will accept from the service. */
+  private static final int MAX_PIXELS = 1 << 16;
+
+  /* A frame that takes longer than this is given up on and the socket
+   * dropped so that a stuck service can't hold up the OLED component.  The
+   * next capture connects again.
+   */
+  private static final int READ_TIMEOUT = 500;
+
+  private int width;
+  private int height;
+  private LocalSocket socket;
+  private DataInputStream in;
+  private DataOutputStream out;
+  private byte[] frame;
+
+  /* Returns null if the capture service isn't running. */
+  public static CaptureServiceSource open(int width, int height) {
+    CaptureServiceSource source = new CaptureServiceSource(width, height);
+    if(!source.connect()) return null;
+    return source;
+  }
+
+  private CaptureServiceSource(int width, int height) {
+    this.width = width;
+    this.height = height;
+    frame = new byte[width * height * 4];
+  }
+
+  private boolean connect() {
+    try {
+      socket = new LocalSocket();
+      socket.connect(new LocalSocketAddress(SOCKET_NAME));
+      socket.setSoTimeout(READ_TIMEOUT);
+      in = new DataInputStream(socket.getInputStream());
+      out = new DataOutputStream(socket.getOutputStream());
+      return true;
+    } catch(IOException e) {
+      close();
+      return false;
+    }
+  }
+
+  public String getName() {
+    return "capture service";
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean capture(int[] pixels) {
+    if(socket == null && !connect()) {
+      return false;
+    }
+    try {
+      out.writeInt(width);
+      out.writeInt(height);
+      out.flush();
+      int w = in.readInt();
+      int h = in.readInt();
+      if(w <= 0 || h <= 0 || w * h > MAX_PIXELS) {
+        throw new IOException("bad frame size " + w + "x" + h);
+      }
+      if(frame.length < w * h * 4) {
+        frame = new byte[w * h * 4];
+      }
+      in.readFully(frame, 0, w * h * 4);
+
+      /* The service should have sent the size we asked for but if it didn't
+       * pick the nearest pixel for each of ours.
+       */
+      for(int y = 0; y < height; y++) {
+        int row = y * h / height * w;
+        for(int x = 0; x < width; x++) {
+          int p = (row + x * w / width) * 4;
+          pixels[y * width + x] = 0xff000000 | (frame[p] & 0xff) << 16 |
+                                  (frame[p + 1] & 0xff) << 8 |
+                                  frame[p + 2] & 0xff;
+        }
+      }
+      return true;
+    } catch(IOException e) {
+      Log.w(TAG, "Lost the capture service: " + e.getMessage());
+      close();
+      return false;
+    }
+  }
+
+  public void close() {
+    if(socket != null) try {
+      socket.close();
+    } catch(IOException e) {
+    }
+    socket = null;
+    in = null;
+    out = null;
+  }
+}
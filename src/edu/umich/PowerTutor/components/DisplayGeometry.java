@@ -0,0 +1,239 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import edu.umich.PowerTutor.util.NativeLoader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/* The layout of one of the phone's frame buffers: the visible size, how many
+ * bytes a pixel and a row take, which part of the buffer is being shown and
+ * where each colour sits in a pixel.  It is read fresh for every frame since
+ * the shown buffer moves on every flip on a double buffered display and the
+ * size can change when the screen is rotated or its mode is changed.
+ *
+ * The layout comes from the frame buffer's fb_var_screeninfo when the native
+ * library is loaded and from sysfs otherwise.  sysfs doesn't say how the
+ * colours are laid out so the common layouts are assumed: RGB565 for 16 bit
+ * pixels and R, G, B, X bytes for wider ones.
+ */
+public class DisplayGeometry {
+  private static final String SYSFS_GRAPHICS = "/sys/class/graphics/";
+
+  /* The number of the display, fbN. */
+  public int display;
+  /* The visible size in pixels. */
+  public int width;
+  public int height;
+  public int bitsPerPixel;
+  /* Bytes from the start of one row to the start of the next. */
+  public int stride;
+  /* The first visible pixel, which on a double buffered display changes
+   * with every flip.
+   */
+  public int xOffset;
+  public int yOffset;
+  /* Bytes of the frame buffer that can be mapped. */
+  public int size;
+  /* The bit offset and length of each colour in a little endian pixel. */
+  public int redOffset;
+  public int redLength;
+  public int greenOffset;
+  public int greenLength;
+  public int blueOffset;
+  public int blueLength;
+
+  /* The number of values readScreenInfo() fills in. */
+  private static final int INFO_LENGTH = 13;
+  private int[] info = new int[INFO_LENGTH];
+  private int[] pair = new int[3];
+
+  public DisplayGeometry(int display) {
+    this.display = display;
+  }
+
+  /* The device file for the display or null if there isn't one. */
+  public File getDevice() {
+    File file = new File("/dev/graphics/fb" + display);
+    if(!file.exists()) {
+      file = new File("/dev/fb" + display);
+    }
+    return file.exists() ? file : null;
+  }
+
+  /* Updates the layout from the display.  Returns false if it couldn't be
+   * read or isn't one that is understood.  The checks are the same ones the
+   * native layoutOk() makes so that a panned row never runs past the stride.
+   */
+  public boolean read() {
+    if(NativeLoader.jniLoaded() && readScreenInfo(display, info)) {
+      width = info[0];
+      height = info[1];
+      bitsPerPixel = info[2];
+      stride = info[3];
+      xOffset = info[4];
+      yOffset = info[5];
+      size = info[6];
+      redOffset = info[7];
+      redLength = info[8];
+      greenOffset = info[9];
+      greenLength = info[10];
+      blueOffset = info[11];
+      blueLength = info[12];
+    } else if(!readSysfs()) {
+      return false;
+    }
+    return width > 0 && height > 0 &&
+           (bitsPerPixel == 16 || bitsPerPixel == 24 || bitsPerPixel == 32) &&
+           xOffset >= 0 && yOffset >= 0 &&
+           stride >= (long)(xOffset + width) * getBytesPerPixel() &&
+           (long)(yOffset + height) * stride <= size;
+  }
+
+  private boolean readSysfs() {
+    String dir = SYSFS_GRAPHICS + "fb" + display + "/";
+    if(readInts(dir + "bits_per_pixel", pair) < 1) return false;
+    bitsPerPixel = pair[0];
+    if(readInts(dir + "stride", pair) < 1) return false;
+    stride = pair[0];
+    if(readInts(dir + "virtual_size", pair) < 2) return false;
+    size = stride * pair[1];
+    /* The mode is written like U:480x800p-60. */
+    if(readInts(dir + "mode", pair) < 2 && readInts(dir + "modes", pair) < 2) {
+      return false;
+    }
+    width = pair[0];
+    height = pair[1];
+    if(readInts(dir + "pan", pair) < 2) {
+      pair[0] = pair[1] = 0;
+    }
+    xOffset = pair[0];
+    yOffset = pair[1];
+    if(bitsPerPixel == 16) {
+      redOffset = 11;
+      redLength = 5;
+      greenOffset = 5;
+      greenLength = 6;
+      blueOffset = 0;
+      blueLength = 5;
+    } else {
+      redOffset = 0;
+      greenOffset = 8;
+      blueOffset = 16;
+      redLength = greenLength = blueLength = 8;
+    }
+    return true;
+  }
+
+  /* Reads the numbers at the start of a file into out.  Anything that isn't
+   * a digit separates numbers.  Returns how many were read.
+   */
+  private static int readInts(String path, int[] out) {
+    byte[] buf = new byte[64];
+    int ln;
+    try {
+      FileInputStream in = new FileInputStream(path);
+      try {
+        ln = in.read(buf);
+      } finally {
+        in.close();
+      }
+    } catch(IOException e) {
+      return 0;
+    }
+    int count = 0;
+    for(int i = 0; i < ln && count < out.length && buf[i] != '\n'; ) {
+      if(buf[i] < '0' || buf[i] > '9') {
+        i++;
+        continue;
+      }
+      int value = 0;
+      for(; i < ln && buf[i] >= '0' && buf[i] <= '9'; i++) {
+        value = value * 10 + buf[i] - '0';
+      }
+      out[count++] = value;
+    }
+    return count;
+  }
+
+  public int getBytesPerPixel() {
+    return bitsPerPixel / 8;
+  }
+
+  /* True if a table of offsets made for other still works for this layout,
+   * that is only the shown part of the buffer differs.
+   */
+  public boolean sameLayout(DisplayGeometry other) {
+    return width == other.width && height == other.height &&
+           bitsPerPixel == other.bitsPerPixel && stride == other.stride &&
+           redOffset == other.redOffset && redLength == other.redLength &&
+           greenOffset == other.greenOffset &&
+           greenLength == other.greenLength &&
+           blueOffset == other.blueOffset && blueLength == other.blueLength;
+  }
+
+  public void copyFrom(DisplayGeometry other) {
+    display = other.display;
+    width = other.width;
+    height = other.height;
+    bitsPerPixel = other.bitsPerPixel;
+    stride = other.stride;
+    xOffset = other.xOffset;
+    yOffset = other.yOffset;
+    size = other.size;
+    redOffset = other.redOffset;
+    redLength = other.redLength;
+    greenOffset = other.greenOffset;
+    greenLength = other.greenLength;
+    blueOffset = other.blueOffset;
+    blueLength = other.blueLength;
+  }
+
+  /* The byte offset of the first visible pixel. */
+  public int getBase() {
+    return yOffset * stride + xOffset * getBytesPerPixel();
+  }
+
+  /* Turns a pixel as read little endian from the buffer into ARGB. */
+  public int toArgb(int raw) {
+    return 0xff000000 |
+           expand(raw >>> redOffset, redLength) << 16 |
+           expand(raw >>> greenOffset, greenLength) << 8 |
+           expand(raw >>> blueOffset, blueLength);
+  }
+
+  /* Scales a colour of length bits to 8 bits. */
+  private static int expand(int value, int length) {
+    if(length >= 8) {
+      return value >>> (length - 8) & 0xFF;
+    } else if(length <= 0) {
+      return 0;
+    }
+    int max = (1 << length) - 1;
+    return (value & max) * 255 / max;
+  }
+
+  /* Fills info with xres, yres, bits_per_pixel, line_length, xoffset,
+   * yoffset, smem_len and the offset and length of red, green and blue.
+   */
+  private static native boolean readScreenInfo(int display, int[] info);
+}
@@ -0,0 +1,279 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import edu.umich.PowerTutor.util.SystemInfo;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/* Reads the screen straight out of the frame buffer device.  Each pixel of the
+ * downscaled copy is a pixel picked at random from its cell of the screen so
+ * that regular patterns on the screen don't bias the sample.  Needs read
+ * access to the frame buffer, which is asked for with su if the phone is
+ * rooted.
+ *
+ * The frame buffer is mapped once so reading the pixels of a frame costs no
+ * system calls beyond checking its layout.  Some drivers won't map the device,
+ * in which case the part of each frame the pixels are picked from is read
+ * instead.  The pixels picked are picked again whenever the layout changes.
+ */
+public class FrameBufferSource extends ScreenSource {
+  private static final String TAG = "FrameBufferSource";
+
+  private File frameBufferFile;
+  private FileInputStream frameBufferStream;
+  private MappedByteBuffer frameBuffer;
+  /* Set once mapping has failed.  It isn't tried again. */
+  private boolean mapFailed;
+  private RandomAccessFile frameBufferReader;
+  private ByteBuffer readBuffer;
+  private boolean readFailed;
+  private int width;
+  private int height;
+
+  /* The layout as last read and the one the offsets were made for. */
+  private DisplayGeometry geometry;
+  private DisplayGeometry offsetsGeometry;
+  /* The byte offset from the first visible pixel of each pixel of the copy. */
+  private int[] offsets;
+  /* The bytes from the first visible pixel that cover every offset. */
+  private int span;
+  private Random random;
+
+  /* Returns null if there is no frame buffer that can be read for the
+   * display.
+   */
+  public static FrameBufferSource open(int display, int width, int height) {
+    DisplayGeometry geometry = new DisplayGeometry(display);
+    File file = geometry.getDevice();
+    if(file == null) {
+      return null;
+    }
+    if(!canRead(file)) {
+      askForAccess(file);
+      if(!canRead(file)) return null;
+    }
+    if(!geometry.read()) {
+      Log.w(TAG, "Frame buffer " + file + " has a layout that isn't " +
+            "understood");
+      return null;
+    }
+    return new FrameBufferSource(file, geometry, width, height);
+  }
+
+  private FrameBufferSource(File file, DisplayGeometry geometry,
+                            int width, int height) {
+    frameBufferFile = file;
+    this.geometry = geometry;
+    this.width = width;
+    this.height = height;
+    offsets = new int[width * height];
+    offsetsGeometry = new DisplayGeometry(geometry.display);
+    random = new Random();
+    makeOffsets();
+  }
+
+  private void makeOffsets() {
+    int screenWidth = geometry.width;
+    int screenHeight = geometry.height;
+    int bytes = geometry.getBytesPerPixel();
+    span = 0;
+    for(int y = 0; y < height; y++) {
+      int y0 = screenHeight * y / height;
+      int y1 = Math.max(y0 + 1, screenHeight * (y + 1) / height);
+      for(int x = 0; x < width; x++) {
+        int x0 = screenWidth * x / width;
+        int x1 = Math.max(x0 + 1, screenWidth * (x + 1) / width);
+        int px = x0 + random.nextInt(x1 - x0);
+        int py = y0 + random.nextInt(y1 - y0);
+        int off = py * geometry.stride + px * bytes;
+        offsets[y * width + x] = off;
+        span = Math.max(span, off + bytes);
+      }
+    }
+    offsetsGeometry.copyFrom(geometry);
+  }
+
+  /* The device's size isn't known to the file system so it is taken from the
+   * layout.
+   */
+  private boolean map() {
+    try {
+      frameBufferStream = new FileInputStream(frameBufferFile);
+      frameBuffer = frameBufferStream.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, geometry.size);
+      frameBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      return true;
+    } catch(IOException e) {
+      Log.w(TAG, "Failed to map the frame buffer, reading it instead");
+      close();
+      return false;
+    }
+  }
+
+  /* Reads the bytes the offsets cover into readBuffer. */
+  private boolean readFrame() {
+    try {
+      if(frameBufferReader == null) {
+        frameBufferReader = new RandomAccessFile(frameBufferFile, "r");
+      }
+      if(readBuffer == null || readBuffer.capacity() < span) {
+        readBuffer = ByteBuffer.allocate(span);
+        readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      frameBufferReader.seek(geometry.getBase());
+      frameBufferReader.readFully(readBuffer.array(), 0, span);
+      readFailed = false;
+      return true;
+    } catch(IOException e) {
+      /* Only say so once rather than on every frame. */
+      if(!readFailed) {
+        Log.w(TAG, "Failed to read the frame buffer");
+        readFailed = true;
+      }
+      close();
+      return false;
+    }
+  }
+  private static boolean canRead(File file) {
+    try {
+      RandomAccessFile fin = new RandomAccessFile(file, "r");
+      fin.read();
+      fin.close();
+      return true;
+    } catch(IOException e) {
+      return false;
+    }
+  }
+
+  /* Try to change the permissions on the frame buffer as root. */
+  private static void askForAccess(File file) {
+    try {
+      java.lang.Process p = Runtime.getRuntime().exec("su");
+      DataOutputStream os = new DataOutputStream(p.getOutputStream());
+      os.writeBytes("chown " + android.os.Process.myUid() +
+                    " " + file.getAbsolutePath() + "\n");
+      os.writeBytes("chown app_" + (android.os.Process.myUid() -
+                    SystemInfo.AID_APP) +
+                    " " + file.getAbsolutePath() + "\n");
+      os.writeBytes("chmod 660 " + file.getAbsolutePath() + "\n");
+      os.writeBytes("exit\n");
+      os.flush();
+      p.waitFor();
+      if(p.exitValue() != 0) {
+        Log.i(TAG, "failed to change permissions on frame buffer");
+      }
+    } catch (InterruptedException e) {
+      Log.i(TAG, "changing permissions on frame buffer interrupted");
+    } catch (IOException e) {
+      Log.i(TAG, "unexpected exception while changing permission on " +
+            "frame buffer");
+    }
+  }
+
+  public String getName() {
+    return "frame buffer";
+  }
+
+  /* The number of the frame buffer being read. */
+  public int getDisplay() {
+    return geometry.display;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean capture(int[] pixels) {
+    if(!geometry.read()) {
+      return false;
+    }
+    if(!geometry.sameLayout(offsetsGeometry)) {
+      Log.i(TAG, "Frame buffer is now " + geometry.width + "x" +
+            geometry.height + " at " + geometry.bitsPerPixel + " bits");
+      makeOffsets();
+    }
+    if(frameBuffer != null && frameBuffer.capacity() != geometry.size) {
+      close();
+    }
+    if(frameBuffer == null && !mapFailed && !map()) {
+      mapFailed = true;
+    }
+    ByteBuffer fb;
+    int base;
+    if(mapFailed) {
+      if(!readFrame()) return false;
+      fb = readBuffer;
+      base = 0;
+    } else {
+      fb = frameBuffer;
+      base = geometry.getBase();
+    }
+    switch(geometry.getBytesPerPixel()) {
+      case 2:
+        for(int i = 0; i < offsets.length; i++) {
+          pixels[i] = geometry.toArgb(fb.getShort(base + offsets[i]) & 0xFFFF);
+        }
+        break;
+      case 3:
+        for(int i = 0; i < offsets.length; i++) {
+          int off = base + offsets[i];
+          pixels[i] = geometry.toArgb(fb.get(off) & 0xFF |
+                                      (fb.get(off + 1) & 0xFF) << 8 |
+                                      (fb.get(off + 2) & 0xFF) << 16);
+        }
+        break;
+      default:
+        for(int i = 0; i < offsets.length; i++) {
+          pixels[i] = geometry.toArgb(fb.getInt(base + offsets[i]));
+        }
+    }
+    return true;
+  }
+
+  public void close() {
+    frameBuffer = null;
+    if(frameBufferStream != null) try {
+      frameBufferStream.close();
+    } catch(IOException e) {
+    }
+    frameBufferStream = null;
+    if(frameBufferReader != null) try {
+      frameBufferReader.close();
+    } catch(IOException e) {
+    }
+    frameBufferReader = null;
+  }
+}
@@ -22,6 +22,7 @@ package edu.umich.PowerTutor.components;
 import edu.umich.PowerTutor.PowerNotifications;
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.Recycler;
@@ -38,11 +39,11 @@ import android.util.SparseArray;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class GPS extends PowerComponent {
   public static class GpsData extends PowerData {
@@ -60,16 +61,20 @@ public class GPS extends PowerComponent {
      * in the on state.  Otherwise it is 0.
      */
     public int satellites;
+    /* The number of those satellites used in the last fix. */
+    public int satellitesInFix;
 
     private GpsData() {
       stateTimes = new double[GPS.POWER_STATES];
     }
 
-    public void init(double[] stateTimes, int satellites) {
+    public void init(double[] stateTimes, int satellites,
+                     int satellitesInFix) {
       for(int i = 0; i < GPS.POWER_STATES; i++) {
         this.stateTimes[i] = stateTimes[i];
       }
       this.satellites = satellites;
+      this.satellitesInFix = satellitesInFix;
     }
 
     @Override
@@ -78,14 +83,14 @@ public class GPS extends PowerComponent {
     }
 
     @Override
-    public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
-      res.append("GPS-state-times");
+    public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("GPS-state-times");
       for(int i = 0; i < GPS.POWER_STATES; i++) {
-        res.append(" ").append(stateTimes[i]);
+        out.append(' ').append(stateTimes[i]);
       }
-      res.append("\nGPS-sattelites ").append(satellites).append("\n");
-      out.write(res.toString());
+      out.append("\nGPS-sattelites ").append(satellites)
+         .append("\nGPS-satellites-in-fix ").append(satellitesInFix)
+         .append('\n');
     }
   }
 
@@ -111,13 +116,35 @@ public class GPS extends PowerComponent {
 
   private Context context;
   private LocationManager locationManager;
+  /* Only touched by the listener. */
   private GpsStatus lastStatus;
+  /* The satellite counts from the last status, worked out when the status
+   * arrives so that the sampler only has to read this.  The number used in
+   * the fix is in the high 16 bits.
+   */
+  private volatile int satelliteCounts;
   private boolean hasUidInfo;
   private long sleepTime;
   private long lastTime;
 
   private GpsStateKeeper gpsState;
+  /* Only touched by the sampler.  The notification threads hand their events
+   * over through uidEvents so they never wait on the sampler.
+   */
   private SparseArray<GpsStateKeeper> uidStates;
+  private ConcurrentLinkedQueue<UidEvent> uidEvents;
+
+  private static class UidEvent {
+    public int uid;
+    public int event;
+    public long time;
+
+    public UidEvent(int uid, int event, long time) {
+      this.uid = uid;
+      this.event = event;
+      this.time = time;
+    }
+  }
 
   private static final int GPS_STATUS_SESSION_BEGIN = 1;
   private static final int GPS_STATUS_SESSION_END = 2;
@@ -127,6 +154,7 @@ public class GPS extends PowerComponent {
   public GPS(Context context, PhoneConstants constants) {
     this.context = context;
     uidStates = new SparseArray<GpsStateKeeper>();
+    uidEvents = new ConcurrentLinkedQueue<UidEvent>();
     sleepTime = (long)Math.round(1000.0 * constants.gpsSleepTime());
 
     hasUidInfo = NotificationService.available();
@@ -180,9 +208,18 @@ public class GPS extends PowerComponent {
         } else if(event == GpsStatus.GPS_EVENT_STOPPED) {
           gpsState.updateEvent(GPS_STATUS_SESSION_END,
                                HOOK_GPS_STATUS_LISTENER);
-        }
-        synchronized(GPS.this) {
+          satelliteCounts = 0;
+        } else {
+          /* Only the satellite and fix events change the counts. */
           lastStatus = locationManager.getGpsStatus(lastStatus);
+          int satellites = 0;
+          int inFix = 0;
+          for(GpsSatellite satellite : lastStatus.getSatellites()) {
+            satellites++;
+            if(satellite.usedInFix()) inFix++;
+          }
+          satelliteCounts = Math.min(inFix, 0x7fff) << 16 |
+                            Math.min(satellites, 0xffff);
         }
       }
     };
@@ -208,11 +245,13 @@ public class GPS extends PowerComponent {
         }
 
         public void noteStartGps(int uid) {
-          updateUidEvent(uid, GPS_STATUS_SESSION_BEGIN, HOOK_NOTIFICATIONS);
+          uidEvents.add(new UidEvent(uid, GPS_STATUS_SESSION_BEGIN,
+                                     SystemClock.elapsedRealtime()));
         }
 
         public void noteStopGps(int uid) {
-          updateUidEvent(uid, GPS_STATUS_SESSION_END, HOOK_NOTIFICATIONS);
+          uidEvents.add(new UidEvent(uid, GPS_STATUS_SESSION_END,
+                                     SystemClock.elapsedRealtime()));
         }
       };
       NotificationService.addHook(notificationReceiver);
@@ -244,15 +283,18 @@ public class GPS extends PowerComponent {
     }
   }
 
-  private void updateUidEvent(int uid, int event, int source) {
-    synchronized(uidStates) {
-      GpsStateKeeper state = uidStates.get(uid);
+  /* Replays the uid events that have come in since the last call, at the
+   * times they happened, onto the uid states.
+   */
+  private void foldUidEvents() {
+    for(UidEvent ev = uidEvents.poll(); ev != null; ev = uidEvents.poll()) {
+      GpsStateKeeper state = uidStates.get(ev.uid);
       if(state == null) {
         state = new GpsStateKeeper(HOOK_NOTIFICATIONS | HOOK_TIMER, sleepTime,
                                    lastTime);
-        uidStates.put(uid, state);
+        uidStates.put(ev.uid, state);
       }
-      state.updateEvent(event, source);
+      state.updateEvent(ev.event, HOOK_NOTIFICATIONS, ev.time);
     }
   }
 
@@ -275,36 +317,34 @@ public class GPS extends PowerComponent {
     IterationData result = IterationData.obtain();
 
     /* Get the number of satellites that were available in the last update. */
-    int satellites = 0;
-    synchronized(this) {
-      if(lastStatus != null) {
-        for(GpsSatellite satellite : lastStatus.getSatellites()) {
-          satellites++;
-        }
-      }
-    }
+    int counts = satelliteCounts;
+    int satellites = counts & 0xffff;
+    int inFix = counts >>> 16;
 
     /* Get the power data for the physical gps device. */
     GpsData power = GpsData.obtain();
     synchronized(gpsState) {
       double[] stateTimes = gpsState.getStateTimesLocked();
       int curState = gpsState.getCurrentStateLocked();
-      power.init(stateTimes, curState == POWER_STATE_ON ? satellites : 0);
+      boolean on = curState == POWER_STATE_ON;
+      power.init(stateTimes, on ? satellites : 0, on ? inFix : 0);
       gpsState.resetTimesLocked();
     }
     result.setPowerData(power);
 
     /* Get the power data for each uid if we have information on it. */
-    if(hasUidInfo) synchronized(uidStates) {
+    if(hasUidInfo) {
+      foldUidEvents();
       lastTime = beginTime + iterationInterval * iteration;
-      for(int i = 0; i < uidStates.size(); i++) {
+      for(int i = uidStates.size() - 1; i >= 0; i--) {
         int uid = uidStates.keyAt(i);
         GpsStateKeeper state = uidStates.valueAt(i);
 
         double[] stateTimes = state.getStateTimesLocked();
         int curState = state.getCurrentStateLocked();
         GpsData uidPower = GpsData.obtain();
-        uidPower.init(stateTimes, curState == POWER_STATE_ON ? satellites : 0);
+        boolean on = curState == POWER_STATE_ON;
+        uidPower.init(stateTimes, on ? satellites : 0, on ? inFix : 0);
         state.resetTimesLocked();
 
         result.addUidPowerData(uid, uidPower);
@@ -312,7 +352,6 @@ public class GPS extends PowerComponent {
         /* Remove state information for uids no longer using the gps. */
         if(curState == POWER_STATE_OFF) {
           uidStates.remove(uid);
-          i--;
         }
       }
     }
@@ -387,8 +426,12 @@ public class GPS extends PowerComponent {
 
     /* Make sure that you have a lock on this before calling. */
     private void updateTimesLocked() {
-      /* Update the time we were in the previous state. */
-      long curTime = SystemClock.elapsedRealtime();
+      updateTimesLocked(SystemClock.elapsedRealtime());
+    }
+
+    private void updateTimesLocked(long curTime) {
+      /* Events can be replayed from before the last update. */
+      curTime = Math.max(curTime, lastTime);
 
       /* Check if the GPS has gone to sleep as a result of a timer. */
       if((hookMask & HOOK_TIMER) != 0 && offTime != -1 &&
@@ -408,13 +451,18 @@ public class GPS extends PowerComponent {
      * itself.
      */
     public void updateEvent(int event, int source) {
+      updateEvent(event, source, SystemClock.elapsedRealtime());
+    }
+
+    /* Like updateEvent(int, int) for an event that happened at time. */
+    public void updateEvent(int event, int source, long time) {
       synchronized(this) {
         if((hookMask & source) == 0) {
           /* We are not using this hook source, ignore. */
           return;
         }
 
-        updateTimesLocked();
+        updateTimesLocked(time);
         int oldState = curState;
         switch(event) {
           case GPS_STATUS_SESSION_BEGIN:
@@ -438,7 +486,7 @@ public class GPS extends PowerComponent {
         }
         if(curState != oldState) {
           if(oldState == POWER_STATE_ON && curState == POWER_STATE_SLEEP) {
-            offTime = SystemClock.elapsedRealtime() + sleepTime;
+            offTime = Math.max(time, lastTime) + sleepTime;
           } else {
             /* Any other state transition should reset the off timer. */
             offTime = -1;
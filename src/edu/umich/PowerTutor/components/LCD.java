@@ -21,13 +21,12 @@ package edu.umich.PowerTutor.components;
 
 import edu.umich.PowerTutor.PowerNotifications;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
-import edu.umich.PowerTutor.util.ForegroundDetector;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.Recycler;
 import edu.umich.PowerTutor.util.SystemInfo;
 
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -38,7 +37,6 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.List;
 
 public class LCD extends PowerComponent {
@@ -58,20 +56,26 @@ public class LCD extends PowerComponent {
 
 	  public int brightness;
 	  public boolean screenOn;
+    /* The fraction of the screen this data is for. */
+    public double share;
 	
     private LcdData() {
     }
 
     public void init(int brightness, boolean screenOn) {
+      init(brightness, screenOn, 1);
+    }
+
+    public void init(int brightness, boolean screenOn, double share) {
       this.brightness = brightness;
       this.screenOn = screenOn;
+      this.share = share;
     }
 	
-	  public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
-      res.append("LCD-brightness ").append(brightness)
-         .append("\nLCD-screen-on ").append(screenOn).append("\n");
-      out.write(res.toString());
+	  public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("LCD-brightness ").append(brightness)
+         .append("\nLCD-screen-on ").append(screenOn)
+         .append("\nLCD-share ").append(share).append('\n');
     }
   }
 
@@ -82,7 +86,7 @@ public class LCD extends PowerComponent {
   };
 
   private Context context;
-  private ForegroundDetector foregroundDetector;
+  private ScreenAttribution attribution;
   private BroadcastReceiver broadcastReceiver;
   private boolean screenOn;
 
@@ -96,8 +100,7 @@ public class LCD extends PowerComponent {
       return;
     }
 
-    foregroundDetector = new ForegroundDetector((ActivityManager)
-        context.getSystemService(context.ACTIVITY_SERVICE));
+    attribution = new ScreenAttribution(context);
     broadcastReceiver = new BroadcastReceiver() {
       public void onReceive(Context context, Intent intent) {
         synchronized(this) {
@@ -124,6 +127,7 @@ public class LCD extends PowerComponent {
   @Override
   protected void onExit() {
     context.unregisterReceiver(broadcastReceiver);
+    attribution.close();
     super.onExit();
   } 
 
@@ -159,9 +163,13 @@ public class LCD extends PowerComponent {
     result.setPowerData(data);
 
     if(screen) {
-      LcdData uidData = LcdData.obtain();
-      uidData.init(brightness, screen);
-      result.addUidPowerData(foregroundDetector.getForegroundUid(), uidData);
+      /* The screen is lit evenly so each app pays for the area it has. */
+      attribution.update();
+      for(int i = 0; i < attribution.getOwnerCount(); i++) {
+        LcdData uidData = LcdData.obtain();
+        uidData.init(brightness, screen, attribution.getShare(i));
+        result.addUidPowerData(attribution.getOwnerUid(i), uidData);
+      }
     }
 
     return result;
@@ -22,14 +22,13 @@ package edu.umich.PowerTutor.components;
 import edu.umich.PowerTutor.PowerNotifications;
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
 import edu.umich.PowerTutor.util.NativeLoader;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.Recycler;
 import edu.umich.PowerTutor.util.SystemInfo;
-import edu.umich.PowerTutor.util.ForegroundDetector;
 
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -40,15 +39,11 @@ import android.util.Log;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 
 import java.io.*;
 import java.nio.*;
@@ -72,24 +67,44 @@ public class OLED extends PowerComponent {
 	  public int brightness;
     public double pixPower;
 	  public boolean screenOn;
+    /* True if the screen showed the same thing as in the last iteration and
+     * pixPower was carried over rather than worked out again.
+     */
+    public boolean contentUnchanged;
+    /* The fraction of the screen this data is for.  pixPower is only the
+     * pixel power of that part of the screen.
+     */
+    public double share;
 	
     private OledData() {
     }
 
     public void init() {
       this.screenOn = false;
+      this.share = 1;
     }
 
-    public void init(int brightness, double pixPower) {
+    public void init(int brightness, double pixPower,
+                     boolean contentUnchanged) {
+      init(brightness, pixPower, contentUnchanged, 1);
+    }
+
+    public void init(int brightness, double pixPower,
+                     boolean contentUnchanged, double share) {
       screenOn = true;
+      this.share = share;
       this.brightness = brightness;
       this.pixPower = pixPower;
+      this.contentUnchanged = contentUnchanged;
     }
 	
-	  public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      out.write("OLED-brightness " + brightness + "\n");
-      out.write("OLED-pix-power " + pixPower + "\n");
-      out.write("OLED-screen-on " + screenOn + "\n");
+	  public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("OLED-brightness ").append(brightness)
+         .append("\nOLED-pix-power ").append(pixPower)
+         .append("\nOLED-screen-on ").append(screenOn)
+         .append("\nOLED-content-unchanged ").append(contentUnchanged)
+         .append("\nOLED-share ").append(share)
+         .append('\n');
     }
   }
 
@@ -101,18 +116,30 @@ public class OLED extends PowerComponent {
   };
 
   private Context context;
-  private ForegroundDetector foregroundDetector;
+  private ScreenAttribution attribution;
   private BroadcastReceiver broadcastReceiver;
   private boolean screenOn;
 
-  private File frameBufferFile;
+  private ScreenSource screenSource;
+  private int[] pixels;
+
+  /* The pixels and pixel power from the last capture.  Most of the time the
+   * screen is showing the same thing it was a second ago so there is no need
+   * to work the power out again.
+   */
+  private int[] lastPixels;
+  private double lastPixPower = -1;
+
+  /* The full brightness power of each pixel of the copy, which is what the
+   * screen's power is split by when more than one app is showing.
+   */
+  private double[] cellPower;
+  private boolean cellPowerValid;
+  private double[] ownerPower;
 
   private int screenWidth;
   private int screenHeight;
 
-  private static final int NUMBER_OF_SAMPLES = 500;
-  private int[] samples;
-
   private String brightnessFile;
 
   /* Coefficients pre-computed for pix power calculations.
@@ -126,8 +153,6 @@ public class OLED extends PowerComponent {
     this.context = context;
     screenOn = true;
 
-    foregroundDetector = new ForegroundDetector((ActivityManager)
-        context.getSystemService(context.ACTIVITY_SERVICE));
     broadcastReceiver = new BroadcastReceiver() {
       public void onReceive(Context context, Intent intent) {
         synchronized(this) {
@@ -144,45 +169,6 @@ public class OLED extends PowerComponent {
     intentFilter.addAction(Intent.ACTION_SCREEN_ON);
     context.registerReceiver(broadcastReceiver, intentFilter);
 
-    frameBufferFile = new File("/dev/fb0");
-    if(!frameBufferFile.exists()) {
-      frameBufferFile = new File("/dev/graphics/fb0");
-    }
-    if(frameBufferFile.exists()) try {
-      /* Check if we already have permission to read the frame buffer. */
-      boolean readOk = false;
-      try {
-        RandomAccessFile fin = new RandomAccessFile(frameBufferFile, "r");
-        int b = fin.read();
-        fin.close();
-        readOk = true;
-      } catch(IOException e) {
-      }
-      /* Don't have permission, try to change permission as root. */
-      if(!readOk) {
-        java.lang.Process p = Runtime.getRuntime().exec("su");
-        DataOutputStream os = new DataOutputStream(p.getOutputStream());
-        os.writeBytes("chown " + android.os.Process.myUid() +
-                      " " + frameBufferFile.getAbsolutePath() + "\n");
-        os.writeBytes("chown app_" + (android.os.Process.myUid() -
-                      SystemInfo.AID_APP) +
-                      " " + frameBufferFile.getAbsolutePath() + "\n");
-        os.writeBytes("chmod 660 " + frameBufferFile.getAbsolutePath() + "\n");
-        os.writeBytes("exit\n");
-        os.flush();
-        p.waitFor();
-        if(p.exitValue() != 0) {
-          Log.i(TAG, "failed to change permissions on frame buffer");
-        }
-      }
-    } catch (InterruptedException e) {
-      Log.i(TAG, "changing permissions on frame buffer interrupted");
-    } catch (IOException e) {
-      Log.i(TAG, "unexpected exception while changing permission on " +
-            "frame buffer");
-      e.printStackTrace();
-    }
-
     DisplayMetrics metrics = new DisplayMetrics();
     WindowManager windowManager =
         (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
@@ -190,13 +176,17 @@ public class OLED extends PowerComponent {
     screenWidth = metrics.widthPixels;
     screenHeight = metrics.heightPixels;
 
-    Random r = new Random();
-    samples = new int[NUMBER_OF_SAMPLES];
-    for(int i = 0; i < NUMBER_OF_SAMPLES; i++) {
-      int a = screenWidth * screenHeight * i / NUMBER_OF_SAMPLES;
-      int b = screenWidth * screenHeight * (i + 1) / NUMBER_OF_SAMPLES;
-      samples[i] = a + r.nextInt(b - a);
+    screenSource = ScreenSource.find(screenWidth, screenHeight);
+    if(screenSource != null) {
+      pixels = new int[screenSource.getWidth() * screenSource.getHeight()];
+      lastPixels = new int[pixels.length];
+      cellPower = new double[pixels.length];
+      attribution = new ScreenAttribution(context, screenSource.getWidth(),
+                                          screenSource.getHeight());
+    } else {
+      attribution = new ScreenAttribution(context);
     }
+    ownerPower = new double[4];
 
     double[] channel = constants.oledChannelPower();
     rcoef = channel[0] / 255 / 255;
@@ -214,6 +204,10 @@ public class OLED extends PowerComponent {
   @Override
   protected void onExit() {
     context.unregisterReceiver(broadcastReceiver);
+    attribution.close();
+    if(screenSource != null) {
+      screenSource.close();
+    }
     super.onExit();
   } 
 
@@ -244,38 +238,50 @@ public class OLED extends PowerComponent {
       return result;
     }
 
+    if(screen) {
+      attribution.update();
+    }
+    boolean split = attribution.getOwnerCount() > 1;
+
     double pixPower = 0;
-    if(screen && frameBufferFile.exists()) {
-      if(NativeLoader.jniLoaded()) {
-        pixPower = getScreenPixPower(rcoef, gcoef, bcoef, modul_coef);
-      } else try {
-        RandomAccessFile fin = new RandomAccessFile(frameBufferFile, "r");
-
-        for(int x : samples) {
-          fin.seek(x * 4);
-          int px = fin.readInt();
-          int b = px >> 8 & 0xFF;
-          int g = px >> 16 & 0xFF;
-          int r = px >> 24 & 0xFF;
-
-          /* Calculate the power usage of this one pixel if it were at full
-           * brightness.  Linearly scale by brightness to get true power
-           * consumption.  To calculate whole screen compute average of sampled
-           * region and multiply by number of pixels.
-           */
-          int modul_val = r + g + b;
-          pixPower += rcoef * (r * r) + gcoef * (g * g) + bcoef * (b * b) -
-                      modul_coef * (modul_val * modul_val);
+    boolean unchanged = false;
+    if(screen && screenSource == null) {
+      pixPower = -1;
+    } else if(screen) {
+      if(screenSource instanceof FrameBufferSource &&
+         NativeLoader.jniLoaded()) {
+        /* The native code works over the whole frame and gives the average
+         * per pixel.
+         */
+        int display = ((FrameBufferSource)screenSource).getDisplay();
+        pixPower = getScreenPixPower(display, rcoef, gcoef, bcoef,
+                                     modul_coef);
+        if(pixPower >= 0) {
+          pixPower *= 1.0 * screenWidth * screenHeight;
+          unchanged = screenUnchanged(display);
         }
-        fin.close();
-      } catch(FileNotFoundException e) {
-        pixPower = -1;
-      } catch(IOException e) {
+        /* The split needs the power of each part of the screen, which the
+         * native code doesn't give, so the sampled copy is read as well.
+         */
+        if(!split) {
+          cellPowerValid = false;
+        } else if(pixPower >= 0 && !(unchanged && cellPowerValid)) {
+          cellPowerValid = screenSource.capture(pixels);
+          if(cellPowerValid) {
+            computeCellPower();
+          }
+        }
+      } else if(!screenSource.capture(pixels)) {
         pixPower = -1;
-        e.printStackTrace();
-      }
-      if(pixPower >= 0) {
-        pixPower *= 1.0 * screenWidth * screenHeight / NUMBER_OF_SAMPLES;
+        cellPowerValid = false;
+      } else if(lastPixPower >= 0 && Arrays.equals(pixels, lastPixels)) {
+        pixPower = lastPixPower;
+        unchanged = true;
+      } else {
+        pixPower = computeCellPower() * screenWidth * screenHeight;
+        cellPowerValid = true;
+        System.arraycopy(pixels, 0, lastPixels, 0, pixels.length);
+        lastPixPower = pixPower;
       }
     }
 
@@ -283,19 +289,77 @@ public class OLED extends PowerComponent {
     if(!screen) {
       data.init();
     } else {
-      data.init(brightness, pixPower);
+      data.init(brightness, pixPower, unchanged);
     }
     result.setPowerData(data);
 
-    if(screen) {
+    if(screen && !split) {
       OledData uidData = OledData.obtain();
-      uidData.init(brightness, pixPower);
-      result.addUidPowerData(foregroundDetector.getForegroundUid(), uidData);
+      uidData.init(brightness, pixPower, unchanged);
+      result.addUidPowerData(attribution.getOwnerUid(0), uidData);
+    } else if(screen) {
+      addSplitUidData(result, brightness, pixPower, unchanged);
     }
 
     return result;
   }
 
+  /* Fills cellPower from pixels and returns the average over the pixels. */
+  private double computeCellPower() {
+    double sum = 0;
+    for(int i = 0; i < pixels.length; i++) {
+      int px = pixels[i];
+      int r = px >> 16 & 0xFF;
+      int g = px >> 8 & 0xFF;
+      int b = px & 0xFF;
+
+      /* Calculate the power usage of this one pixel if it were at full
+       * brightness.  Linearly scale by brightness to get true power
+       * consumption.  To calculate whole screen compute average of sampled
+       * region and multiply by number of pixels.
+       */
+      int modul_val = r + g + b;
+      cellPower[i] = rcoef * (r * r) + gcoef * (g * g) + bcoef * (b * b) -
+                     modul_coef * (modul_val * modul_val);
+      sum += cellPower[i];
+    }
+    return sum / pixels.length;
+  }
+
+  /* Each app gets the base power for its share of the screen and the pixel
+   * power of its own cells.  If the cells' power isn't known the pixel power
+   * is split by area too.
+   */
+  private void addSplitUidData(IterationData result, int brightness,
+                               double pixPower, boolean unchanged) {
+    int owners = attribution.getOwnerCount();
+    if(ownerPower.length < owners) {
+      ownerPower = new double[owners * 2];
+    }
+    for(int i = 0; i < owners; i++) {
+      ownerPower[i] = 0;
+    }
+    double total = 0;
+    if(pixPower >= 0 && cellPowerValid) {
+      int[] cellOwners = attribution.getCellOwners();
+      for(int i = 0; i < cellOwners.length; i++) {
+        ownerPower[cellOwners[i]] += cellPower[i];
+        total += cellPower[i];
+      }
+    }
+    for(int i = 0; i < owners; i++) {
+      double share = attribution.getShare(i);
+      double uidPixPower = pixPower;
+      if(pixPower >= 0) {
+        uidPixPower = total > 0 ? pixPower * ownerPower[i] / total :
+                                  pixPower * share;
+      }
+      OledData uidData = OledData.obtain();
+      uidData.init(brightness, uidPixPower, unchanged, share);
+      result.addUidPowerData(attribution.getOwnerUid(i), uidData);
+    }
+  }
+
   @Override
   public boolean hasUidInformation() {
     return true;
@@ -306,6 +370,12 @@ public class OLED extends PowerComponent {
     return "OLED";
   }
 
-  public static native double getScreenPixPower(double rcoef, double gcoef,
-                                            double bcoef, double modul_coef);
+  public static native double getScreenPixPower(int display, double rcoef,
+      double gcoef, double bcoef, double modul_coef);
+
+  /* True if the frame seen by the last getScreenPixPower() call was the same
+   * as the one before it, in which case its result came straight from the
+   * last call.
+   */
+  public static native boolean screenUnchanged(int display);
 }
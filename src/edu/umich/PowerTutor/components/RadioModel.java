@@ -0,0 +1,123 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import android.util.SparseArray;
+
+/* The cellular radio models known to the 3G component, keyed by the
+ * TelephonyManager network type the phone reports.  Each model has its own
+ * RRC state machine.  Its power and timer coefficients come from
+ * PhoneConstants.radioStatePower() and radioStateTimers() under the model's
+ * name.
+ *
+ * Further models can be added with register().
+ */
+public abstract class RadioModel {
+  public static final String UMTS = "umts";
+  public static final String HSPAP = "hspap";
+  public static final String LTE = "lte";
+  public static final String EDGE = "edge";
+  public static final String GPRS = "gprs";
+
+  /* TelephonyManager network types missing from the API level we build
+   * against.
+   */
+  private static final int NETWORK_TYPE_GPRS = 1;
+  private static final int NETWORK_TYPE_EDGE = 2;
+  private static final int NETWORK_TYPE_UMTS = 3;
+  private static final int NETWORK_TYPE_HSDPA = 8;
+  private static final int NETWORK_TYPE_HSUPA = 9;
+  private static final int NETWORK_TYPE_HSPA = 10;
+  private static final int NETWORK_TYPE_LTE = 13;
+  private static final int NETWORK_TYPE_HSPAP = 15;
+
+  private static final SparseArray<RadioModel> models =
+      new SparseArray<RadioModel>();
+
+  static {
+    RadioModel umts = new RadioModel(UMTS) {
+      public RrcStateMachine newMachine() {
+        return RrcStateMachine.umts(0, 0);
+      }
+    };
+    register(umts, NETWORK_TYPE_UMTS, NETWORK_TYPE_HSDPA, NETWORK_TYPE_HSUPA,
+             NETWORK_TYPE_HSPA);
+    register(new RadioModel(HSPAP) {
+      public RrcStateMachine newMachine() {
+        return RrcStateMachine.umts(0, 0);
+      }
+    }, NETWORK_TYPE_HSPAP);
+    register(new RadioModel(LTE) {
+      public RrcStateMachine newMachine() {
+        return RrcStateMachine.lte(0, 0);
+      }
+    }, NETWORK_TYPE_LTE);
+    register(new RadioModel(EDGE) {
+      public RrcStateMachine newMachine() {
+        return RrcStateMachine.gsm(0);
+      }
+    }, NETWORK_TYPE_EDGE);
+    register(new RadioModel(GPRS) {
+      public RrcStateMachine newMachine() {
+        return RrcStateMachine.gsm(0);
+      }
+    }, NETWORK_TYPE_GPRS);
+  }
+
+  private String name;
+
+  protected RadioModel(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /* Returns a new state machine for this radio.  Its timers are set from the
+   * phone's constants before it is used.
+   */
+  public abstract RrcStateMachine newMachine();
+
+  public static synchronized void register(RadioModel model,
+                                           int... networkTypes) {
+    for(int type : networkTypes) {
+      models.put(type, model);
+    }
+  }
+
+  /* Returns the model with the given name or null if there isn't one. */
+  public static synchronized RadioModel forName(String name) {
+    for(int i = 0; i < models.size(); i++) {
+      if(models.valueAt(i).getName().equals(name)) {
+        return models.valueAt(i);
+      }
+    }
+    return null;
+  }
+
+  /* Returns the model for a TelephonyManager network type.  Unknown types get
+   * the UMTS model.
+   */
+  public static synchronized RadioModel forNetworkType(int networkType) {
+    RadioModel model = models.get(networkType);
+    return model != null ? model : models.get(NETWORK_TYPE_UMTS);
+  }
+}
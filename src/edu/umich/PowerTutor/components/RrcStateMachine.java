@@ -0,0 +1,207 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+/* Simulates the radio resource control state machine of a cellular radio.
+ * Rather than stepping once per iteration it keeps the exact time of the last
+ * activity and of each state change so that tail timers expire when they
+ * should even when they aren't a whole number of iterations.  The time spent
+ * in each state is handed out as residency the same way GPS.stateTimes is.
+ *
+ * Each state has a state to move to when there is activity and, optionally, a
+ * timer after which it drops to a lower state.  A timer runs from the later of
+ * the last activity and the time the state was entered.
+ *
+ * Activity is still only known per call to advance(), from counters that are
+ * read once an iteration.  It is taken to have happened at the start of the
+ * interval it was seen in, so a promotion can come up to one interval before
+ * the real first transfer and a tail can start up to one interval before the
+ * real last one.  The two errors work in opposite directions rather than the
+ * whole interval being charged at the lower state.
+ */
+public class RrcStateMachine {
+  /* UMTS states.  These are the same as the Threeg.POWER_STATE_* values. */
+  public static final int UMTS_IDLE = 0;
+  public static final int UMTS_FACH = 1;
+  public static final int UMTS_DCH = 2;
+  public static final String[] UMTS_STATE_NAMES = {"IDLE", "FACH", "DCH"};
+
+  /* LTE states.  RRC_CONNECTED is split into continuous reception and the
+   * DRX tail that follows it.
+   */
+  public static final int LTE_IDLE = 0;
+  public static final int LTE_DRX = 1;
+  public static final int LTE_CONNECTED = 2;
+  public static final String[] LTE_STATE_NAMES = {"IDLE", "DRX", "CONNECTED"};
+
+  /* GPRS and EDGE states.  The radio holds on to its channel for a while
+   * after the last transfer before going back to idle.
+   */
+  public static final int GSM_IDLE = 0;
+  public static final int GSM_READY = 1;
+  public static final String[] GSM_STATE_NAMES = {"IDLE", "READY"};
+
+  /* The largest number of states of any machine. */
+  public static final int MAX_STATES = 3;
+
+  private String[] names;
+  private int[] promoteTo;
+  private int[] demoteTo;
+  private long[] timeout;
+
+  private int state;
+  private long stateStart;
+  private long lastActivity;
+  private long lastTime;
+
+  /* State 0 is the idle state.  promoteTo and demoteTo give the state each
+   * state moves to on activity and when its timer expires.  timeouts are in
+   * ms with 0 meaning the state has no timer.
+   */
+  public RrcStateMachine(String[] names, int[] promoteTo, int[] demoteTo,
+                         long[] timeout) {
+    this.names = names;
+    this.promoteTo = promoteTo;
+    this.demoteTo = demoteTo;
+    this.timeout = timeout;
+    state = 0;
+    stateStart = lastActivity = lastTime = -1;
+  }
+
+  /* The UMTS machine.  Activity moves IDLE to FACH and FACH to DCH.  After the
+   * given number of seconds without activity DCH drops to FACH and FACH drops
+   * to IDLE.
+   */
+  public static RrcStateMachine umts(double dchFachDelay,
+                                     double fachIdleDelay) {
+    return new RrcStateMachine(UMTS_STATE_NAMES,
+        new int[] {UMTS_FACH, UMTS_DCH, UMTS_DCH},
+        new int[] {UMTS_IDLE, UMTS_IDLE, UMTS_FACH},
+        new long[] {0, toMillis(fachIdleDelay), toMillis(dchFachDelay)});
+  }
+
+  /* The LTE machine.  Any activity puts the radio in continuous reception.
+   * After drxDelay seconds without activity it drops into DRX and after
+   * tailDelay seconds from the last activity it releases the connection.
+   */
+  public static RrcStateMachine lte(double drxDelay, double tailDelay) {
+    return new RrcStateMachine(LTE_STATE_NAMES,
+        new int[] {LTE_CONNECTED, LTE_CONNECTED, LTE_CONNECTED},
+        new int[] {LTE_IDLE, LTE_IDLE, LTE_DRX},
+        new long[] {0, toMillis(Math.max(0, tailDelay - drxDelay)),
+                    toMillis(drxDelay)});
+  }
+
+  /* The GPRS/EDGE machine.  Activity moves IDLE to READY which drops back to
+   * IDLE after readyDelay seconds without activity.
+   */
+  public static RrcStateMachine gsm(double readyDelay) {
+    return new RrcStateMachine(GSM_STATE_NAMES,
+        new int[] {GSM_READY, GSM_READY},
+        new int[] {GSM_IDLE, GSM_IDLE},
+        new long[] {0, toMillis(readyDelay)});
+  }
+
+  private static long toMillis(double seconds) {
+    return Math.max(1, Math.round(seconds * 1000));
+  }
+
+  /* Changes the timer of a state to the given number of seconds. */
+  public void setTimeout(int state, double seconds) {
+    timeout[state] = toMillis(seconds);
+  }
+
+  public int getStateCount() {
+    return names.length;
+  }
+
+  public String[] getStateNames() {
+    return names;
+  }
+
+  /* The state as of the last call to advance(). */
+  public int getState() {
+    return state;
+  }
+
+  public boolean isInitialized() {
+    return lastTime != -1;
+  }
+
+  /* Sets the timer of every state from an array of seconds, 0 meaning no
+   * timer.
+   */
+  public void setTimeouts(double[] seconds) {
+    for(int i = 0; i < timeout.length && i < seconds.length; i++) {
+      timeout[i] = seconds[i] == 0 ? 0 : toMillis(seconds[i]);
+    }
+  }
+
+  /* Takes over from another machine, as when the phone changes network type.
+   * If the old radio wasn't idle the new one starts out in the state that
+   * activity would put it in; otherwise it starts idle.
+   */
+  public void takeOver(RrcStateMachine old) {
+    lastTime = old.lastTime;
+    lastActivity = old.lastActivity;
+    stateStart = old.lastTime;
+    state = old.state == 0 || old.lastTime == -1 ? 0 : promoteTo[0];
+  }
+
+  /* Drops the radio to its idle state as of time now, in ms. */
+  public void reset(long now) {
+    state = 0;
+    stateStart = lastTime = now;
+    lastActivity = -1;
+  }
+
+  /* Runs the timers forward to now adding the seconds spent in each state
+   * since the last call to stateTimes, which should have getStateCount()
+   * elements.  If active is set there was activity since the last call which
+   * promotes the radio as of the start of that interval.
+   */
+  public void advance(long now, boolean active, double[] stateTimes) {
+    if(lastTime == -1) {
+      reset(now);
+    }
+    if(now < lastTime) now = lastTime;
+    long time = lastTime;
+    if(active) {
+      int next = promoteTo[state];
+      if(next != state) {
+        state = next;
+        stateStart = time;
+      }
+      lastActivity = time;
+    }
+    while(timeout[state] != 0) {
+      long deadline = Math.max(lastActivity, stateStart) + timeout[state];
+      if(deadline > now) break;
+      if(deadline > time) {
+        stateTimes[state] += (deadline - time) / 1000.0;
+        time = deadline;
+      }
+      state = demoteTo[state];
+      stateStart = deadline;
+    }
+    stateTimes[state] += (now - time) / 1000.0;
+    lastTime = now;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import edu.umich.PowerTutor.util.ForegroundDetector;
+import edu.umich.PowerTutor.util.SystemInfo;
+import edu.umich.PowerTutor.util.VisibleWindows;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.view.WindowManager;
+
+/* Works out who owns each part of the screen so that display power can be
+ * split between the apps that are visible at once: split screen, overlays and
+ * the system bars.  The screen is divided into a grid of cells, each owned by
+ * the topmost visible window over its centre.  Cells no window covers belong
+ * to the system.
+ *
+ * The windows are only read again after the foreground detector has seen an
+ * event that may have changed them.  If they can't be read the whole screen
+ * belongs to the foreground app as before.
+ *
+ * Window translucency isn't known so a window that shows through to the one
+ * below still owns all of its cells.
+ */
+public class ScreenAttribution {
+  /* Reading the windows starts a process so it isn't done more often than
+   * this however many events come in.
+   */
+  private static final long MIN_WINDOW_READ_MS = 2000;
+
+  private ForegroundDetector foregroundDetector;
+  private VisibleWindows windows;
+  private WindowManager windowManager;
+  private DisplayMetrics metrics;
+
+  private int cols;
+  private int rows;
+  /* The owner index of each cell in row order. */
+  private int[] cellOwners;
+  private int ownerCount;
+  private int[] ownerUids;
+  private int[] ownerCells;
+
+  private int lastRefresh;
+  private long nextWindowRead;
+  private boolean windowsRead;
+
+  /* Uses a grid that is roughly square cells of the screen. */
+  public ScreenAttribution(Context context) {
+    this(context, 0, 0);
+  }
+
+  /* Uses a grid of cols by rows cells.  OLED uses the size of the screen
+   * copy so that each sampled pixel is a cell.
+   */
+  public ScreenAttribution(Context context, int cols, int rows) {
+    foregroundDetector = new ForegroundDetector(context);
+    windows = new VisibleWindows(context);
+    windowManager =
+        (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
+    metrics = new DisplayMetrics();
+    windowManager.getDefaultDisplay().getMetrics(metrics);
+    if(cols <= 0 || rows <= 0) {
+      cols = (int)Math.max(1, Math.round(Math.sqrt(
+          (double)ScreenSource.SAMPLE_PIXELS * metrics.widthPixels /
+          metrics.heightPixels)));
+      rows = Math.max(1, ScreenSource.SAMPLE_PIXELS / cols);
+    }
+    this.cols = cols;
+    this.rows = rows;
+    cellOwners = new int[cols * rows];
+    ownerUids = new int[4];
+    ownerCells = new int[4];
+    lastRefresh = -1;
+    setSingleOwner(SystemInfo.AID_SYSTEM);
+  }
+
+  public void close() {
+    foregroundDetector.close();
+  }
+
+  /* Brings the owners up to date.  Call once an iteration before using the
+   * getters.
+   */
+  public void update() {
+    int uid = foregroundDetector.getForegroundUid();
+    int refresh = foregroundDetector.getRefreshCount();
+    if(refresh != lastRefresh &&
+       SystemClock.elapsedRealtime() >= nextWindowRead) {
+      lastRefresh = refresh;
+      nextWindowRead = SystemClock.elapsedRealtime() + MIN_WINDOW_READ_MS;
+      windowsRead = windows.read();
+      if(windowsRead) {
+        assignCells();
+        return;
+      }
+    }
+    if(!windowsRead && (ownerCount != 1 || ownerUids[0] != uid)) {
+      setSingleOwner(uid);
+    }
+  }
+
+  private void setSingleOwner(int uid) {
+    ownerCount = 1;
+    ownerUids[0] = uid;
+    ownerCells[0] = cellOwners.length;
+    for(int i = 0; i < cellOwners.length; i++) {
+      cellOwners[i] = 0;
+    }
+  }
+
+  private void assignCells() {
+    /* The window frames are in the current orientation. */
+    windowManager.getDefaultDisplay().getMetrics(metrics);
+    float cellWidth = (float)metrics.widthPixels / cols;
+    float cellHeight = (float)metrics.heightPixels / rows;
+    ownerCount = 0;
+    int count = windows.getCount();
+    for(int y = 0; y < rows; y++) {
+      float cy = (y + 0.5f) * cellHeight;
+      for(int x = 0; x < cols; x++) {
+        float cx = (x + 0.5f) * cellWidth;
+        int uid = SystemInfo.AID_SYSTEM;
+        for(int i = 0; i < count; i++) {
+          if(windows.contains(i, cx, cy)) {
+            uid = windows.getUid(i);
+            break;
+          }
+        }
+        cellOwners[y * cols + x] = ownerIndex(uid);
+      }
+    }
+    for(int i = 0; i < ownerCount; i++) {
+      ownerCells[i] = 0;
+    }
+    for(int i = 0; i < cellOwners.length; i++) {
+      ownerCells[cellOwners[i]]++;
+    }
+  }
+
+  private int ownerIndex(int uid) {
+    for(int i = 0; i < ownerCount; i++) {
+      if(ownerUids[i] == uid) return i;
+    }
+    if(ownerCount == ownerUids.length) {
+      int[] nuids = new int[ownerCount * 2];
+      System.arraycopy(ownerUids, 0, nuids, 0, ownerCount);
+      ownerUids = nuids;
+      ownerCells = new int[ownerCount * 2];
+    }
+    ownerUids[ownerCount] = uid;
+    return ownerCount++;
+  }
+
+  public int getOwnerCount() {
+    return ownerCount;
+  }
+
+  public int getOwnerUid(int owner) {
+    return ownerUids[owner];
+  }
+
+  /* The fraction of the screen the owner has. */
+  public double getShare(int owner) {
+    return (double)ownerCells[owner] / cellOwners.length;
+  }
+
+  /* The owner of each cell in row order. */
+  public int[] getCellOwners() {
+    return cellOwners;
+  }
+}
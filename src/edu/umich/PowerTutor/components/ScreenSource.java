@@ -0,0 +1,74 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.components;
+
+import android.util.Log;
+
+/* Where the OLED component gets what is on the screen from.  A source hands
+ * out a downscaled copy of the screen as ARGB pixels so that the pixel power
+ * can be worked out the same way whatever the screen is read from.
+ *
+ * The frame buffer is only a true picture of the screen on older phones;
+ * phones that compose the screen with hardware overlays need the screen to be
+ * captured after composition, which the capture service does.
+ */
+public abstract class ScreenSource {
+  private static final String TAG = "ScreenSource";
+
+  /* The number of pixels the screen is downscaled to. */
+  public static final int SAMPLE_PIXELS = 500;
+
+  /* The display that is the phone's own screen. */
+  public static final int DISPLAY_PRIMARY = 0;
+
+  /* Returns the first source that can read the phone's own screen or null if
+   * there isn't one.  The width and height are those of the screen.
+   */
+  public static ScreenSource find(int screenWidth, int screenHeight) {
+    int cols = (int)Math.max(1, Math.round(
+        Math.sqrt((double)SAMPLE_PIXELS * screenWidth / screenHeight)));
+    int rows = Math.max(1, SAMPLE_PIXELS / cols);
+
+    ScreenSource source = FrameBufferSource.open(DISPLAY_PRIMARY, cols, rows);
+    if(source == null) {
+      source = CaptureServiceSource.open(cols, rows);
+    }
+    if(source == null) {
+      Log.i(TAG, "No way to read the screen, pixel power won't be available");
+    } else {
+      Log.i(TAG, "Reading the screen from the " + source.getName());
+    }
+    return source;
+  }
+
+  public abstract String getName();
+
+  /* The size of the downscaled copy of the screen. */
+  public abstract int getWidth();
+  public abstract int getHeight();
+
+  /* Fills pixels, which should have getWidth() * getHeight() elements, with
+   * the screen in row order.  Returns false if the screen couldn't be read.
+   */
+  public abstract boolean capture(int[] pixels);
+
+  public void close() {
+  }
+}
@@ -21,6 +21,7 @@ package edu.umich.PowerTutor.components;
 
 import edu.umich.PowerTutor.PowerNotifications;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.Recycler;
@@ -33,7 +34,6 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Map;
@@ -63,15 +63,13 @@ public class Sensors extends PowerComponent {
       onTime = new double[MAX_SENSORS];
     }
 
-	  public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
+	  public void writeLogDataInfo(LogSink out) throws IOException {
       for(int i = 0; i < MAX_SENSORS; i++) {
         if(onTime[i] > 1e-7) {
-          res.append("Sensors-time ").append(i).append(" ")
-             .append(onTime[i]).append("\n");
+          out.append("Sensors-time ").append(i).append(' ')
+             .append(onTime[i]).append('\n');
         }
       }
-      out.write(res.toString());
     }
   }
 
@@ -21,23 +21,23 @@ package edu.umich.PowerTutor.components;
 
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
-import edu.umich.PowerTutor.service.PowerEstimator;
 import edu.umich.PowerTutor.util.Recycler;
 import edu.umich.PowerTutor.util.SystemInfo;
+import edu.umich.PowerTutor.util.UidTrafficSampler;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 import android.telephony.TelephonyManager;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 
 public class Threeg extends PowerComponent {
@@ -60,9 +60,17 @@ public class Threeg extends PowerComponent {
     public long uplinkBytes;
     public long downlinkBytes;
     public int powerState;
+    /* The name of the RadioModel the phone was on. */
+    public String radio;
     public String oper;
+    private String[] stateNames;
+    /* The time in seconds spent in each power state since the last iteration
+     * of data.
+     */
+    public double[] stateTimes;
 
     private ThreegData() {
+      stateTimes = new double[RrcStateMachine.MAX_STATES];
     }
 
     public void init() {
@@ -70,48 +78,61 @@ public class Threeg extends PowerComponent {
     }
 
     public void init(long packets, long uplinkBytes, long downlinkBytes,
-                     int powerState, String oper) {
+                     int powerState, String[] stateNames,
+                     double[] stateTimes, String radio,
+                     String oper) {
       threegOn = true;
       this.packets = packets;
       this.uplinkBytes = uplinkBytes;
       this.downlinkBytes = downlinkBytes;
       this.powerState = powerState;
+      this.stateNames = stateNames;
+      for(int i = 0; i < RrcStateMachine.MAX_STATES; i++) {
+        this.stateTimes[i] = i < stateTimes.length ? stateTimes[i] : 0;
+      }
+      this.radio = radio;
       this.oper = oper;
     }
 
-    public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
-      res.append("3G-on ").append(threegOn).append("\n");
+    public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("3G-on ").append(threegOn).append('\n');
       if(threegOn) {
-        res.append("3G-uplinkBytes ").append(uplinkBytes)
+        out.append("3G-uplinkBytes ").append(uplinkBytes)
            .append("\n3G-downlinkBytes ").append(downlinkBytes)
            .append("\n3G-packets ").append(packets)
-           .append("\n3G-state ").append(Threeg.POWER_STATE_NAMES[powerState])
-           .append("\n3G-oper ").append(oper)
-           .append("\n");
+           .append("\n3G-radio ").append(radio)
+           .append("\n3G-state ").append(stateNames[powerState])
+           .append("\n3G-state-times");
+        for(int i = 0; i < stateNames.length; i++) {
+          out.append(' ').append(stateTimes[i]);
+        }
+        out.append("\n3G-oper ").append(oper).append('\n');
       }
-      out.write(res.toString());
     }
   }
 
-  public static final int POWER_STATE_IDLE = 0;
-  public static final int POWER_STATE_FACH = 1;
-  public static final int POWER_STATE_DCH = 2;
-  public static final String[] POWER_STATE_NAMES = {"IDLE", "FACH", "DCH"};
+  /* The UMTS states.  Other radios have their own states, see RadioModel. */
+  public static final int POWER_STATES = 3;
+  public static final int POWER_STATE_IDLE = RrcStateMachine.UMTS_IDLE;
+  public static final int POWER_STATE_FACH = RrcStateMachine.UMTS_FACH;
+  public static final int POWER_STATE_DCH = RrcStateMachine.UMTS_DCH;
+  public static final String[] POWER_STATE_NAMES =
+      RrcStateMachine.UMTS_STATE_NAMES;
 
   private static final String TAG = "Threeg";
 
   private PhoneConstants phoneConstants;
   private TelephonyManager telephonyManager;
   private SystemInfo sysInfo;
+  private UidTrafficSampler trafficSampler;
 
+  private String interfaceName;
   private String oper;
-  private int dchFachDelay;
-  private int fachIdleDelay;
+  private RadioModel radio;
+  private double[] radioTimers;
   private int uplinkQueueSize;
   private int downlinkQueueSize;
   
-  private int[] lastUids;
   private ThreegStateKeeper threegState;
   private SparseArray<ThreegStateKeeper> uidStates;
 
@@ -119,14 +140,13 @@ public class Threeg extends PowerComponent {
   private String readPacketsFile;
   private String readBytesFile;
   private String transBytesFile;
-  private File uidStatsFolder;
 
   public Threeg(Context context, PhoneConstants phoneConstants) {
     this.phoneConstants = phoneConstants;
     telephonyManager = (TelephonyManager)context.getSystemService(
                            Context.TELEPHONY_SERVICE);
 
-    String interfaceName = phoneConstants.threegInterface();
+    interfaceName = phoneConstants.threegInterface();
     threegState = new ThreegStateKeeper();
     uidStates = new SparseArray<ThreegStateKeeper>();
     transPacketsFile = "/sys/devices/virtual/net/" +
@@ -137,25 +157,16 @@ public class Threeg extends PowerComponent {
                     interfaceName + "/statistics/rx_bytes";
     transBytesFile = "/sys/devices/virtual/net/" +
                      interfaceName + "/statistics/tx_bytes";
-    uidStatsFolder = new File("/proc/uid_stat");
     sysInfo = SystemInfo.getInstance();
+    trafficSampler = UidTrafficSampler.getInstance(context);
+    trafficSampler.addInterface(interfaceName, ConnectivityManager.TYPE_MOBILE);
   }
 
   @Override
   public IterationData calculateIteration(long iteration) {
     IterationData result = IterationData.obtain();
 
-    int netType = telephonyManager.getNetworkType();
-
-    if((netType != TelephonyManager.NETWORK_TYPE_UMTS &&
-        netType != 8/* TelephonyManager.NETWORK_TYPE_HSDPA */)) {
-      // TODO: Actually get models for the different network types.
-      netType = TelephonyManager.NETWORK_TYPE_UMTS;
-    }
-
-    if(telephonyManager.getDataState() != TelephonyManager.DATA_CONNECTED ||
-       (netType != TelephonyManager.NETWORK_TYPE_UMTS &&
-        netType != 8/* TelephonyManager.NETWORK_TYPE_HSDPA */)) {
+    if(telephonyManager.getDataState() != TelephonyManager.DATA_CONNECTED) {
       /* We need to allow the real iterface state keeper to reset it's state
        * so that the next update it knows it's coming back from an off state.
        * We also need to clear all the uid information.
@@ -170,10 +181,15 @@ public class Threeg extends PowerComponent {
       return result;
     }
 
-    if(oper == null) {
+    /* The radio model follows the network type so that a handover between,
+     * say, HSPA and LTE switches state machines and coefficients.
+     */
+    RadioModel model =
+        RadioModel.forNetworkType(telephonyManager.getNetworkType());
+    if(oper == null || model != radio) {
       oper = telephonyManager.getNetworkOperatorName();
-      dchFachDelay = phoneConstants.threegDchFachDelay(oper);
-      fachIdleDelay = phoneConstants.threegFachIdleDelay(oper);
+      radio = model;
+      radioTimers = phoneConstants.radioStateTimers(radio.getName(), oper);
       uplinkQueueSize = phoneConstants.threegUplinkQueue(oper);
       downlinkQueueSize = phoneConstants.threegDownlinkQueue(oper);
     }
@@ -191,65 +207,51 @@ public class Threeg extends PowerComponent {
     if(threegState.isInitialized()) {
       threegState.updateState(transmitPackets, receivePackets,
                               transmitBytes, receiveBytes,
-                              dchFachDelay, fachIdleDelay,
+                              radio, radioTimers,
                               uplinkQueueSize, downlinkQueueSize);
       ThreegData data = ThreegData.obtain();
       data.init(threegState.getPackets(), threegState.getUplinkBytes(),
                 threegState.getDownlinkBytes(), threegState.getPowerState(),
-                oper);
+                threegState.getStateNames(), threegState.getStateTimes(),
+                radio.getName(), oper);
       result.setPowerData(data);
     } else {
       threegState.updateState(transmitPackets, receivePackets,
                               transmitBytes, receiveBytes,
-                              dchFachDelay, fachIdleDelay,
+                              radio, radioTimers,
                               uplinkQueueSize, downlinkQueueSize);
     }
 
-    lastUids = sysInfo.getUids(lastUids);
-    if(lastUids != null) for(int uid : lastUids) {
-      if(uid == -1) {
-        continue;
+    /* Go through every uid that has used the interface so that the state of
+     * the ones that have gone quiet is kept up to date too.
+     */
+    UidTrafficSampler.Traffic traffic =
+        trafficSampler.getTraffic(iteration, interfaceName);
+    for(int i = 0; i < traffic.size(); i++) {
+      int uid = traffic.getUid(i);
+      ThreegStateKeeper uidState = uidStates.get(uid);
+      if(uidState == null) {
+        uidState = new ThreegStateKeeper();
+        uidStates.put(uid, uidState);
       }
-      try {
-        ThreegStateKeeper uidState = uidStates.get(uid);
-        if(uidState == null) {
-          uidState = new ThreegStateKeeper();
-          uidStates.put(uid, uidState);
-        }
 
-        if(!uidState.isStale()) {
-          /* We use a huerstic here so that we don't poll for uids that haven't
-           * had much activity recently.
-           */
-          continue;
-        }
-          
-        /* These read operations are the expensive part of polling. */
-        receiveBytes = readLongFromFile("/proc/uid_stat/" + uid + "/tcp_rcv");
-        transmitBytes = readLongFromFile("/proc/uid_stat/" + uid + "/tcp_snd");
-
-        if(receiveBytes == -1 || transmitBytes == -1) {
-          Log.w(TAG, "Failed to read uid read/write byte counts");
-        } else if(uidState.isInitialized()) {
-          uidState.updateState(-1, -1, transmitBytes, receiveBytes,
-                               dchFachDelay, fachIdleDelay,
-                               uplinkQueueSize, downlinkQueueSize);
-
-          if(uidState.getUplinkBytes() + uidState.getDownlinkBytes() != 0 ||
-             uidState.getPowerState() != POWER_STATE_IDLE) {
-            ThreegData uidData = ThreegData.obtain();
-            uidData.init(uidState.getPackets(),
-                         uidState.getUplinkBytes(), uidState.getDownlinkBytes(),
-                         uidState.getPowerState(), oper);
-            result.addUidPowerData(uid, uidData);
-          }
-        } else {
-          uidState.updateState(-1, -1, transmitBytes, receiveBytes,
-                               dchFachDelay, fachIdleDelay,
-                               uplinkQueueSize, downlinkQueueSize);
-        }
-      } catch(NumberFormatException e) {
-        Log.w(TAG, "Non-uid files in /proc/uid_stat");
+      receiveBytes = traffic.getRxBytes(i);
+      transmitBytes = traffic.getTxBytes(i);
+      boolean initialized = uidState.isInitialized();
+      uidState.updateState(traffic.getTxPackets(i),
+                           traffic.getRxPackets(i),
+                           transmitBytes, receiveBytes,
+                           radio, radioTimers,
+                           uplinkQueueSize, downlinkQueueSize);
+      if(initialized &&
+         (uidState.getUplinkBytes() + uidState.getDownlinkBytes() != 0 ||
+          !uidState.isIdle())) {
+        ThreegData uidData = ThreegData.obtain();
+        uidData.init(uidState.getPackets(),
+                     uidState.getUplinkBytes(), uidState.getDownlinkBytes(),
+                     uidState.getPowerState(), uidState.getStateNames(),
+                     uidState.getStateTimes(), radio.getName(), oper);
+        result.addUidPowerData(uid, uidData);
       }
     }
 
@@ -267,22 +269,32 @@ public class Threeg extends PowerComponent {
     private long deltaUplinkBytes;
     private long deltaDownlinkBytes;
 
-    private int powerState;
-    private int stateTime;
-
-    private long inactiveTime;
+    private RadioModel radio;
+    private RrcStateMachine rrc;
+    private double[] stateTimes;
 
     public ThreegStateKeeper() {
       lastTransmitBytes = lastReceiveBytes = lastTime = -1;
       deltaUplinkBytes = deltaDownlinkBytes = -1;
-      powerState = POWER_STATE_IDLE;
-      stateTime = 0;
-      inactiveTime = 0;
+      setRadio(RadioModel.forNetworkType(TelephonyManager.NETWORK_TYPE_UMTS));
+    }
+
+    /* Switches to the state machine of another radio.  The byte counters
+     * carry on as they are since the interface is the same.
+     */
+    private void setRadio(RadioModel radio) {
+      RrcStateMachine next = radio.newMachine();
+      if(rrc != null) {
+        next.takeOver(rrc);
+      }
+      this.radio = radio;
+      rrc = next;
+      stateTimes = new double[rrc.getStateCount()];
     }
 
     public void interfaceOff() {
       lastTime = SystemClock.elapsedRealtime();
-      powerState = POWER_STATE_IDLE;
+      rrc.reset(lastTime);
     }
 
     public boolean isInitialized() {
@@ -291,59 +303,25 @@ public class Threeg extends PowerComponent {
 
     public void updateState(long transmitPackets, long receivePackets,
                             long transmitBytes, long receiveBytes,
-                            int dchFachDelay, int fachIdleDelay,
+                            RadioModel radio, double[] timers,
                             int uplinkQueueSize, int downlinkQueueSize) {
       long curTime = SystemClock.elapsedRealtime();
+      if(radio != this.radio) {
+        setRadio(radio);
+      }
+      for(int i = 0; i < stateTimes.length; i++) {
+        stateTimes[i] = 0;
+      }
+      rrc.setTimeouts(timers);
       if(lastTime != -1 && curTime > lastTime) {
-        double deltaTime = curTime - lastTime;
         deltaPackets = transmitPackets + receivePackets -
                        lastTransmitPackets - lastReceivePackets;
         deltaUplinkBytes = transmitBytes - lastTransmitBytes;
         deltaDownlinkBytes = receiveBytes - lastReceiveBytes;
         boolean inactive = deltaUplinkBytes == 0 && deltaDownlinkBytes == 0;
-        inactiveTime = inactive ? inactiveTime + curTime - lastTime : 0;
-
-        // TODO: make this always work.
-        int timeMult = 1;
-        if(1000 % PowerEstimator.ITERATION_INTERVAL != 0) {
-          Log.w(TAG,
-            "Cannot handle iteration intervals that are a factor of 1 second");
-        } else {
-          timeMult = 1000 / PowerEstimator.ITERATION_INTERVAL;
-        }
-
-        switch(powerState) {
-          case POWER_STATE_IDLE:
-            if(!inactive) {
-              powerState = POWER_STATE_FACH;
-            }
-            break;
-          case POWER_STATE_FACH:
-            if(inactive) {
-              stateTime++;
-              if(stateTime >= fachIdleDelay * timeMult) {
-                stateTime = 0;
-                powerState = POWER_STATE_IDLE;
-              }
-            } else {
-              stateTime = 0;
-              if(deltaUplinkBytes > 0 ||
-                 deltaDownlinkBytes > 0) {
-                powerState = POWER_STATE_DCH;
-              }
-            }
-            break;
-          default: // case POWER_STATE_DCH:
-            if(inactive) {
-              stateTime++;
-              if(stateTime >= dchFachDelay * timeMult) {
-                stateTime = 0;
-                powerState = POWER_STATE_FACH;
-              }
-            } else {
-              stateTime = 0;
-            }
-        }
+        rrc.advance(curTime, !inactive, stateTimes);
+      } else {
+        rrc.reset(curTime);
       }
       lastTime = curTime;
       lastTransmitPackets = transmitPackets;
@@ -353,7 +331,23 @@ public class Threeg extends PowerComponent {
     }
 
     public int getPowerState() {
-      return powerState;
+      return rrc.getState();
+    }
+
+    public String[] getStateNames() {
+      return rrc.getStateNames();
+    }
+
+    public double[] getStateTimes() {
+      return stateTimes;
+    }
+
+    /* Returns true if the radio spent the whole last update idle. */
+    public boolean isIdle() {
+      for(int i = 1; i < stateTimes.length; i++) {
+        if(stateTimes[i] > 0) return false;
+      }
+      return rrc.getState() == 0;
     }
 
     public long getPackets() {
@@ -367,17 +361,6 @@ public class Threeg extends PowerComponent {
     public long getDownlinkBytes() {
       return deltaDownlinkBytes;
     }
-
-    /* The idea here is that we don't want to have to read uid information
-     * every single iteration for each uid as it just takes too long.  So here
-     * we are designing a hueristic that helps us avoid polling for too many
-     * uids.
-     */
-    public boolean isStale() {
-      if(powerState != POWER_STATE_IDLE) return true;
-      long curTime = SystemClock.elapsedRealtime();
-      return curTime - lastTime > (long)Math.min(10000, inactiveTime);
-    }
   }
 
   private final static byte[] buf = new byte[16];
@@ -388,7 +371,7 @@ public class Threeg extends PowerComponent {
 
   @Override
   public boolean hasUidInformation() {
-    return uidStatsFolder.exists();
+    return trafficSampler.isAvailable();
   }
 
   @Override
@@ -19,20 +19,22 @@ Please send inquiries to powertutor@umich.edu
 
 package edu.umich.PowerTutor.components;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.LogSink;
 import edu.umich.PowerTutor.service.PowerData;
+import edu.umich.PowerTutor.util.HighRateSampler;
 import edu.umich.PowerTutor.util.Recycler;
 import edu.umich.PowerTutor.util.SystemInfo;
+import edu.umich.PowerTutor.util.UidTrafficSampler;
 
 public class Wifi extends PowerComponent {
   public static class WifiData extends PowerData {
@@ -56,12 +58,19 @@ public class Wifi extends PowerComponent {
     public double uplinkRate;
     public double linkSpeed;
     public int powerState;
+    /* The time in seconds spent in each power state since the last iteration
+     * of data and the uplink rate while in the high state.
+     */
+    public double[] stateTimes;
+    public double highUplinkRate;
 
     private WifiData() {
+      stateTimes = new double[POWER_STATES];
     }
 
     public void init(double packets, long uplinkBytes, long downlinkBytes,
-                     double uplinkRate, double linkSpeed, int powerState) {
+                     double uplinkRate, double linkSpeed, int powerState,
+                     double[] stateTimes, double highUplinkRate) {
       wifiOn = true;
       this.packets = packets;
       this.uplinkBytes = uplinkBytes;
@@ -69,28 +78,35 @@ public class Wifi extends PowerComponent {
       this.uplinkRate = uplinkRate;
       this.linkSpeed = linkSpeed;
       this.powerState = powerState;
+      for(int i = 0; i < POWER_STATES; i++) {
+        this.stateTimes[i] = stateTimes[i];
+      }
+      this.highUplinkRate = highUplinkRate;
     }
 
     public void init() {
       wifiOn = false;
     }
 
-    public void writeLogDataInfo(OutputStreamWriter out) throws IOException {
-      StringBuilder res = new StringBuilder();
-      res.append("Wifi-on ").append(wifiOn).append("\n");
+    public void writeLogDataInfo(LogSink out) throws IOException {
+      out.append("Wifi-on ").append(wifiOn).append('\n');
       if(wifiOn) {
-        res.append("Wifi-packets ").append((long)Math.round(packets))
+        out.append("Wifi-packets ").append((long)Math.round(packets))
            .append("\nWifi-uplinkBytes ").append(uplinkBytes)
            .append("\nWifi-downlinkBytes ").append(downlinkBytes)
            .append("\nWifi-uplink ").append((long)Math.round(uplinkRate))
            .append("\nWifi-speed ").append((long)Math.round(linkSpeed))
            .append("\nWifi-state ").append(Wifi.POWER_STATE_NAMES[powerState])
-           .append("\n");
+           .append("\nWifi-state-times");
+        for(int i = 0; i < POWER_STATES; i++) {
+          out.append(' ').append(stateTimes[i]);
+        }
+        out.append('\n');
       }
-      out.write(res.toString());
     }
   }
 
+  public static final int POWER_STATES = 2;
   public static final int POWER_STATE_LOW = 0;
   public static final int POWER_STATE_HIGH = 1;
   public static final String[] POWER_STATE_NAMES = {"LOW", "HIGH"};
@@ -100,17 +116,19 @@ public class Wifi extends PowerComponent {
   private PhoneConstants phoneConstants;
   private WifiManager wifiManager;
   private SystemInfo sysInfo;
+  private UidTrafficSampler trafficSampler;
   
+  private String interfaceName;
   private long lastLinkSpeed;
-  private int[] lastUids;
   private WifiStateKeeper wifiState;
   private SparseArray<WifiStateKeeper> uidStates;
+  private PacketRateSampler sampler;
+  private double[] sampleTimes;
 
   private String transPacketsFile;
   private String readPacketsFile;
   private String transBytesFile;
   private String readBytesFile;
-  private File uidStatsFolder;
 
   public Wifi(Context context, PhoneConstants phoneConstants) {
     this.phoneConstants = phoneConstants;
@@ -120,7 +138,7 @@ public class Wifi extends PowerComponent {
     /* Try to grab the interface name.  If we can't find it will take a wild
      * stab in the dark.
      */
-    String interfaceName = SystemInfo.getInstance().getProperty("wifi.interface");
+    interfaceName = SystemInfo.getInstance().getProperty("wifi.interface");
     if(interfaceName == null) interfaceName = "eth0";
     
     lastLinkSpeed = -1;
@@ -135,7 +153,19 @@ public class Wifi extends PowerComponent {
                      interfaceName + "/statistics/tx_bytes";
     readBytesFile = "/sys/devices/virtual/net/" +
                     interfaceName + "/statistics/rx_bytes";
-    uidStatsFolder = new File("/proc/uid_stat");
+    trafficSampler = UidTrafficSampler.getInstance(context);
+    trafficSampler.addInterface(interfaceName, ConnectivityManager.TYPE_WIFI);
+    sampler = new PacketRateSampler(transPacketsFile, readPacketsFile,
+                                    transBytesFile,
+                                    phoneConstants.wifiHighLowTransition(),
+                                    phoneConstants.wifiLowHighTransition());
+    sampleTimes = new double[POWER_STATES];
+    HighRateSampler.getInstance().addProbe(sampler);
+  }
+
+  @Override
+  protected void onExit() {
+    HighRateSampler.getInstance().removeProbe(sampler);
   }
 
   @Override
@@ -152,6 +182,7 @@ public class Wifi extends PowerComponent {
       wifiState.interfaceOff();
       uidStates.clear();
       lastLinkSpeed = -1;
+      sampler.drain(sampleTimes);
 
       WifiData data = WifiData.obtain();
       data.init();
@@ -182,45 +213,46 @@ public class Wifi extends PowerComponent {
     if(wifiState.isInitialized()) {
       wifiState.updateState(transmitPackets, receivePackets,
                             transmitBytes, receiveBytes);
+      /* Prefer the residency seen by the sampler over the state guessed from
+       * the packet count of the whole second.
+       */
+      long highTransmitBytes = sampler.drain(sampleTimes);
+      if(highTransmitBytes != -1) {
+        wifiState.useSamples(sampleTimes, highTransmitBytes);
+      }
       WifiData data = WifiData.obtain();
       data.init(wifiState.getPackets(), wifiState.getUplinkBytes(),
                 wifiState.getDownlinkBytes(), wifiState.getUplinkRate(),
-                linkSpeed, wifiState.getPowerState());
+                linkSpeed, wifiState.getPowerState(),
+                wifiState.getStateTimes(), wifiState.getHighUplinkRate());
       result.setPowerData(data);
     } else {
       wifiState.updateState(transmitPackets, receivePackets,
                             transmitBytes, receiveBytes);
+      sampler.drain(sampleTimes);
     }
 
-    lastUids = sysInfo.getUids(lastUids);
-    if(lastUids != null) for(int uid : lastUids) {
-      if(uid == -1) {
-        continue;
+    /* Go through every uid that has used the interface so that the state of
+     * the ones that have gone quiet is kept up to date too.
+     */
+    UidTrafficSampler.Traffic traffic =
+        trafficSampler.getTraffic(iteration, interfaceName);
+    for(int i = 0; i < traffic.size(); i++) {
+      int uid = traffic.getUid(i);
+      WifiStateKeeper uidState = uidStates.get(uid);
+      if(uidState == null) {
+        uidState = new WifiStateKeeper(phoneConstants.wifiHighLowTransition(),
+                                  phoneConstants.wifiLowHighTransition());
+        uidStates.put(uid, uidState);
       }
-      try {
-        WifiStateKeeper uidState = uidStates.get(uid);
-        if(uidState == null) {
-          uidState = new WifiStateKeeper(phoneConstants.wifiHighLowTransition(),
-                                    phoneConstants.wifiLowHighTransition());
-          uidStates.put(uid, uidState);
-        }
 
-        if(!uidState.isStale()) {
-          /* We use a huerstic here so that we don't poll for uids that haven't
-           * had much activity recently.
-           */
-          continue;
-        }
-          
-        /* These read operations are the expensive part of polling. */
-        receiveBytes = sysInfo.readLongFromFile(
-            "/proc/uid_stat/" + uid + "/tcp_rcv");
-        transmitBytes = sysInfo.readLongFromFile(
-            "/proc/uid_stat/" + uid + "/tcp_snd");
-
-        if(receiveBytes == -1 || transmitBytes == -1) {
-          Log.w(TAG, "Failed to read uid read/write byte counts");
-        } else if(uidState.isInitialized()) {
+      receiveBytes = traffic.getRxBytes(i);
+      transmitBytes = traffic.getTxBytes(i);
+      long uidReceivePackets = traffic.getRxPackets(i);
+      long uidTransmitPackets = traffic.getTxPackets(i);
+
+      if(uidState.isInitialized()) {
+        if(uidReceivePackets == -1 || uidTransmitPackets == -1) {
           /* We only have information about bytes received but what we really
            * want is the number of packets received so we just have to
            * estimate it.
@@ -237,26 +269,33 @@ public class Wifi extends PowerComponent {
           if(deltaReceiveBytes > 0 && estimatedReceivePackets == 0) {
             estimatedReceivePackets = 1;
           }
+          uidTransmitPackets = uidState.getTransmitPackets() +
+                               estimatedTransmitPackets;
+          uidReceivePackets = uidState.getReceivePackets() +
+                              estimatedReceivePackets;
+        }
 
-          boolean active = transmitBytes != uidState.getTransmitBytes() ||
-                           receiveBytes != uidState.getReceiveBytes();
-          uidState.updateState(
-              uidState.getTransmitPackets() + estimatedTransmitPackets,
-              uidState.getReceivePackets() + estimatedReceivePackets,
-              transmitBytes, receiveBytes);
-
-          if(active) {
-            WifiData uidData = WifiData.obtain();
-            uidData.init(uidState.getPackets(), uidState.getUplinkBytes(),
-                         uidState.getDownlinkBytes(), uidState.getUplinkRate(),
-                         linkSpeed, uidState.getPowerState());
-            result.addUidPowerData(uid, uidData);
-          }
-        } else {
-          uidState.updateState(0, 0, transmitBytes, receiveBytes);
+        boolean active = transmitBytes != uidState.getTransmitBytes() ||
+                         receiveBytes != uidState.getReceiveBytes();
+        uidState.updateState(uidTransmitPackets, uidReceivePackets,
+                             transmitBytes, receiveBytes);
+        if(wifiState.hasSamples()) {
+          uidState.shareSamples(wifiState);
         }
-      } catch(NumberFormatException e) {
-        Log.w(TAG, "Non-uid files in /proc/uid_stat");
+
+        if(active) {
+          WifiData uidData = WifiData.obtain();
+          uidData.init(uidState.getPackets(), uidState.getUplinkBytes(),
+                       uidState.getDownlinkBytes(), uidState.getUplinkRate(),
+                       linkSpeed, uidState.getPowerState(),
+                       uidState.getStateTimes(), uidState.getHighUplinkRate());
+          result.addUidPowerData(uid, uidData);
+        }
+      } else if(uidReceivePackets == -1 || uidTransmitPackets == -1) {
+        uidState.updateState(0, 0, transmitBytes, receiveBytes);
+      } else {
+        uidState.updateState(uidTransmitPackets, uidReceivePackets,
+                             transmitBytes, receiveBytes);
       }
     }
 
@@ -279,11 +318,14 @@ public class Wifi extends PowerComponent {
     private long deltaUplinkBytes;
     private long deltaDownlinkBytes;
 
+    private double[] stateTimes;
+    private double highUplinkRate;
+    private long highTransmitBytes;
+    private boolean sampled;
+
     private double highLowTransition;
     private double lowHighTransition;
 
-    private long inactiveTime;
-
     public WifiStateKeeper(double highLowTransition, double lowHighTransition) {
       this.highLowTransition = highLowTransition;
       this.lowHighTransition = lowHighTransition;
@@ -293,7 +335,7 @@ public class Wifi extends PowerComponent {
       lastPackets = lastUplinkRate = 0;
       lastAverageTransmitPacketSize = 1000;
       lastAverageReceivePacketSize = 1000;
-      inactiveTime = 0;
+      stateTimes = new double[POWER_STATES];
     }
 
     public void interfaceOff() {
@@ -308,6 +350,9 @@ public class Wifi extends PowerComponent {
     public void updateState(long transmitPackets, long receivePackets,
                             long transmitBytes, long receiveBytes) {
       long curTime = SystemClock.elapsedRealtime();
+      stateTimes[POWER_STATE_LOW] = stateTimes[POWER_STATE_HIGH] = 0;
+      highUplinkRate = 0;
+      sampled = false;
       if(lastTime != -1 && curTime > lastTime) {
         double deltaTime = curTime - lastTime;
         lastUplinkRate = (transmitBytes - lastTransmitBytes) / 1024.0 *
@@ -327,18 +372,15 @@ public class Wifi extends PowerComponent {
                                   (receivePackets - lastReceivePackets);
         }
 
-        if(receiveBytes != lastReceiveBytes ||
-           transmitBytes != lastTransmitBytes) {
-          inactiveTime = 0;
-        } else {
-          inactiveTime += curTime - lastTime;
-        }
-
         if(lastPackets < highLowTransition) {
           powerState = POWER_STATE_LOW;
         } else if(lastPackets > lowHighTransition) {
           powerState = POWER_STATE_HIGH;
         }
+        stateTimes[powerState] = deltaTime / 1000.0;
+        if(powerState == POWER_STATE_HIGH) {
+          highUplinkRate = lastUplinkRate;
+        }
       }
       lastTime = curTime;
       lastTransmitPackets = transmitPackets;
@@ -347,10 +389,69 @@ public class Wifi extends PowerComponent {
       lastReceiveBytes = receiveBytes;
     }
 
+    /* Replaces the state times guessed by updateState() with the ones seen by
+     * the sampler over the same period.
+     */
+    public void useSamples(double[] times, long highTransmitBytes) {
+      double interval = stateTimes[POWER_STATE_LOW] +
+                        stateTimes[POWER_STATE_HIGH];
+      double total = times[POWER_STATE_LOW] + times[POWER_STATE_HIGH];
+      if(total <= 0) return;
+      /* The sampler's period doesn't line up exactly with ours so just take
+       * its proportions.
+       */
+      stateTimes[POWER_STATE_HIGH] = interval * times[POWER_STATE_HIGH] / total;
+      stateTimes[POWER_STATE_LOW] = interval - stateTimes[POWER_STATE_HIGH];
+      this.highTransmitBytes = highTransmitBytes;
+      highUplinkRate = uplinkRate(highTransmitBytes,
+                                  times[POWER_STATE_HIGH]);
+      powerState = times[POWER_STATE_HIGH] > times[POWER_STATE_LOW] ?
+                   POWER_STATE_HIGH : POWER_STATE_LOW;
+      sampled = true;
+    }
+
+    /* Splits the sampled high state time of the interface between the uids by
+     * their share of its packets.  The uid counters are too expensive to read
+     * at the sampler's rate.
+     */
+    public void shareSamples(WifiStateKeeper iface) {
+      double interval = stateTimes[POWER_STATE_LOW] +
+                        stateTimes[POWER_STATE_HIGH];
+      double packetShare = iface.lastPackets <= 0 ? 0 :
+                           Math.min(1, lastPackets / iface.lastPackets);
+      double high = Math.min(interval,
+                             iface.stateTimes[POWER_STATE_HIGH] * packetShare);
+      stateTimes[POWER_STATE_HIGH] = high;
+      stateTimes[POWER_STATE_LOW] = interval - high;
+      double uplinkShare = iface.deltaUplinkBytes <= 0 ? 0 :
+          Math.min(1, (double)deltaUplinkBytes / iface.deltaUplinkBytes);
+      highTransmitBytes = (long)(iface.highTransmitBytes * uplinkShare);
+      highUplinkRate = uplinkRate(highTransmitBytes, high);
+      powerState = high > interval - high ? POWER_STATE_HIGH : POWER_STATE_LOW;
+      sampled = true;
+    }
+
+    /* Uses the same units as lastUplinkRate. */
+    private static double uplinkRate(long bytes, double seconds) {
+      return seconds <= 0 ? 0 : bytes / 1024.0 * 7.8125 / (seconds * 1000);
+    }
+
+    public boolean hasSamples() {
+      return sampled;
+    }
+
     public int getPowerState() {
       return powerState;
     }
 
+    public double[] getStateTimes() {
+      return stateTimes;
+    }
+
+    public double getHighUplinkRate() {
+      return highUplinkRate;
+    }
+
     public double getPackets() {
       return lastPackets;
     }
@@ -390,15 +491,88 @@ public class Wifi extends PowerComponent {
     public long getReceiveBytes() {
       return lastReceiveBytes;
     }
+  }
 
-    /* The idea here is that we don't want to have to read uid information
-     * every single iteration for each uid as it just takes too long.  So here
-     * we are designing a hueristic that helps us avoid polling for too many
-     * uids.
+  /* Reads the interface's packet counters on every sample of the
+   * HighRateSampler and keeps track of the time spent in each power state.
+   * The same thresholds as WifiStateKeeper are used, applied to the rate over
+   * each sample, so that a burst shorter than an iteration is charged for as
+   * long as it lasted rather than for the whole second or not at all.
+   */
+  private static class PacketRateSampler implements HighRateSampler.Probe {
+    private HighRateSampler.CounterFile transPackets;
+    private HighRateSampler.CounterFile readPackets;
+    private HighRateSampler.CounterFile transBytes;
+    private double highLowTransition;
+    private double lowHighTransition;
+
+    private long lastTime;
+    private long lastPackets;
+    private long lastTransmitBytes;
+    private int powerState;
+
+    /* Guarded by this. */
+    private double[] stateTimes;
+    private long highTransmitBytes;
+    private boolean hasSamples;
+
+    public PacketRateSampler(String transPacketsFile, String readPacketsFile,
+                             String transBytesFile, double highLowTransition,
+                             double lowHighTransition) {
+      transPackets = new HighRateSampler.CounterFile(transPacketsFile);
+      readPackets = new HighRateSampler.CounterFile(readPacketsFile);
+      transBytes = new HighRateSampler.CounterFile(transBytesFile);
+      this.highLowTransition = highLowTransition;
+      this.lowHighTransition = lowHighTransition;
+      stateTimes = new double[POWER_STATES];
+      lastTime = -1;
+      powerState = POWER_STATE_LOW;
+    }
+
+    public void sample(long curTime) {
+      long transmitPackets = transPackets.read();
+      long receivePackets = readPackets.read();
+      long transmitBytes = transBytes.read();
+      if(transmitPackets == -1 || receivePackets == -1 ||
+         transmitBytes == -1) {
+        lastTime = -1;
+        return;
+      }
+      long packets = transmitPackets + receivePackets;
+      if(lastTime != -1 && curTime > lastTime && packets >= lastPackets) {
+        double deltaTime = (curTime - lastTime) / 1000.0;
+        double rate = (packets - lastPackets) / deltaTime;
+        if(rate < highLowTransition) {
+          powerState = POWER_STATE_LOW;
+        } else if(rate > lowHighTransition) {
+          powerState = POWER_STATE_HIGH;
+        }
+        synchronized(this) {
+          stateTimes[powerState] += deltaTime;
+          if(powerState == POWER_STATE_HIGH) {
+            highTransmitBytes += transmitBytes - lastTransmitBytes;
+          }
+          hasSamples = true;
+        }
+      }
+      lastTime = curTime;
+      lastPackets = packets;
+      lastTransmitBytes = transmitBytes;
+    }
+
+    /* Copies the seconds spent in each state since the last call into times
+     * and returns the bytes transmitted while in the high state.  Returns -1
+     * if there haven't been any samples, as when the HighRateSampler is off.
      */
-    public boolean isStale() {
-      long curTime = SystemClock.elapsedRealtime();
-      return curTime - lastTime > (long)Math.min(10000, inactiveTime);
+    public synchronized long drain(double[] times) {
+      long result = hasSamples ? highTransmitBytes : -1;
+      for(int i = 0; i < POWER_STATES; i++) {
+        times[i] = stateTimes[i];
+        stateTimes[i] = 0;
+      }
+      highTransmitBytes = 0;
+      hasSamples = false;
+      return result;
     }
   }
 
@@ -408,7 +582,7 @@ public class Wifi extends PowerComponent {
 
   @Override
   public boolean hasUidInformation() {
-    return uidStatsFolder.exists();
+    return trafficSampler.isAvailable();
   }
 
   @Override
@@ -0,0 +1,578 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.phone;
+
+import edu.umich.PowerTutor.components.Audio;
+import edu.umich.PowerTutor.components.GPS;
+import edu.umich.PowerTutor.components.RadioModel;
+import edu.umich.PowerTutor.components.Sensors;
+import edu.umich.PowerTutor.components.Threeg;
+import edu.umich.PowerTutor.components.Wifi;
+import edu.umich.PowerTutor.components.Audio.AudioData;
+import edu.umich.PowerTutor.components.CPU.CpuData;
+import edu.umich.PowerTutor.components.GPS.GpsData;
+import edu.umich.PowerTutor.components.LCD.LcdData;
+import edu.umich.PowerTutor.components.OLED.OledData;
+import edu.umich.PowerTutor.components.Sensors.SensorData;
+import edu.umich.PowerTutor.components.Threeg.ThreegData;
+import edu.umich.PowerTutor.components.Wifi.WifiData;
+import edu.umich.PowerTutor.service.IterationData;
+import edu.umich.PowerTutor.service.PowerData;
+import edu.umich.PowerTutor.util.RecursiveLeastSquares;
+import edu.umich.PowerTutor.util.SystemInfo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/* PhoneConstants whose coefficients are fit on the phone itself.  Each
+ * iteration the hardware state reported by the components is turned into a
+ * vector of features, one for each coefficient of the power model, so that the
+ * model's total power is the dot product of the coefficients with the
+ * features.  These are regressed against the power measured at the battery
+ * using recursive least squares starting from the constants of the phone this
+ * wraps.
+ *
+ * Until enough samples have been seen all of the constants are simply those of
+ * the wrapped phone.  Constants that aren't part of the fit such as the 3G
+ * timers are always passed through.  The fitted 3G powers apply to whatever
+ * operator the phone was on.
+ */
+public class CalibratedConstants implements PhoneConstants {
+  private static final String TAG = "CalibratedConstants";
+
+  /* Samples are averaged over this many iterations before being fit.  The
+   * battery's current reading lags the actual draw, averaging evens that out.
+   */
+  private static final int SAMPLE_ITERATIONS = 10;
+
+  /* The number of fits needed before the calibrated constants are used. */
+  private static final int MIN_UPDATES = 60;
+
+  /* Gives an effective memory of about three hours of samples. */
+  private static final double FORGETTING_FACTOR = 0.999;
+
+  /* Standard deviation of the prior as a fraction of the prior value. */
+  private static final double PRIOR_SPREAD = 1.0;
+
+  /* Standard deviation of the prior for the power not covered by the model. */
+  private static final double BASE_SPREAD = 100.0;
+
+  /* Standard deviation of the prior for the per satellite GPS power which the
+   * built in phones leave at 0.
+   */
+  private static final double GPS_FIX_SPREAD = 10.0;
+
+  private static final int SAVE_UPDATES = 30;
+
+  private PhoneConstants base;
+  private SharedPreferences prefs;
+  private String prefKey;
+  private RecursiveLeastSquares rls;
+
+  /* Index of each coefficient in the feature vector. */
+  private int iBase;
+  private int iLcdBrightness;
+  private int iLcdBacklight;
+  private int iOledBase;
+  private int iCpu;
+  private int iAudio;
+  private int iAudioVolume;
+  private int iGpsSleep;
+  private int iGpsOn;
+  private int iGpsFix;
+  private int iWifiLow;
+  private int iWifiHigh;
+  private int iWifiLink;
+  private int iThreegIdle;
+  private int iThreegFach;
+  private int iThreegDch;
+
+  private boolean oled;
+  private double[] features;
+  private double[] featureSums;
+  private double measuredSum;
+  private int samples;
+
+  /* The current calibrated values.  These are only replaced as a whole. */
+  private volatile double[] coeffs;
+  private volatile double[] cpuRatios;
+  private volatile double[] gpsPower;
+  private volatile double[] wifiRatios;
+  private volatile double[] umtsPower;
+  private volatile double[] speakerPower;
+
+  public CalibratedConstants(Context context, PhoneConstants base,
+                             boolean oled) {
+    this.base = base;
+    this.oled = oled;
+    prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    prefKey = "calibration_" + base.modelName();
+
+    int n = 0;
+    iBase = n++;
+    iLcdBrightness = n++;
+    if(oled) {
+      iLcdBacklight = -1;
+      iOledBase = n++;
+    } else {
+      iLcdBacklight = n++;
+      iOledBase = -1;
+    }
+    iCpu = n;
+    n += base.cpuPowerRatios().length;
+    iAudio = n++;
+    iAudioVolume = n++;
+    iGpsSleep = n++;
+    iGpsOn = n++;
+    iGpsFix = n++;
+    iWifiLow = n++;
+    iWifiHigh = n++;
+    iWifiLink = n++;
+    iThreegIdle = n++;
+    iThreegFach = n++;
+    iThreegDch = n++;
+
+    double[] prior = new double[n];
+    prior[iBase] = 0;
+    prior[iLcdBrightness] = base.lcdBrightness();
+    if(oled) {
+      prior[iOledBase] = base.oledBasePower();
+    } else {
+      prior[iLcdBacklight] = base.lcdBacklight();
+    }
+    double[] ratios = base.cpuPowerRatios();
+    for(int i = 0; i < ratios.length; i++) {
+      prior[iCpu + i] = ratios[i];
+    }
+    double[] speaker = base.audioRoutePower(Audio.ROUTE_SPEAKER);
+    prior[iAudio] = speaker[0];
+    prior[iAudioVolume] = speaker[1];
+    prior[iGpsSleep] = base.gpsStatePower()[GPS.POWER_STATE_SLEEP];
+    prior[iGpsOn] = base.gpsStatePower()[GPS.POWER_STATE_ON];
+    prior[iGpsFix] = base.gpsFixSatellitePower();
+    prior[iWifiLow] = base.wifiLowPower();
+    prior[iWifiHigh] = base.wifiHighPower();
+    prior[iWifiLink] = 1;
+    prior[iThreegIdle] = base.threegIdlePower("");
+    prior[iThreegFach] = base.threegFachPower("");
+    prior[iThreegDch] = base.threegDchPower("");
+
+    double[] variance = new double[n];
+    for(int i = 0; i < n; i++) {
+      double sd = i == iBase ? BASE_SPREAD :
+                  i == iGpsFix ? GPS_FIX_SPREAD :
+                  Math.max(Math.abs(prior[i]), 1) * PRIOR_SPREAD;
+      variance[i] = sd * sd;
+    }
+    rls = new RecursiveLeastSquares(prior, variance, FORGETTING_FACTOR);
+    features = new double[n];
+    featureSums = new double[n];
+    load();
+    publish();
+  }
+
+  /* Adds the hardware state and measured power, in mW, for one iteration.
+   * data holds the IterationData of each component for the iteration, some of
+   * which may be null.
+   */
+  public void addSample(IterationData[] data, double measured) {
+    for(int i = 0; i < features.length; i++) {
+      features[i] = 0;
+    }
+    features[iBase] = 1;
+    double fixed = 0;
+    for(int i = 0; i < data.length; i++) {
+      if(data[i] == null) continue;
+      PowerData pd = data[i].getUidPowerData().get(SystemInfo.AID_ALL);
+      if(pd instanceof SensorData) {
+        /* Sensor power comes from the sensors' own ratings and isn't fit. */
+        SensorData sd = (SensorData)pd;
+        double[] power = base.sensorPower();
+        for(int j = 0; j < Sensors.MAX_SENSORS; j++) {
+          fixed += sd.onTime[j] * power[j];
+        }
+      } else if(pd instanceof AudioData) {
+        /* Only the speaker is fit.  The other routes are too rarely used
+         * for the battery's readings to say much about them.
+         */
+        AudioData ad = (AudioData)pd;
+        if(ad.musicOn && Audio.ROUTE_SPEAKER.equals(ad.route)) {
+          features[iAudio] += 1;
+          features[iAudioVolume] += ad.volume;
+        } else if(ad.musicOn) {
+          double[] power = base.audioRoutePower(ad.route);
+          fixed += power[0] + power[1] * ad.volume;
+        }
+      } else if(pd instanceof OledData) {
+        /* The per pixel coefficients are read once when the OLED component
+         * starts up so there's no use fitting them.  Only the base power is.
+         */
+        OledData od = (OledData)pd;
+        if(od.screenOn && oled) {
+          features[iOledBase] += 1;
+          if(od.pixPower == -1) {
+            features[iLcdBrightness] += od.brightness;
+          } else {
+            fixed += od.pixPower * od.brightness;
+          }
+        }
+      } else if(pd != null) {
+        fixed += addFeatures(pd);
+      }
+    }
+
+    for(int i = 0; i < features.length; i++) {
+      featureSums[i] += features[i];
+    }
+    measuredSum += measured - fixed;
+    if(++samples == SAMPLE_ITERATIONS) {
+      for(int i = 0; i < features.length; i++) {
+        featureSums[i] /= samples;
+      }
+      rls.update(featureSums, measuredSum / samples);
+      resetSample();
+      publish();
+      if(rls.getUpdates() % SAVE_UPDATES == 0) {
+        save();
+      }
+    }
+  }
+
+  /* Drops the partially collected sample.  Call this whenever the measured
+   * power isn't usable, such as when the phone is plugged in.
+   */
+  public void skipSample() {
+    if(samples != 0) {
+      resetSample();
+    }
+  }
+
+  private void resetSample() {
+    for(int i = 0; i < featureSums.length; i++) {
+      featureSums[i] = 0;
+    }
+    measuredSum = 0;
+    samples = 0;
+  }
+
+  /* Adds the features of pd and returns the power it uses that isn't part of
+   * the fit.
+   */
+  private double addFeatures(PowerData pd) {
+    if(pd instanceof LcdData) {
+      LcdData d = (LcdData)pd;
+      if(d.screenOn && !oled) {
+        features[iLcdBrightness] += d.brightness;
+        features[iLcdBacklight] += 1;
+      }
+    } else if(pd instanceof CpuData) {
+      CpuData d = (CpuData)pd;
+      double util = d.usrPerc + d.sysPerc;
+      double[] freqs = base.cpuFreqs();
+      if(freqs.length == 1) {
+        features[iCpu] += util;
+      } else {
+        /* The power ratio is interpolated between the two nearest frequencies
+         * so the utilization is split between their coefficients.
+         */
+        double sfreq = Math.max(freqs[0],
+                                Math.min(freqs[freqs.length - 1], d.freq));
+        int ind = DreamPowerCalculator.upperBound(freqs, sfreq);
+        if(ind == 0) ind++;
+        if(ind == freqs.length) ind--;
+        double w = (sfreq - freqs[ind - 1]) / (freqs[ind] - freqs[ind - 1]);
+        features[iCpu + ind - 1] += (1 - w) * util;
+        features[iCpu + ind] += w * util;
+      }
+    } else if(pd instanceof GpsData) {
+      GpsData d = (GpsData)pd;
+      features[iGpsSleep] += d.stateTimes[GPS.POWER_STATE_SLEEP];
+      features[iGpsOn] += d.stateTimes[GPS.POWER_STATE_ON];
+      features[iGpsFix] += d.stateTimes[GPS.POWER_STATE_ON] *
+                           d.satellitesInFix;
+    } else if(pd instanceof WifiData) {
+      WifiData d = (WifiData)pd;
+      if(d.wifiOn) {
+        double high = d.stateTimes[Wifi.POWER_STATE_HIGH];
+        features[iWifiLow] += d.stateTimes[Wifi.POWER_STATE_LOW];
+        features[iWifiHigh] += high;
+        features[iWifiLink] += high * linkRatio(base.wifiLinkSpeeds(),
+                                                base.wifiLinkRatios(),
+                                                d.linkSpeed) *
+                               d.highUplinkRate;
+      }
+    } else if(pd instanceof ThreegData) {
+      ThreegData d = (ThreegData)pd;
+      if(d.threegOn && RadioModel.UMTS.equals(d.radio)) {
+        features[iThreegIdle] += d.stateTimes[Threeg.POWER_STATE_IDLE];
+        features[iThreegFach] += d.stateTimes[Threeg.POWER_STATE_FACH];
+        features[iThreegDch] += d.stateTimes[Threeg.POWER_STATE_DCH];
+      } else if(d.threegOn) {
+        /* The other radios keep the base phone's powers. */
+        double[] power = base.radioStatePower(d.radio, d.oper);
+        double fixed = 0;
+        for(int i = 0; i < power.length && i < d.stateTimes.length; i++) {
+          fixed += d.stateTimes[i] * power[i];
+        }
+        return fixed;
+      }
+    }
+    return 0;
+  }
+
+  /* Same interpolation as DreamPowerCalculator.getWifiPower(). */
+  private static double linkRatio(double[] speeds, double[] ratios,
+                                  double speed) {
+    if(speeds.length == 1) return ratios[0];
+    int ind = DreamPowerCalculator.upperBound(speeds, speed);
+    if(ind == 0) ind++;
+    if(ind == speeds.length) ind--;
+    return ratios[ind - 1] + (ratios[ind] - ratios[ind - 1]) /
+                             (speeds[ind] - speeds[ind - 1]) *
+                             (speed - speeds[ind - 1]);
+  }
+
+  /* Copies the fit out into the values handed out by the accessors. */
+  private void publish() {
+    if(rls.getUpdates() < MIN_UPDATES) {
+      coeffs = null;
+      return;
+    }
+    double[] theta = rls.getTheta();
+    double[] c = new double[theta.length];
+    for(int i = 0; i < c.length; i++) {
+      c[i] = Math.max(0, theta[i]);
+    }
+
+    double[] ratios = new double[base.cpuPowerRatios().length];
+    System.arraycopy(c, iCpu, ratios, 0, ratios.length);
+
+    double[] gps = base.gpsStatePower().clone();
+    gps[GPS.POWER_STATE_SLEEP] = c[iGpsSleep];
+    gps[GPS.POWER_STATE_ON] = c[iGpsOn];
+
+    double[] wifi = base.wifiLinkRatios().clone();
+    for(int i = 0; i < wifi.length; i++) {
+      wifi[i] *= c[iWifiLink];
+    }
+
+    cpuRatios = ratios;
+    gpsPower = gps;
+    wifiRatios = wifi;
+    umtsPower = new double[] {c[iThreegIdle], c[iThreegFach], c[iThreegDch]};
+    speakerPower = new double[] {c[iAudio], c[iAudioVolume]};
+    coeffs = c;
+  }
+
+  private void load() {
+    String saved = prefs.getString(prefKey, null);
+    if(saved == null) return;
+    String[] parts = saved.split(",");
+    double[] state = new double[parts.length];
+    try {
+      for(int i = 0; i < parts.length; i++) {
+        state[i] = Double.parseDouble(parts[i]);
+      }
+    } catch(NumberFormatException e) {
+      Log.w(TAG, "Discarding corrupt calibration");
+      return;
+    }
+    if(!rls.load(state)) {
+      Log.w(TAG, "Discarding calibration for a different model");
+    }
+  }
+
+  /* Writes the fit out so that it survives restarts. */
+  public void save() {
+    double[] state = rls.save();
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < state.length; i++) {
+      if(i > 0) sb.append(',');
+      sb.append(state[i]);
+    }
+    prefs.edit().putString(prefKey, sb.toString()).commit();
+  }
+
+  public boolean isCalibrated() {
+    return coeffs != null;
+  }
+
+  /* The power, in mW, that the fit finds none of the components account for
+   * such as the phone's idle draw.  It doesn't belong to any uid so it only
+   * counts towards the phone's total.
+   */
+  public double basePower() {
+    double[] c = coeffs;
+    return c == null ? 0 : c[iBase];
+  }
+
+  public String modelName() {
+    return base.modelName();
+  }
+
+  public double maxPower() {
+    return base.maxPower();
+  }
+
+  public double lcdBrightness() {
+    double[] c = coeffs;
+    return c == null ? base.lcdBrightness() : c[iLcdBrightness];
+  }
+
+  public double lcdBacklight() {
+    double[] c = coeffs;
+    return c == null || oled ? base.lcdBacklight() : c[iLcdBacklight];
+  }
+
+  public double oledBasePower() {
+    double[] c = coeffs;
+    return c == null || !oled ? base.oledBasePower() : c[iOledBase];
+  }
+
+  public double[] oledChannelPower() {
+    return base.oledChannelPower();
+  }
+
+  public double oledModulation() {
+    return base.oledModulation();
+  }
+
+  public double[] cpuPowerRatios() {
+    double[] c = cpuRatios;
+    return c == null || coeffs == null ? base.cpuPowerRatios() : c;
+  }
+
+  public double[] cpuFreqs() {
+    return base.cpuFreqs();
+  }
+
+  /* The speaker at half volume, like the built in figure. */
+  public double audioPower() {
+    double[] c = coeffs;
+    return c == null ? base.audioPower() : c[iAudio] + c[iAudioVolume] / 2;
+  }
+
+  public double[] audioRoutePower(String route) {
+    double[] c = speakerPower;
+    if(c == null || coeffs == null || !Audio.ROUTE_SPEAKER.equals(route)) {
+      return base.audioRoutePower(route);
+    }
+    return c;
+  }
+
+  public double[] gpsStatePower() {
+    double[] c = gpsPower;
+    return c == null || coeffs == null ? base.gpsStatePower() : c;
+  }
+
+  public double gpsSleepTime() {
+    return base.gpsSleepTime();
+  }
+
+  public double gpsFixSatellitePower() {
+    double[] c = coeffs;
+    return c == null ? base.gpsFixSatellitePower() : c[iGpsFix];
+  }
+
+  public double wifiLowPower() {
+    double[] c = coeffs;
+    return c == null ? base.wifiLowPower() : c[iWifiLow];
+  }
+
+  public double wifiHighPower() {
+    double[] c = coeffs;
+    return c == null ? base.wifiHighPower() : c[iWifiHigh];
+  }
+
+  public double wifiLowHighTransition() {
+    return base.wifiLowHighTransition();
+  }
+
+  public double wifiHighLowTransition() {
+    return base.wifiHighLowTransition();
+  }
+
+  public double[] wifiLinkRatios() {
+    double[] c = wifiRatios;
+    return c == null || coeffs == null ? base.wifiLinkRatios() : c;
+  }
+
+  public double[] wifiLinkSpeeds() {
+    return base.wifiLinkSpeeds();
+  }
+
+  public String threegInterface() {
+    return base.threegInterface();
+  }
+
+  public double threegIdlePower(String oper) {
+    double[] c = coeffs;
+    return c == null ? base.threegIdlePower(oper) : c[iThreegIdle];
+  }
+
+  public double threegFachPower(String oper) {
+    double[] c = coeffs;
+    return c == null ? base.threegFachPower(oper) : c[iThreegFach];
+  }
+
+  public double threegDchPower(String oper) {
+    double[] c = coeffs;
+    return c == null ? base.threegDchPower(oper) : c[iThreegDch];
+  }
+
+  public int threegUplinkQueue(String oper) {
+    return base.threegUplinkQueue(oper);
+  }
+
+  public int threegDownlinkQueue(String oper) {
+    return base.threegDownlinkQueue(oper);
+  }
+
+  public int threegDchFachDelay(String oper) {
+    return base.threegDchFachDelay(oper);
+  }
+
+  public int threegFachIdleDelay(String oper) {
+    return base.threegFachIdleDelay(oper);
+  }
+
+  /* Only the UMTS powers are part of the fit. */
+  public double[] radioStatePower(String radio, String oper) {
+    double[] c = umtsPower;
+    if(RadioModel.UMTS.equals(radio) && c != null && coeffs != null) {
+      return c;
+    }
+    return base.radioStatePower(radio, oper);
+  }
+
+  public double[] radioStateTimers(String radio, String oper) {
+    return base.radioStateTimers(radio, oper);
+  }
+
+  public double[] sensorPower() {
+    return base.sensorPower();
+  }
+
+  public double getMaxPower(String componentName) {
+    return base.getMaxPower(componentName);
+  }
+}
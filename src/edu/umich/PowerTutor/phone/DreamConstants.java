@@ -19,10 +19,15 @@ Please send inquiries to powertutor@umich.edu
 
 package edu.umich.PowerTutor.phone;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 
+import edu.umich.PowerTutor.components.Audio;
+import edu.umich.PowerTutor.components.RadioModel;
 import edu.umich.PowerTutor.components.Sensors;
 
 public class DreamConstants implements PhoneConstants {
@@ -93,6 +98,63 @@ public class DreamConstants implements PhoneConstants {
     return 384.62;
   }
 
+  /* Only the speaker at a middling volume was measured, which is what
+   * audioPower() gives.  The other figures are fractions of it so that they
+   * scale with each phone's own measurement.  The speaker's amplifier is what
+   * the volume drives, so half of the measured power is put on the volume and
+   * the measurement falls at half volume.  Headphones need far less drive and
+   * Bluetooth sends the audio out over the radio at a fixed cost, so both are
+   * cheaper than the speaker at any volume.
+   */
+  private static final String[] AUDIO_ROUTES = {
+    Audio.ROUTE_SPEAKER, Audio.ROUTE_WIRED, Audio.ROUTE_BLUETOOTH
+  };
+  private static final double[][] AUDIO_ROUTE_FRACTIONS = {
+    {0.5, 1}, {0.35, 0.1}, {0.3, 0}
+  };
+
+  /* Returns the base and full volume power of a route for a phone whose
+   * speaker measured audioPower at half volume.
+   */
+  static double[] scaleAudioRoute(String route, double audioPower) {
+    double[] fractions = AUDIO_ROUTE_FRACTIONS[0];
+    for(int i = 0; i < AUDIO_ROUTES.length; i++) {
+      if(AUDIO_ROUTES[i].equals(route)) {
+        fractions = AUDIO_ROUTE_FRACTIONS[i];
+      }
+    }
+    double power = Math.max(0, audioPower);
+    return new double[] {fractions[0] * power, fractions[1] * power};
+  }
+
+  /* Built on first use since audioPower() is overridden by the other phones.
+   */
+  private volatile double[] speakerAudioPower;
+  private volatile double[] wiredAudioPower;
+  private volatile double[] bluetoothAudioPower;
+
+  public double[] audioRoutePower(String route) {
+    if(Audio.ROUTE_WIRED.equals(route)) {
+      double[] power = wiredAudioPower;
+      if(power == null) {
+        wiredAudioPower = power = scaleAudioRoute(route, audioPower());
+      }
+      return power;
+    } else if(Audio.ROUTE_BLUETOOTH.equals(route)) {
+      double[] power = bluetoothAudioPower;
+      if(power == null) {
+        bluetoothAudioPower = power = scaleAudioRoute(route, audioPower());
+      }
+      return power;
+    }
+    double[] power = speakerAudioPower;
+    if(power == null) {
+      speakerAudioPower = power = scaleAudioRoute(Audio.ROUTE_SPEAKER,
+                                                  audioPower());
+    }
+    return power;
+  }
+
   private static final double[] arrayGpsStatePower = {0.0, 173.55, 429.55};
   public double[] gpsStatePower() {
     return arrayGpsStatePower;
@@ -102,6 +164,11 @@ public class DreamConstants implements PhoneConstants {
     return 6.0;
   }
 
+  /* Not measured on these phones so the ON state power covers it. */
+  public double gpsFixSatellitePower() {
+    return 0;
+  }
+
   public double wifiLowPower() {
     return 38.554;
   }
@@ -176,6 +243,63 @@ public class DreamConstants implements PhoneConstants {
     return 6;
   }
 
+  /* Only UMTS was measured on these phones.  The other radios are given the
+   * figures reported for typical handsets of their kind so that a phone on
+   * those networks isn't charged as if it were on UMTS.
+   */
+  private static final double[] HSPAP_POWER = {10, 460, 800};
+  private static final double[] HSPAP_TIMERS = {0, 3.3, 8.1};
+  private static final double[] LTE_POWER = {11.4, 1060, 1210};
+  private static final double[] LTE_TIMERS = {0, 11.476, 0.1};
+  private static final double[] EDGE_POWER = {10, 480};
+  private static final double[] GPRS_POWER = {10, 360};
+  private static final double[] GSM_TIMERS = {0, 5};
+
+  /* The UMTS arrays are built from the threeg constants once per operator. */
+  private Map<String, double[]> umtsPower = new HashMap<String, double[]>();
+  private Map<String, double[]> umtsTimers = new HashMap<String, double[]>();
+
+  public double[] radioStatePower(String radio, String oper) {
+    if(RadioModel.HSPAP.equals(radio)) {
+      return HSPAP_POWER;
+    } else if(RadioModel.LTE.equals(radio)) {
+      return LTE_POWER;
+    } else if(RadioModel.EDGE.equals(radio)) {
+      return EDGE_POWER;
+    } else if(RadioModel.GPRS.equals(radio)) {
+      return GPRS_POWER;
+    }
+    synchronized(umtsPower) {
+      double[] power = umtsPower.get(oper);
+      if(power == null) {
+        power = new double[] {threegIdlePower(oper), threegFachPower(oper),
+                              threegDchPower(oper)};
+        umtsPower.put(oper, power);
+      }
+      return power;
+    }
+  }
+
+  public double[] radioStateTimers(String radio, String oper) {
+    if(RadioModel.HSPAP.equals(radio)) {
+      return HSPAP_TIMERS;
+    } else if(RadioModel.LTE.equals(radio)) {
+      return LTE_TIMERS;
+    } else if(RadioModel.EDGE.equals(radio) ||
+              RadioModel.GPRS.equals(radio)) {
+      return GSM_TIMERS;
+    }
+    synchronized(umtsTimers) {
+      double[] timers = umtsTimers.get(oper);
+      if(timers == null) {
+        timers = new double[] {0, threegFachIdleDelay(oper),
+                               threegDchFachDelay(oper)};
+        umtsTimers.put(oper, timers);
+      }
+      return timers;
+    }
+  }
+
   public int threegUplinkQueue(String oper) {
     return 151;
   }
@@ -196,7 +320,8 @@ public class DreamConstants implements PhoneConstants {
       double[] ratios = cpuPowerRatios();
       return ratios[ratios.length - 1] * 100;
     } else if("Audio".equals(componentName)) {
-      return audioPower();
+      double[] speaker = audioRoutePower(Audio.ROUTE_SPEAKER);
+      return speaker[0] + speaker[1];
     } else if("GPS".equals(componentName)) {
       double[] gpsPow = gpsStatePower();
       return gpsPow[gpsPow.length - 1];
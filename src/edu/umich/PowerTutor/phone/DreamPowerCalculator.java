@@ -28,12 +28,20 @@ import edu.umich.PowerTutor.components.GPS.GpsData;
 import edu.umich.PowerTutor.components.Wifi.WifiData;
 import edu.umich.PowerTutor.components.Threeg.ThreegData;
 import edu.umich.PowerTutor.components.Sensors.SensorData;
+import edu.umich.PowerTutor.util.PiecewiseLinear;
 
 import android.content.Context;
 
 public class DreamPowerCalculator implements PhonePowerCalculator {
   protected PhoneConstants coeffs;
 
+  /* The interpolation tables for the current coefficients.  They are rebuilt
+   * if the constants start handing out different arrays, as calibrated
+   * constants do when their fit is updated.
+   */
+  private PiecewiseLinear cpuTable;
+  private PiecewiseLinear wifiTable;
+
   public DreamPowerCalculator(Context context) {
     this(new DreamConstants(context));
   }
@@ -43,8 +51,8 @@ public class DreamPowerCalculator implements PhonePowerCalculator {
   }
 
   public double getLcdPower(LcdData data) {
-    return data.screenOn ?
-           coeffs.lcdBrightness() * data.brightness + coeffs.lcdBacklight() : 0;
+    return data.screenOn ? data.share * (coeffs.lcdBrightness() *
+           data.brightness + coeffs.lcdBacklight()) : 0;
   } 
 
   public double getOledPower(OledData data) {
@@ -55,28 +63,26 @@ public class DreamPowerCalculator implements PhonePowerCalculator {
     /* Find the two nearest cpu frequency and linearly interpolate
      * the power ratio for that frequency.
      */
-    double[] powerRatios = coeffs.cpuPowerRatios();
-    double[] freqs = coeffs.cpuFreqs();
-    double ratio;
-    if(powerRatios.length == 1) {
-      ratio = powerRatios[0];
-    } else {
-      double sfreq = data.freq;
-      if(sfreq < freqs[0]) sfreq = freqs[0];
-      if(sfreq > freqs[freqs.length - 1]) sfreq = freqs[freqs.length - 1];
-
-      int ind = upperBound(freqs, sfreq);
-      if(ind == 0) ind++;
-      if(ind == freqs.length) ind--;
-      ratio = powerRatios[ind - 1] + (powerRatios[ind] - powerRatios[ind - 1]) /
-                                     (freqs[ind] - freqs[ind - 1]) *
-                                     (sfreq - freqs[ind - 1]);
-    }
+    double ratio = cpuTable().evaluate(data.freq);
     return Math.max(0, ratio * (data.usrPerc + data.sysPerc));
   }
 
+  public void getCpuPower(double[] freq, double[] util, int count,
+                          int[] power) {
+    PiecewiseLinear table = cpuTable();
+    for(int i = 0; i < count; i++) {
+      util[i] *= table.evaluate(freq[i]);
+    }
+    /* Kept as a separate loop so that it is left as simple arithmetic. */
+    for(int i = 0; i < count; i++) {
+      power[i] = (int)Math.max(0, util[i]);
+    }
+  }
+
   public double getAudioPower(AudioData data) {
-    return data.musicOn ? coeffs.audioPower() : 0;
+    if(!data.musicOn) return 0;
+    double[] power = coeffs.audioRoutePower(data.route);
+    return data.share * (power[0] + power[1] * data.volume);
   }
 
   public double getGpsPower(GpsData data) {
@@ -85,53 +91,40 @@ public class DreamPowerCalculator implements PhonePowerCalculator {
     for(int i = 0; i < GPS.POWER_STATES; i++) {
       result += data.stateTimes[i] * statePower[i];
     }
+    /* Tracking more satellites in the fix costs more while the GPS is on. */
+    result += data.stateTimes[GPS.POWER_STATE_ON] * data.satellitesInFix *
+              coeffs.gpsFixSatellitePower();
     return result;
   }
 
   public double getWifiPower(WifiData data) {
     if(!data.wifiOn) {
       return 0;
-    } else if(data.powerState == Wifi.POWER_STATE_LOW) {
-      return coeffs.wifiLowPower();
-    } else if(data.powerState == Wifi.POWER_STATE_HIGH) {
-      double[] linkSpeeds = coeffs.wifiLinkSpeeds();
-      double[] linkRatios = coeffs.wifiLinkRatios();
-      double ratio;
-      if(linkSpeeds.length == 1) {
-        /* If there is only one set speed we have to use its ratio as we have
-         * nothing else to go on.
-         */
-        ratio = linkRatios[0];
-      } else {
-        /* Find the two nearest speed/ratio pairs and linearly interpolate
-         * the ratio for this link speed.
-         */
-        int ind = upperBound(linkSpeeds, data.linkSpeed);
-        if(ind == 0) ind++;
-        if(ind == linkSpeeds.length) ind--;
-        ratio = linkRatios[ind - 1] + (linkRatios[ind] - linkRatios[ind - 1]) /
-                                      (linkSpeeds[ind] - linkSpeeds[ind - 1]) *
-                                      (data.linkSpeed - linkSpeeds[ind - 1]);
-      }
-      return Math.max(0, coeffs.wifiHighPower() + ratio * data.uplinkRate);
     }
-    throw new RuntimeException("Unexpected power state");
+    /* Find the two nearest speed/ratio pairs and linearly interpolate
+     * the ratio for this link speed.  If there is only one set speed we
+     * have to use its ratio as we have nothing else to go on.
+     */
+    double ratio = wifiTable().evaluate(data.linkSpeed);
+    double highPower = Math.max(0, coeffs.wifiHighPower() +
+                                   ratio * data.highUplinkRate);
+    return data.stateTimes[Wifi.POWER_STATE_LOW] * coeffs.wifiLowPower() +
+           data.stateTimes[Wifi.POWER_STATE_HIGH] * highPower;
   }
 
   public double getThreeGPower(ThreegData data) {
     if(!data.threegOn) {
       return 0;
-    } else {
-      switch(data.powerState) {
-        case Threeg.POWER_STATE_IDLE:
-          return coeffs.threegIdlePower(data.oper);
-        case Threeg.POWER_STATE_FACH:
-          return coeffs.threegFachPower(data.oper);
-        case Threeg.POWER_STATE_DCH:
-          return coeffs.threegDchPower(data.oper);
-      }
     }
-    return 0;
+    /* Charge each state for the time spent in it so that the tail is
+     * accounted for down to when its timer actually expired.
+     */
+    double[] power = coeffs.radioStatePower(data.radio, data.oper);
+    double result = 0;
+    for(int i = 0; i < power.length && i < data.stateTimes.length; i++) {
+      result += data.stateTimes[i] * power[i];
+    }
+    return result;
   }
 
   public double getSensorPower(SensorData data) {
@@ -143,6 +136,26 @@ public class DreamPowerCalculator implements PhonePowerCalculator {
     return result;
   }
 
+  private PiecewiseLinear cpuTable() {
+    double[] freqs = coeffs.cpuFreqs();
+    double[] powerRatios = coeffs.cpuPowerRatios();
+    PiecewiseLinear table = cpuTable;
+    if(table == null || !table.isFor(freqs, powerRatios)) {
+      cpuTable = table = new PiecewiseLinear(freqs, powerRatios, true);
+    }
+    return table;
+  }
+
+  private PiecewiseLinear wifiTable() {
+    double[] linkSpeeds = coeffs.wifiLinkSpeeds();
+    double[] linkRatios = coeffs.wifiLinkRatios();
+    PiecewiseLinear table = wifiTable;
+    if(table == null || !table.isFor(linkSpeeds, linkRatios)) {
+      wifiTable = table = new PiecewiseLinear(linkSpeeds, linkRatios, false);
+    }
+    return table;
+  }
+
   /* Returns the largest index y such that if x were inserted into A (which
    * should already be sorted) at y then A would remain sorted.
    */
@@ -46,11 +46,14 @@ public class PassionPowerCalculator extends DreamPowerCalculator {
     if(!data.screenOn) {
       return 0;
     }
+    /* A uid that only has part of the screen pays for that part. */
     if(data.pixPower == -1) {
       /* No pixel power available :(. */
-      return coeffs.oledBasePower() + coeffs.lcdBrightness() * data.brightness;
+      return data.share * (coeffs.oledBasePower() +
+                           coeffs.lcdBrightness() * data.brightness);
     } else {
-      return coeffs.oledBasePower() + data.pixPower * data.brightness;
+      return data.share * coeffs.oledBasePower() +
+             data.pixPower * data.brightness;
     }
   }
 }
@@ -61,11 +61,16 @@ public interface PhoneConstants {
    */
   public double[] cpuFreqs();
 
-  /* Gives the usage for the audio output being used.  The model doesn't
-   * currently take into account volume.
+  /* Gives the usage for the audio output being used at a typical volume.
    */
   public double audioPower();
 
+  /* Gives the power for playing through the named output route (see the
+   * ROUTE_ names in Audio) as {at no volume, added at full volume}.  The
+   * power is taken to grow linearly with the volume index in between.
+   */
+  public double[] audioRoutePower(String route);
+
   /* Gives the power consumption for each of the GPS states.  These states are
    * {OFF, SLEEP, ON} in that order.  See GPS.java.
    */
@@ -76,6 +81,11 @@ public interface PhoneConstants {
    */
   public double gpsSleepTime();
 
+  /* Gives the additional power consumed while the GPS is on for each
+   * satellite used in the fix.
+   */
+  public double gpsFixSatellitePower();
+
   /* Gives the power consumption of wifi in the low power state.
    */
   public double wifiLowPower();
@@ -139,6 +149,18 @@ public interface PhoneConstants {
    */
   public int threegFachIdleDelay(String oper);
 
+  /* Gives the power consumed in each of the RRC states of the named cellular
+   * radio model (see RadioModel).  Should have one element per state of the
+   * model's state machine.
+   */
+  public double[] radioStatePower(String radio, String oper);
+
+  /* Gives the time in seconds that the named cellular radio stays in each of
+   * its states without activity before dropping to a lower one.  0 means the
+   * state has no timer.
+   */
+  public double[] radioStateTimers(String radio, String oper);
+
   /* Gives the power consumed by each of the sensors.  Should have the same size
    * as Sensors.MAX_SENSORS.
    */
@@ -35,6 +35,12 @@ public interface PhonePowerCalculator {
 
   public double getCpuPower(CpuData data);
 
+  /* Computes the cpu power for count samples given as parallel arrays of
+   * frequency and total utilization.
+   */
+  public void getCpuPower(double[] freq, double[] util, int count,
+                          int[] power);
+
   public double getAudioPower(AudioData data);
 
   public double getGpsPower(GpsData data);
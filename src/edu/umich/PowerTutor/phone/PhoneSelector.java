@@ -19,11 +19,14 @@ Please send inquiries to powertutor@umich.edu
 
 package edu.umich.PowerTutor.phone;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import android.content.Context;
 import android.os.Build;
+import android.preference.PreferenceManager;
 import android.util.Log;
+import android.util.SparseArray;
 import edu.umich.PowerTutor.components.Audio;
 import edu.umich.PowerTutor.components.CPU;
 import edu.umich.PowerTutor.components.GPS;
@@ -77,7 +80,19 @@ public class PhoneSelector {
     return getPhoneType() != PHONE_UNKNOWN;
   }
 
+  /* Like phoneSupported() but also counts phones that have a profile. */
+  public static boolean phoneSupported(Context context) {
+    return phoneSupported() || getProfile(context) != null;
+  }
+
+  /* The profile's say on whether the screen is OLED is only used once the
+   * profile has been loaded by one of the calls that take a Context.
+   */
   public static boolean hasOled() {
+    ProfilePhoneConstants prof = profile;
+    if(prof != null && prof.getOled() != -1) {
+      return prof.getOled() == 1;
+    }
     for(int i = 0; i < OLED_PHONES.length; i++) {
       if(Build.DEVICE.equals(OLED_PHONES[i])) {
         return true;
@@ -93,37 +108,143 @@ public class PhoneSelector {
     return PHONE_UNKNOWN;
   }
 
+  /* Shared so that every user of the constants sees the same fit. */
+  private static CalibratedConstants calibratedConstants;
+
+  /* Returns the constants to use for this phone.  If the user has turned on
+   * calibration these are the built in constants refined by a fit against the
+   * battery's readings.
+   */
   public static PhoneConstants getConstants(Context context) {
-    switch(getPhoneType()) {
-      case PHONE_DREAM:
-        return new DreamConstants(context);
+    CalibratedConstants calibrated = getCalibration(context);
+    return calibrated != null ? calibrated : getBaseConstants(context);
+  }
+
+  /* Returns the calibrated constants that should be fed samples or null if
+   * calibration is turned off.
+   */
+  public static synchronized CalibratedConstants getCalibration(
+      Context context) {
+    if(!PreferenceManager.getDefaultSharedPreferences(context)
+                         .getBoolean("calibrate", false)) {
+      return null;
+    }
+    if(calibratedConstants == null) {
+      calibratedConstants = new CalibratedConstants(context,
+          getBaseConstants(context), hasOled());
+    }
+    return calibratedConstants;
+  }
+
+  /* The profile for this phone or null if there isn't one.  Profiles are only
+   * searched for once.
+   */
+  private static ProfilePhoneConstants profile;
+  private static boolean profileLoaded;
+
+  public static synchronized ProfilePhoneConstants getProfile(
+      Context context) {
+    if(!profileLoaded) {
+      profileLoaded = true;
+      profile = ProfilePhoneConstants.find(context);
+      if(profile != null) {
+        profile.setFallback(getBuiltinConstants(context,
+            getBaseType(profile)));
+      }
+    }
+    return profile;
+  }
+
+  private static PhoneConstants getBaseConstants(Context context) {
+    ProfilePhoneConstants prof = getProfile(context);
+    if(prof != null) return prof;
+    return getBuiltinConstants(context, getBaseType(null));
+  }
+
+  /* Gives the built in phone whose constants and calculator should be used,
+   * either the one the profile names or the closest match for the phone.
+   */
+  private static int getBaseType(ProfilePhoneConstants prof) {
+    String base = prof == null ? null : prof.getBaseName();
+    boolean oled = hasOled();
+    if(base != null) {
+      /* The Dream and Sapphire calculators have no OLED model so a screen
+       * that turns out to be OLED always gets the Passion calculator.
+       */
+      if(base.equals("passion") || oled && (base.equals("dream") ||
+                                            base.equals("sapphire"))) {
+        return PHONE_PASSION;
+      }
+      if(base.equals("dream")) return PHONE_DREAM;
+      if(base.equals("sapphire")) return PHONE_SAPPHIRE;
+      Log.w(TAG, "Unknown base phone " + base + " in profile " +
+            prof.getSource());
+    }
+    int type = getPhoneType();
+    if(type != PHONE_UNKNOWN && (!oled || type == PHONE_PASSION)) return type;
+    if(prof == null) {
+      Log.w(TAG, "Phone type not recognized (" + Build.DEVICE + "), using " +
+            (oled ? "Passion" : "Dream") + " constants");
+    }
+    return oled ? PHONE_PASSION : PHONE_DREAM;
+  }
+
+  private static PhoneConstants getBuiltinConstants(Context context,
+                                                    int type) {
+    switch(type) {
       case PHONE_SAPPHIRE:
         return new SapphireConstants(context);
       case PHONE_PASSION:
         return new PassionConstants(context);
       default:
-        boolean oled = hasOled();
-        Log.w(TAG, "Phone type not recognized (" + Build.DEVICE + "), using " +
-              (oled ? "Passion" : "Dream") + " constants");
-        return oled ? new PassionConstants(context) :
-                      new DreamConstants(context);
+        return new DreamConstants(context);
     }
   }
 
+  /* The power models that can be run side by side. */
+  public static final String MODEL_BUILTIN = "builtin";
+  public static final String MODEL_PROFILE = "profile";
+  public static final String MODEL_CALIBRATED = "calibrated";
+
+  /* Returns the names of the models available on this phone.  The last is the
+   * one getConstants() and getCalculator(Context) use.
+   */
+  public static List<String> getModels(Context context) {
+    List<String> models = new ArrayList<String>();
+    models.add(MODEL_BUILTIN);
+    if(getProfile(context) != null) models.add(MODEL_PROFILE);
+    if(getCalibration(context) != null) models.add(MODEL_CALIBRATED);
+    return models;
+  }
+
+  /* Returns the calculator for one of the models from getModels(). */
+  public static PhonePowerCalculator getCalculator(Context context,
+                                                   String model) {
+    PhoneConstants constants;
+    if(MODEL_CALIBRATED.equals(model) && getCalibration(context) != null) {
+      constants = getCalibration(context);
+    } else if(MODEL_PROFILE.equals(model) && getProfile(context) != null) {
+      constants = getProfile(context);
+    } else {
+      constants = getBuiltinConstants(context,
+                                      getBaseType(getProfile(context)));
+    }
+    return getCalculator(context, constants);
+  }
+
   public static PhonePowerCalculator getCalculator(Context context) {
-    switch(getPhoneType()) {
-      case PHONE_DREAM:
-        return new DreamPowerCalculator(context);
+    return getCalculator(context, getConstants(context));
+  }
+
+  private static PhonePowerCalculator getCalculator(Context context,
+                                                    PhoneConstants constants) {
+    switch(getBaseType(getProfile(context))) {
       case PHONE_SAPPHIRE:
-        return new SapphirePowerCalculator(context);
+        return new SapphirePowerCalculator(constants);
       case PHONE_PASSION:
-        return new PassionPowerCalculator(context);
+        return new PassionPowerCalculator(constants);
       default:
-        boolean oled = hasOled();
-        Log.w(TAG, "Phone type not recognized (" + Build.DEVICE + "), using " +
-              (oled ? "Passion" : "Dream") + " calculator");
-        return oled ? new PassionPowerCalculator(context) :
-                      new DreamPowerCalculator(context);
+        return new DreamPowerCalculator(constants);
     }
   }
 
@@ -131,7 +252,6 @@ public class PhoneSelector {
                                         List<PowerComponent> components,
                                         List<PowerFunction> functions) {
     final PhoneConstants constants = getConstants(context);
-    final PhonePowerCalculator calculator = getCalculator(context);
 
     //TODO: What about bluetooth?
     //TODO: LED light on the Nexus
@@ -139,66 +259,112 @@ public class PhoneSelector {
     /* Add display component. */
     if(hasOled()) {
       components.add(new OLED(context, constants));
-      functions.add(new PowerFunction() {
-        public double calculate(PowerData data) {
-          return calculator.getOledPower((OledData)data);
-        }});
     } else {
       components.add(new LCD(context));
-      functions.add(new PowerFunction() {
-        public double calculate(PowerData data) {
-          return calculator.getLcdPower((LcdData)data);
-        }});
     }
 
     /* Add CPU component. */
     components.add(new CPU(constants));
-    functions.add(new PowerFunction() {
-      public double calculate(PowerData data) {
-        return calculator.getCpuPower((CpuData)data);
-      }});
 
     /* Add Wifi component. */
     String wifiInterface = 
         SystemInfo.getInstance().getProperty("wifi.interface");
     if(wifiInterface != null && wifiInterface.length() != 0) {
       components.add(new Wifi(context, constants));
-      functions.add(new PowerFunction() {
-        public double calculate(PowerData data) {
-          return calculator.getWifiPower((WifiData)data);
-        }});
     }
 
     /* Add 3G component. */
     if(constants.threegInterface().length() != 0) {
       components.add(new Threeg(context, constants));
-      functions.add(new PowerFunction() {
-        public double calculate(PowerData data) {
-          return calculator.getThreeGPower((ThreegData)data);
-        }});
     }
 
     /* Add GPS component. */
     components.add(new GPS(context, constants));
-    functions.add(new PowerFunction() {
-      public double calculate(PowerData data) {
-        return calculator.getGpsPower((GpsData)data);
-      }});
 
     /* Add Audio component. */
     components.add(new Audio(context));
-    functions.add(new PowerFunction() {
-      public double calculate(PowerData data) {
-        return calculator.getAudioPower((AudioData)data);
-      }});
 
     /* Add Sensors component if avaialble. */
     if(NotificationService.available()) {
       components.add(new Sensors(context));
-      functions.add(new PowerFunction() {
-        public double calculate(PowerData data) {
-          return calculator.getSensorPower((SensorData)data);
-        }});
+    }
+
+    generateFunctions(components, getCalculator(context), functions);
+  }
+
+  /* Adds a power function for each of the components that computes its power
+   * with calculator.  This lets more than one model be run over the data
+   * collected by a single set of components.
+   */
+  public static void generateFunctions(List<PowerComponent> components,
+                                       final PhonePowerCalculator calculator,
+                                       List<PowerFunction> functions) {
+    for(PowerComponent component : components) {
+      String name = component.getComponentName();
+      if("OLED".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getOledPower((OledData)data);
+          }});
+      } else if("LCD".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getLcdPower((LcdData)data);
+          }});
+      } else if("CPU".equals(name)) {
+        functions.add(new PowerFunction() {
+          private double[] freq = new double[0];
+          private double[] util = new double[0];
+
+          public double calculate(PowerData data) {
+            return calculator.getCpuPower((CpuData)data);
+          }
+
+          /* There is a CpuData for every uid that has run so the work is done
+           * over flat arrays rather than a call per uid.
+           */
+          public void calculateAll(SparseArray<PowerData> uidPower,
+                                   int[] power) {
+            int count = uidPower.size();
+            if(freq.length < count) {
+              freq = new double[count * 2];
+              util = new double[count * 2];
+            }
+            for(int i = 0; i < count; i++) {
+              CpuData data = (CpuData)uidPower.valueAt(i);
+              freq[i] = data.freq;
+              util[i] = data.usrPerc + data.sysPerc;
+            }
+            calculator.getCpuPower(freq, util, count, power);
+          }});
+      } else if("Wifi".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getWifiPower((WifiData)data);
+          }});
+      } else if("3G".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getThreeGPower((ThreegData)data);
+          }});
+      } else if("GPS".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getGpsPower((GpsData)data);
+          }});
+      } else if("Audio".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getAudioPower((AudioData)data);
+          }});
+      } else if("Sensors".equals(name)) {
+        functions.add(new PowerFunction.Each() {
+          public double calculate(PowerData data) {
+            return calculator.getSensorPower((SensorData)data);
+          }});
+      } else {
+        throw new RuntimeException("No power function for " + name);
+      }
     }
   }
 }
@@ -21,6 +21,23 @@ package edu.umich.PowerTutor.phone;
 
 import edu.umich.PowerTutor.service.PowerData;
 
+import android.util.SparseArray;
+
 public interface PowerFunction {
   public double calculate(PowerData data);
+
+  /* Computes the power of every uid in uidPower at once, storing the power of
+   * the data at index i of uidPower in power[i].  power must be at least as
+   * long as uidPower.
+   */
+  public void calculateAll(SparseArray<PowerData> uidPower, int[] power);
+
+  /* A PowerFunction that computes each uid's power independently. */
+  public static abstract class Each implements PowerFunction {
+    public void calculateAll(SparseArray<PowerData> uidPower, int[] power) {
+      for(int i = 0; i < uidPower.size(); i++) {
+        power[i] = (int)calculate(uidPower.valueAt(i));
+      }
+    }
+  }
 }
@@ -0,0 +1,857 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.phone;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+import edu.umich.PowerTutor.components.Audio;
+import edu.umich.PowerTutor.components.RadioModel;
+import edu.umich.PowerTutor.components.Sensors;
+
+/* PhoneConstants read from a profile file rather than compiled in.  Profiles
+ * are looked for in the profiles directory of the application's private files
+ * and in PowerTutor/profiles on the sdcard, which is only searched if no
+ * private profile matches since any application can write there.  A profile
+ * is either a JSON file (*.json) or the binary form of one (*.ptp).  JSON
+ * profiles are converted to the binary form the first time they are read so
+ * that later startups don't have to parse the JSON again.
+ *
+ * A JSON profile is an object whose keys are the names of the PhoneConstants
+ * methods, for example
+ *
+ *   {
+ *     "version": 1,
+ *     "modelName": "crespo",
+ *     "fingerprints": ["google/soju/crespo:2.3.4/GRJ22/121341:user/..."],
+ *     "devices": ["crespo"],
+ *     "base": "passion",
+ *     "oled": true,
+ *     "oledBasePower": 410,
+ *     "cpuFreqs": [100, 200, 400, 800, 1000],
+ *     "cpuPowerRatios": [1.1, 1.4, 2.0, 3.3, 4.1],
+ *     "threegDchPower": {"default": 570, "T - Mobile": 600}
+ *   }
+ *
+ * The profile is used for a phone whose Build.FINGERPRINT is listed in
+ * fingerprints or otherwise whose Build.DEVICE starts with one of devices, the
+ * longest such prefix winning.  The 3G methods that take an operator accept
+ * either a number or an object mapping operator names to values with a
+ * "default" entry.  The powers and timers of the radios other than UMTS are
+ * given per radio model as arrays with an entry per state, for example
+ * "lteStatePower" and "lteStateTimers", and don't vary by operator.  Any
+ * constant not in the profile is taken from the built in phone named by base
+ * ("dream", "sapphire" or "passion").
+ */
+public class ProfilePhoneConstants implements PhoneConstants {
+  private static final String TAG = "ProfilePhoneConstants";
+
+  /* The newest profile version this code understands. */
+  public static final int VERSION = 1;
+
+  private static final int BINARY_MAGIC = 0x50545046; // "PTPF"
+
+  private static final byte TYPE_NUMBER = 0;
+  private static final byte TYPE_ARRAY = 1;
+  private static final byte TYPE_STRING = 2;
+  private static final byte TYPE_STRINGS = 3;
+  private static final byte TYPE_BOOLEAN = 4;
+  private static final byte TYPE_OPER = 5;
+
+  /* No power, time or ratio in a sensible profile comes anywhere near this. */
+  private static final double MAX_VALUE = 1e7;
+
+  private PhoneConstants fallback;
+  private String source;
+
+  private String[] fingerprints;
+  private String[] devices;
+  private String baseName;
+  private int oled;
+
+  private String modelName;
+  private double maxPower;
+  private double lcdBrightness;
+  private double lcdBacklight;
+  private double oledBasePower;
+  private double[] oledChannelPower;
+  private double oledModulation;
+  private double[] cpuPowerRatios;
+  private double[] cpuFreqs;
+  private double audioPower;
+  private double[] gpsStatePower;
+  private double gpsSleepTime;
+  private double gpsFixSatellitePower;
+  private double wifiLowPower;
+  private double wifiHighPower;
+  private double wifiLowHighTransition;
+  private double wifiHighLowTransition;
+  private double[] wifiLinkRatios;
+  private double[] wifiLinkSpeeds;
+  private String threegInterface;
+  private OperValue threegIdlePower;
+  private OperValue threegFachPower;
+  private OperValue threegDchPower;
+  private OperValue threegUplinkQueue;
+  private OperValue threegDownlinkQueue;
+  private OperValue threegDchFachDelay;
+  private OperValue threegFachIdleDelay;
+  private double[] sensorPower;
+  private Map<String, double[]> radioArrays;
+  /* The UMTS arrays built from the threeg constants, by operator. */
+  private Map<String, double[]> umtsPower;
+  private Map<String, double[]> umtsTimers;
+  private Map<String, double[]> audioRoutePower;
+
+  /* Finds the profile for this phone.  Returns null if there isn't one. */
+  public static ProfilePhoneConstants find(Context context) {
+    File[] dirs = {
+      new File(context.getFilesDir(), "profiles"),
+      new File(Environment.getExternalStorageDirectory(), "PowerTutor/profiles")
+    };
+    File cacheDir = new File(context.getFilesDir(), "profile-cache");
+
+    ProfilePhoneConstants best = null;
+    int bestScore = 0;
+    for(File dir : dirs) {
+      if(best != null) break;
+      File[] files = dir.listFiles();
+      if(files == null) continue;
+      for(File file : files) {
+        ProfilePhoneConstants profile;
+        try {
+          profile = load(file, cacheDir);
+        } catch(IOException e) {
+          Log.w(TAG, "Failed to read profile " + file + ": " + e.getMessage());
+          continue;
+        }
+        if(profile == null) continue;
+        int score = profile.matchScore(Build.FINGERPRINT, Build.DEVICE);
+        if(score > bestScore) {
+          best = profile;
+          bestScore = score;
+        }
+      }
+    }
+    if(best != null) {
+      Log.i(TAG, "Using profile " + best.source);
+    }
+    return best;
+  }
+
+  /* Reads a single profile.  Returns null if the file isn't a profile. */
+  public static ProfilePhoneConstants load(File file, File cacheDir)
+      throws IOException {
+    String name = file.getName();
+    Map<String, Object> values;
+    if(name.endsWith(".ptp")) {
+      values = readBinary(file);
+    } else if(name.endsWith(".json")) {
+      /* Profiles with the same name can sit in more than one directory so
+       * the cache is keyed by the whole path.
+       */
+      File cache = new File(cacheDir, name + "-" +
+          Integer.toHexString(file.getAbsolutePath().hashCode()) + ".ptp");
+      values = null;
+      if(cache.lastModified() >= file.lastModified()) {
+        try {
+          values = readBinary(cache);
+        } catch(IOException e) {
+          Log.w(TAG, "Ignoring bad profile cache " + cache);
+        }
+      }
+      if(values == null) {
+        values = readJson(file);
+        cacheDir.mkdirs();
+        try {
+          writeBinary(values, cache);
+        } catch(IOException e) {
+          Log.w(TAG, "Failed to cache profile " + file);
+          cache.delete();
+        }
+      }
+    } else {
+      return null;
+    }
+    return new ProfilePhoneConstants(file.getPath(), values);
+  }
+
+  private ProfilePhoneConstants(String source, Map<String, Object> values)
+      throws IOException {
+    this.source = source;
+    int version = (int)getNumber(values, "version", 1);
+    if(version > VERSION) {
+      throw new IOException("unsupported profile version " + version);
+    }
+    fingerprints = getStrings(values, "fingerprints");
+    devices = getStrings(values, "devices");
+    baseName = getString(values, "base");
+    oled = values.containsKey("oled") ? getBoolean(values, "oled") ? 1 : 0 : -1;
+
+    modelName = getString(values, "modelName");
+    maxPower = getNumber(values, "maxPower", Double.NaN);
+    lcdBrightness = getNumber(values, "lcdBrightness", Double.NaN);
+    lcdBacklight = getNumber(values, "lcdBacklight", Double.NaN);
+    oledBasePower = getNumber(values, "oledBasePower", Double.NaN);
+    oledChannelPower = getArray(values, "oledChannelPower");
+    oledModulation = getNumber(values, "oledModulation", Double.NaN);
+    cpuPowerRatios = getArray(values, "cpuPowerRatios");
+    cpuFreqs = getArray(values, "cpuFreqs");
+    audioPower = getNumber(values, "audioPower", Double.NaN);
+    gpsStatePower = getArray(values, "gpsStatePower");
+    gpsSleepTime = getNumber(values, "gpsSleepTime", Double.NaN);
+    gpsFixSatellitePower = getNumber(values, "gpsFixSatellitePower",
+                                     Double.NaN);
+    wifiLowPower = getNumber(values, "wifiLowPower", Double.NaN);
+    wifiHighPower = getNumber(values, "wifiHighPower", Double.NaN);
+    wifiLowHighTransition = getNumber(values, "wifiLowHighTransition",
+                                      Double.NaN);
+    wifiHighLowTransition = getNumber(values, "wifiHighLowTransition",
+                                      Double.NaN);
+    wifiLinkRatios = getArray(values, "wifiLinkRatios");
+    wifiLinkSpeeds = getArray(values, "wifiLinkSpeeds");
+    threegInterface = getString(values, "threegInterface");
+    threegIdlePower = getOper(values, "threegIdlePower");
+    threegFachPower = getOper(values, "threegFachPower");
+    threegDchPower = getOper(values, "threegDchPower");
+    threegUplinkQueue = getOper(values, "threegUplinkQueue");
+    threegDownlinkQueue = getOper(values, "threegDownlinkQueue");
+    threegDchFachDelay = getOper(values, "threegDchFachDelay");
+    threegFachIdleDelay = getOper(values, "threegFachIdleDelay");
+    sensorPower = getArray(values, "sensorPower");
+    audioRoutePower = new HashMap<String, double[]>();
+    for(String route : new String[] {Audio.ROUTE_SPEAKER, Audio.ROUTE_WIRED,
+                                     Audio.ROUTE_BLUETOOTH}) {
+      double[] power = getArray(values, route + "AudioPower");
+      if(power != null) audioRoutePower.put(route, power);
+    }
+    radioArrays = new HashMap<String, double[]>();
+    for(String key : values.keySet()) {
+      String suffix = key.endsWith("StatePower") ? "StatePower" :
+                      key.endsWith("StateTimers") ? "StateTimers" : null;
+      if(suffix == null || key.equals("gpsStatePower")) continue;
+      String radio = key.substring(0, key.length() - suffix.length());
+      RadioModel model = RadioModel.forName(radio);
+      if(model == null) {
+        Log.w(TAG, "Ignoring " + key + " for unknown radio " + radio);
+        continue;
+      }
+      double[] arr = getArray(values, key);
+      checkLength(key, arr, model.newMachine().getStateCount());
+      radioArrays.put(key, arr);
+    }
+    umtsPower = new HashMap<String, double[]>();
+    umtsTimers = new HashMap<String, double[]>();
+
+    /* Catch the mistakes that would otherwise only show up as an exception in
+     * the middle of a power calculation.
+     */
+    for(Map.Entry<String, Object> entry : values.entrySet()) {
+      checkValue(entry.getKey(), entry.getValue());
+    }
+    checkPair("cpuPowerRatios", cpuPowerRatios, "cpuFreqs", cpuFreqs);
+    checkPair("wifiLinkRatios", wifiLinkRatios, "wifiLinkSpeeds",
+              wifiLinkSpeeds);
+    checkLength("gpsStatePower", gpsStatePower, 3);
+    checkLength("oledChannelPower", oledChannelPower, 3);
+    checkLength("sensorPower", sensorPower, Sensors.MAX_SENSORS);
+    /* Only the Passion calculator knows how to price an OLED screen. */
+    if(oled == 1 && baseName != null && !baseName.equals("passion")) {
+      throw new IOException("an oled profile can't use base " + baseName);
+    }
+    for(Map.Entry<String, double[]> entry : audioRoutePower.entrySet()) {
+      if(entry.getValue().length != 2) {
+        throw new IOException(entry.getKey() + "AudioPower needs 2 entries");
+      }
+    }
+
+    /* Routes the profile doesn't give are scaled from its audioPower the
+     * same way the built in phones do it.
+     */
+    if(!Double.isNaN(audioPower)) {
+      for(String route : new String[] {Audio.ROUTE_SPEAKER, Audio.ROUTE_WIRED,
+                                       Audio.ROUTE_BLUETOOTH}) {
+        if(audioRoutePower.containsKey(route)) continue;
+        double[] power = DreamConstants.scaleAudioRoute(route, audioPower);
+        checkValue(route + "AudioPower", power);
+        audioRoutePower.put(route, power);
+      }
+    }
+  }
+
+  /* Every number in a profile is a power, time, ratio or count so none of them
+   * can be negative.
+   */
+  private static void checkValue(String key, Object value)
+      throws IOException {
+    if(value instanceof Double) {
+      checkRange(key, (Double)value);
+    } else if(value instanceof double[]) {
+      for(double x : (double[])value) checkRange(key, x);
+    } else if(value instanceof OperValue) {
+      OperValue val = (OperValue)value;
+      checkRange(key, val.def);
+      for(double x : val.values) checkRange(key, x);
+    }
+  }
+
+  private static void checkRange(String key, double x) throws IOException {
+    if(!(0 <= x && x <= MAX_VALUE)) {
+      throw new IOException(key + " has a value out of range: " + x);
+    }
+  }
+
+  private static void checkLength(String key, double[] arr, int length)
+      throws IOException {
+    if(arr != null && arr.length != length) {
+      throw new IOException(key + " needs " + length + " entries");
+    }
+  }
+
+  /* The values of a piecewise linear function and the increasing points they
+   * are given at.  Taking one from the profile and the other from the base
+   * phone would mismatch them so they must be given together.
+   */
+  private static void checkPair(String valuesKey, double[] values,
+                                String pointsKey, double[] points)
+      throws IOException {
+    if((values == null) != (points == null)) {
+      throw new IOException(valuesKey + " and " + pointsKey +
+                            " must be given together");
+    }
+    if(values == null) return;
+    if(points.length == 0) {
+      throw new IOException(pointsKey + " is empty");
+    }
+    checkLength(valuesKey, values, points.length);
+    for(int i = 1; i < points.length; i++) {
+      if(points[i] <= points[i - 1]) {
+        throw new IOException(pointsKey + " must be increasing");
+      }
+    }
+  }
+
+  /* Gives how well this profile matches the phone, 0 meaning not at all. */
+  private int matchScore(String fingerprint, String device) {
+    if(fingerprints != null) {
+      for(String fp : fingerprints) {
+        if(fp.equals(fingerprint)) return Integer.MAX_VALUE;
+      }
+    }
+    int score = 0;
+    if(devices != null) {
+      for(String prefix : devices) {
+        if(device.startsWith(prefix)) {
+          score = Math.max(score, prefix.length() + 1);
+        }
+      }
+    }
+    return score;
+  }
+
+  /* The name of the built in phone to take missing constants from, or null
+   * to use the usual guess for the phone.
+   */
+  public String getBaseName() {
+    return baseName;
+  }
+
+  public void setFallback(PhoneConstants fallback) {
+    this.fallback = fallback;
+  }
+
+  /* Returns 1 or 0 if the profile says whether the phone has an OLED display
+   * and -1 if it doesn't say.
+   */
+  public int getOled() {
+    return oled;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  /* Reading */
+
+  private static Map<String, Object> readJson(File file) throws IOException {
+    byte[] data = new byte[(int)file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int pos = 0;
+      while(pos < data.length) {
+        int ln = in.read(data, pos, data.length - pos);
+        if(ln == -1) break;
+        pos += ln;
+      }
+    } finally {
+      in.close();
+    }
+
+    Map<String, Object> values = new HashMap<String, Object>();
+    try {
+      JSONObject json = new JSONObject(new String(data, "UTF-8"));
+      for(Iterator<?> it = json.keys(); it.hasNext(); ) {
+        String key = (String)it.next();
+        values.put(key, fromJson(key, json.get(key)));
+      }
+    } catch(JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+    return values;
+  }
+
+  private static Object fromJson(String key, Object value)
+      throws JSONException, IOException {
+    if(value instanceof Number) {
+      return ((Number)value).doubleValue();
+    } else if(value instanceof String || value instanceof Boolean) {
+      return value;
+    } else if(value instanceof JSONArray) {
+      JSONArray arr = (JSONArray)value;
+      if(arr.length() > 0 && arr.get(0) instanceof String) {
+        String[] res = new String[arr.length()];
+        for(int i = 0; i < res.length; i++) {
+          res[i] = arr.getString(i);
+        }
+        return res;
+      }
+      double[] res = new double[arr.length()];
+      for(int i = 0; i < res.length; i++) {
+        res[i] = arr.getDouble(i);
+      }
+      return res;
+    } else if(value instanceof JSONObject) {
+      JSONObject obj = (JSONObject)value;
+      OperValue res = new OperValue(obj.getDouble("default"), obj.length() - 1);
+      int i = 0;
+      for(Iterator<?> it = obj.keys(); it.hasNext(); ) {
+        String oper = (String)it.next();
+        if(!"default".equals(oper)) {
+          res.opers[i] = oper;
+          res.values[i++] = obj.getDouble(oper);
+        }
+      }
+      return res;
+    }
+    throw new IOException("unexpected value for " + key);
+  }
+
+  private static Map<String, Object> readBinary(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      if(in.readInt() != BINARY_MAGIC) {
+        throw new IOException("not a binary profile");
+      }
+      Map<String, Object> values = new HashMap<String, Object>();
+      int count = in.readInt();
+      for(int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        byte type = in.readByte();
+        switch(type) {
+          case TYPE_NUMBER:
+            values.put(key, in.readDouble());
+            break;
+          case TYPE_ARRAY: {
+            double[] arr = new double[in.readInt()];
+            for(int j = 0; j < arr.length; j++) {
+              arr[j] = in.readDouble();
+            }
+            values.put(key, arr);
+            break;
+          }
+          case TYPE_STRING:
+            values.put(key, in.readUTF());
+            break;
+          case TYPE_STRINGS: {
+            String[] arr = new String[in.readInt()];
+            for(int j = 0; j < arr.length; j++) {
+              arr[j] = in.readUTF();
+            }
+            values.put(key, arr);
+            break;
+          }
+          case TYPE_BOOLEAN:
+            values.put(key, in.readBoolean());
+            break;
+          case TYPE_OPER: {
+            double def = in.readDouble();
+            OperValue val = new OperValue(def, in.readInt());
+            for(int j = 0; j < val.opers.length; j++) {
+              val.opers[j] = in.readUTF();
+              val.values[j] = in.readDouble();
+            }
+            values.put(key, val);
+            break;
+          }
+          default:
+            throw new IOException("unknown value type " + type);
+        }
+      }
+      return values;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeBinary(Map<String, Object> values, File file)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      out.writeInt(BINARY_MAGIC);
+      out.writeInt(values.size());
+      for(Map.Entry<String, Object> entry : values.entrySet()) {
+        out.writeUTF(entry.getKey());
+        Object value = entry.getValue();
+        if(value instanceof Double) {
+          out.writeByte(TYPE_NUMBER);
+          out.writeDouble((Double)value);
+        } else if(value instanceof double[]) {
+          double[] arr = (double[])value;
+          out.writeByte(TYPE_ARRAY);
+          out.writeInt(arr.length);
+          for(double x : arr) out.writeDouble(x);
+        } else if(value instanceof String) {
+          out.writeByte(TYPE_STRING);
+          out.writeUTF((String)value);
+        } else if(value instanceof String[]) {
+          String[] arr = (String[])value;
+          out.writeByte(TYPE_STRINGS);
+          out.writeInt(arr.length);
+          for(String x : arr) out.writeUTF(x);
+        } else if(value instanceof Boolean) {
+          out.writeByte(TYPE_BOOLEAN);
+          out.writeBoolean((Boolean)value);
+        } else {
+          OperValue val = (OperValue)value;
+          out.writeByte(TYPE_OPER);
+          out.writeDouble(val.def);
+          out.writeInt(val.opers.length);
+          for(int i = 0; i < val.opers.length; i++) {
+            out.writeUTF(val.opers[i]);
+            out.writeDouble(val.values[i]);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static double getNumber(Map<String, Object> values, String key,
+                                  double def) throws IOException {
+    Object value = values.get(key);
+    if(value == null) return def;
+    if(!(value instanceof Double)) {
+      throw new IOException(key + " should be a number");
+    }
+    return (Double)value;
+  }
+
+  private static double[] getArray(Map<String, Object> values, String key)
+      throws IOException {
+    Object value = values.get(key);
+    if(value == null) return null;
+    if(!(value instanceof double[])) {
+      throw new IOException(key + " should be an array of numbers");
+    }
+    return (double[])value;
+  }
+
+  private static String getString(Map<String, Object> values, String key)
+      throws IOException {
+    Object value = values.get(key);
+    if(value == null) return null;
+    if(!(value instanceof String)) {
+      throw new IOException(key + " should be a string");
+    }
+    return (String)value;
+  }
+
+  private static String[] getStrings(Map<String, Object> values, String key)
+      throws IOException {
+    Object value = values.get(key);
+    if(value == null) return null;
+    if(value instanceof double[] && ((double[])value).length == 0) {
+      return new String[0];
+    }
+    if(!(value instanceof String[])) {
+      throw new IOException(key + " should be an array of strings");
+    }
+    return (String[])value;
+  }
+
+  private static boolean getBoolean(Map<String, Object> values, String key)
+      throws IOException {
+    Object value = values.get(key);
+    if(!(value instanceof Boolean)) {
+      throw new IOException(key + " should be true or false");
+    }
+    return (Boolean)value;
+  }
+
+  private static OperValue getOper(Map<String, Object> values, String key)
+      throws IOException {
+    Object value = values.get(key);
+    if(value == null) return null;
+    if(value instanceof Double) {
+      return new OperValue((Double)value, 0);
+    }
+    if(!(value instanceof OperValue)) {
+      throw new IOException(key + " should be a number or an object");
+    }
+    return (OperValue)value;
+  }
+
+  /* A constant that depends on the mobile operator. */
+  private static class OperValue {
+    public double def;
+    public String[] opers;
+    public double[] values;
+
+    public OperValue(double def, int count) {
+      this.def = def;
+      opers = new String[count];
+      values = new double[count];
+    }
+
+    public double get(String oper) {
+      for(int i = 0; i < opers.length; i++) {
+        if(opers[i].equals(oper)) return values[i];
+      }
+      return def;
+    }
+  }
+
+  /* PhoneConstants */
+
+  public String modelName() {
+    return modelName != null ? modelName : fallback.modelName();
+  }
+
+  public double maxPower() {
+    return Double.isNaN(maxPower) ? fallback.maxPower() : maxPower;
+  }
+
+  public double lcdBrightness() {
+    return Double.isNaN(lcdBrightness) ? fallback.lcdBrightness() :
+                                         lcdBrightness;
+  }
+
+  public double lcdBacklight() {
+    return Double.isNaN(lcdBacklight) ? fallback.lcdBacklight() : lcdBacklight;
+  }
+
+  public double oledBasePower() {
+    return Double.isNaN(oledBasePower) ? fallback.oledBasePower() :
+                                         oledBasePower;
+  }
+
+  public double[] oledChannelPower() {
+    return oledChannelPower == null ? fallback.oledChannelPower() :
+                                      oledChannelPower;
+  }
+
+  public double oledModulation() {
+    return Double.isNaN(oledModulation) ? fallback.oledModulation() :
+                                          oledModulation;
+  }
+
+  public double[] cpuPowerRatios() {
+    return cpuPowerRatios == null ? fallback.cpuPowerRatios() : cpuPowerRatios;
+  }
+
+  public double[] cpuFreqs() {
+    return cpuFreqs == null ? fallback.cpuFreqs() : cpuFreqs;
+  }
+
+  public double audioPower() {
+    return Double.isNaN(audioPower) ? fallback.audioPower() : audioPower;
+  }
+
+  public double[] audioRoutePower(String route) {
+    double[] power = audioRoutePower.get(route);
+    return power != null ? power : fallback.audioRoutePower(route);
+  }
+
+  public double[] gpsStatePower() {
+    return gpsStatePower == null ? fallback.gpsStatePower() : gpsStatePower;
+  }
+
+  public double gpsSleepTime() {
+    return Double.isNaN(gpsSleepTime) ? fallback.gpsSleepTime() : gpsSleepTime;
+  }
+
+  public double gpsFixSatellitePower() {
+    return Double.isNaN(gpsFixSatellitePower) ?
+           fallback.gpsFixSatellitePower() : gpsFixSatellitePower;
+  }
+
+  public double wifiLowPower() {
+    return Double.isNaN(wifiLowPower) ? fallback.wifiLowPower() : wifiLowPower;
+  }
+
+  public double wifiHighPower() {
+    return Double.isNaN(wifiHighPower) ? fallback.wifiHighPower() :
+                                         wifiHighPower;
+  }
+
+  public double wifiLowHighTransition() {
+    return Double.isNaN(wifiLowHighTransition) ?
+           fallback.wifiLowHighTransition() : wifiLowHighTransition;
+  }
+
+  public double wifiHighLowTransition() {
+    return Double.isNaN(wifiHighLowTransition) ?
+           fallback.wifiHighLowTransition() : wifiHighLowTransition;
+  }
+
+  public double[] wifiLinkRatios() {
+    return wifiLinkRatios == null ? fallback.wifiLinkRatios() : wifiLinkRatios;
+  }
+
+  public double[] wifiLinkSpeeds() {
+    return wifiLinkSpeeds == null ? fallback.wifiLinkSpeeds() : wifiLinkSpeeds;
+  }
+
+  public String threegInterface() {
+    return threegInterface == null ? fallback.threegInterface() :
+                                     threegInterface;
+  }
+
+  public double threegIdlePower(String oper) {
+    return threegIdlePower == null ? fallback.threegIdlePower(oper) :
+                                     threegIdlePower.get(oper);
+  }
+
+  public double threegFachPower(String oper) {
+    return threegFachPower == null ? fallback.threegFachPower(oper) :
+                                     threegFachPower.get(oper);
+  }
+
+  public double threegDchPower(String oper) {
+    return threegDchPower == null ? fallback.threegDchPower(oper) :
+                                    threegDchPower.get(oper);
+  }
+
+  public int threegUplinkQueue(String oper) {
+    return threegUplinkQueue == null ? fallback.threegUplinkQueue(oper) :
+                                       (int)threegUplinkQueue.get(oper);
+  }
+
+  public int threegDownlinkQueue(String oper) {
+    return threegDownlinkQueue == null ? fallback.threegDownlinkQueue(oper) :
+                                         (int)threegDownlinkQueue.get(oper);
+  }
+
+  public int threegDchFachDelay(String oper) {
+    return threegDchFachDelay == null ? fallback.threegDchFachDelay(oper) :
+                                        (int)threegDchFachDelay.get(oper);
+  }
+
+  public int threegFachIdleDelay(String oper) {
+    return threegFachIdleDelay == null ? fallback.threegFachIdleDelay(oper) :
+                                         (int)threegFachIdleDelay.get(oper);
+  }
+
+  /* Without an entry for the radio UMTS falls back to the threeg constants
+   * and the others to the base phone.
+   */
+  public double[] radioStatePower(String radio, String oper) {
+    double[] power = radioArrays.get(radio + "StatePower");
+    if(power != null) return power;
+    if(RadioModel.UMTS.equals(radio)) {
+      synchronized(umtsPower) {
+        power = umtsPower.get(oper);
+        if(power == null) {
+          power = new double[] {threegIdlePower(oper), threegFachPower(oper),
+                                threegDchPower(oper)};
+          umtsPower.put(oper, power);
+        }
+        return power;
+      }
+    }
+    return fallback.radioStatePower(radio, oper);
+  }
+
+  public double[] radioStateTimers(String radio, String oper) {
+    double[] timers = radioArrays.get(radio + "StateTimers");
+    if(timers != null) return timers;
+    if(RadioModel.UMTS.equals(radio)) {
+      synchronized(umtsTimers) {
+        timers = umtsTimers.get(oper);
+        if(timers == null) {
+          timers = new double[] {0, threegFachIdleDelay(oper),
+                                 threegDchFachDelay(oper)};
+          umtsTimers.put(oper, timers);
+        }
+        return timers;
+      }
+    }
+    return fallback.radioStateTimers(radio, oper);
+  }
+
+  public double[] sensorPower() {
+    return sensorPower == null ? fallback.sensorPower() : sensorPower;
+  }
+
+  /* Same as DreamConstants but using the profile's values. */
+  public double getMaxPower(String componentName) {
+    if("LCD".equals(componentName)) {
+      return lcdBacklight() + lcdBrightness() * 255;
+    } else if("CPU".equals(componentName)) {
+      double[] ratios = cpuPowerRatios();
+      return ratios[ratios.length - 1] * 100;
+    } else if("Audio".equals(componentName)) {
+      double[] speaker = audioRoutePower(Audio.ROUTE_SPEAKER);
+      return speaker[0] + speaker[1];
+    } else if("GPS".equals(componentName)) {
+      double[] gpsPow = gpsStatePower();
+      return gpsPow[gpsPow.length - 1];
+    } else if("3G".equals(componentName)) {
+      return threegDchPower("");
+    } else if("Sensors".equals(componentName)) {
+      double res = 0;
+      for(double x : sensorPower()) res += x;
+      return res;
+    }
+    return fallback.getMaxPower(componentName);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.service;
+
+import edu.umich.PowerTutor.util.LogCodec;
+
+import android.os.Debug;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Measures the cost of compressing the log.  The codec's stream is wrapped on
+ * both sides so that we can count the bytes going into and coming out of it as
+ * well as the thread CPU time spent compressing and writing it out.  Every
+ * segment of the log gets a line of the form
+ *
+ *   log_codec <codec> <raw bytes> <compressed bytes> <cpu microseconds>
+ *
+ * covering the data written since the previous such line.  Codecs buffer data
+ * internally so the compressed size of any one segment is only approximate but
+ * the totals over the whole log are exact.
+ */
+public class LogCodecMeter {
+  private LogCodec codec;
+
+  private long rawBytes;
+  private long compressedBytes;
+  private long cpuNanos;
+
+  public LogCodecMeter(LogCodec codec) {
+    this.codec = codec;
+  }
+
+  /* Returns a stream that writes to out through the codec. */
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new RawStream(codec.wrap(new CompressedStream(out)));
+  }
+
+  /* Writes the statistics for the segment just finished and starts a new
+   * segment.
+   */
+  public void writeSegment(LogSink out) throws IOException {
+    out.append("log_codec ").append(codec.getName()).append(' ')
+       .append(rawBytes).append(' ').append(compressedBytes).append(' ')
+       .append(cpuNanos / 1000).append('\n');
+    rawBytes = 0;
+    compressedBytes = 0;
+    cpuNanos = 0;
+  }
+
+  private class RawStream extends FilterOutputStream {
+    public RawStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      long start = Debug.threadCpuTimeNanos();
+      out.write(b);
+      rawBytes++;
+      charge(start);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = Debug.threadCpuTimeNanos();
+      out.write(b, off, len);
+      rawBytes += len;
+      charge(start);
+    }
+
+    public void flush() throws IOException {
+      long start = Debug.threadCpuTimeNanos();
+      out.flush();
+      charge(start);
+    }
+
+    public void close() throws IOException {
+      long start = Debug.threadCpuTimeNanos();
+      out.close();
+      charge(start);
+    }
+
+    private void charge(long start) {
+      /* threadCpuTimeNanos gives -1 where it isn't supported. */
+      if(start != -1) {
+        cpuNanos += Debug.threadCpuTimeNanos() - start;
+      }
+    }
+  }
+
+  private class CompressedStream extends FilterOutputStream {
+    public CompressedStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      compressedBytes++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      compressedBytes += len;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* A LogSink that encodes appended values straight into a reusable byte buffer
+ * which is handed to the underlying stream only when it fills up.  Numbers are
+ * formatted without building Strings so that writing the log every iteration
+ * does not create any garbage.  Text is written out as UTF-8.
+ */
+public class LogEncoder implements LogSink {
+  private static final int BUFFER_SIZE = 4096;
+
+  private OutputStream out;
+  private byte[] buf;
+  private int pos;
+  private byte[] digits;
+  /* Doubles are formatted here so they come out exactly as String.valueOf
+   * gives them, which is what the log has always held.
+   */
+  private StringBuilder number;
+
+  public LogEncoder(OutputStream out) {
+    this.out = out;
+    buf = new byte[BUFFER_SIZE];
+    digits = new byte[20];
+    number = new StringBuilder(32);
+    pos = 0;
+  }
+
+  public LogSink append(String s) throws IOException {
+    if(s == null) s = "null";
+    int len = s.length();
+    for(int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if(c < 0x80) {
+        put((byte)c);
+      } else if(c < 0x800) {
+        put((byte)(0xC0 | c >> 6));
+        put((byte)(0x80 | c & 0x3F));
+      } else if(Character.isHighSurrogate(c) && i + 1 < len &&
+                Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        put((byte)(0xF0 | cp >> 18));
+        put((byte)(0x80 | cp >> 12 & 0x3F));
+        put((byte)(0x80 | cp >> 6 & 0x3F));
+        put((byte)(0x80 | cp & 0x3F));
+      } else {
+        put((byte)(0xE0 | c >> 12));
+        put((byte)(0x80 | c >> 6 & 0x3F));
+        put((byte)(0x80 | c & 0x3F));
+      }
+    }
+    return this;
+  }
+
+  public LogSink append(char c) throws IOException {
+    if(c < 0x80) {
+      put((byte)c);
+      return this;
+    }
+    return append(String.valueOf(c));
+  }
+
+  public LogSink append(long x) throws IOException {
+    if(x == Long.MIN_VALUE) {
+      return append(Long.toString(x));
+    }
+    if(x < 0) {
+      put((byte)'-');
+      x = -x;
+    }
+    int n = 0;
+    do {
+      digits[n++] = (byte)('0' + x % 10);
+      x /= 10;
+    } while(x != 0);
+    while(n > 0) {
+      put(digits[--n]);
+    }
+    return this;
+  }
+
+  public LogSink append(double x) throws IOException {
+    number.setLength(0);
+    number.append(x);
+    int len = number.length();
+    for(int i = 0; i < len; i++) {
+      put((byte)number.charAt(i));
+    }
+    return this;
+  }
+
+  public LogSink append(boolean x) throws IOException {
+    return append(x ? "true" : "false");
+  }
+
+  /* Writes any buffered data through to the underlying stream and flushes
+   * it.
+   */
+  public void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    drain();
+    out.close();
+  }
+
+  private void put(byte b) throws IOException {
+    if(pos == buf.length) {
+      drain();
+    }
+    buf[pos++] = b;
+  }
+
+  private void drain() throws IOException {
+    if(pos > 0) {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+}
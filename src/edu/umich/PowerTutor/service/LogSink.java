@@ -0,0 +1,39 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.service;
+
+import java.io.IOException;
+
+/* Destination for lines written to the power log.  Values are appended
+ * directly as primitives so that callers never have to build a String just to
+ * write a log line.  Every append returns the sink so that a line can be
+ * written as a single chain of calls.
+ */
+public interface LogSink {
+  public LogSink append(String s) throws IOException;
+
+  public LogSink append(char c) throws IOException;
+
+  public LogSink append(long x) throws IOException;
+
+  public LogSink append(double x) throws IOException;
+
+  public LogSink append(boolean x) throws IOException;
+}
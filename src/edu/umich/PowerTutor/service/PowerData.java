@@ -19,9 +19,7 @@ Please send inquiries to powertutor@umich.edu
 
 package edu.umich.PowerTutor.service;
 
-import java.io.OutputStreamWriter;
 import java.io.IOException;
-import java.util.Vector;
 
 public abstract class PowerData {
   private int cachedPower;
@@ -42,7 +40,6 @@ public abstract class PowerData {
    */
   public void recycle() {}
 
-  /* Simply writes out log information to the passed stream. */
-  public abstract void writeLogDataInfo(OutputStreamWriter out)
-      throws IOException;
+  /* Simply writes out log information to the passed sink. */
+  public abstract void writeLogDataInfo(LogSink out) throws IOException;
 }
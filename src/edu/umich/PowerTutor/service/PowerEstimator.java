@@ -21,12 +21,16 @@ package edu.umich.PowerTutor.service;
 
 import edu.umich.PowerTutor.components.PowerComponent;
 import edu.umich.PowerTutor.components.OLED;
+import edu.umich.PowerTutor.phone.CalibratedConstants;
 import edu.umich.PowerTutor.phone.PhoneSelector;
 import edu.umich.PowerTutor.phone.PhoneConstants;
 import edu.umich.PowerTutor.phone.PowerFunction;
 import edu.umich.PowerTutor.util.BatteryStats;
 import edu.umich.PowerTutor.util.Counter;
+import edu.umich.PowerTutor.util.HighRateSampler;
 import edu.umich.PowerTutor.util.HistoryBuffer;
+import edu.umich.PowerTutor.util.LogCodec;
+import edu.umich.PowerTutor.util.ModelValidator;
 import edu.umich.PowerTutor.util.NotificationService;
 import edu.umich.PowerTutor.util.SystemInfo;
 import edu.umich.PowerTutor.widget.PowerWidget;
@@ -42,15 +46,13 @@ import android.util.SparseArray;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /** This class is responsible for starting the individual power component
  *  loggers (CPU, GPS, etc...) and collecting the information they generate.
@@ -61,39 +63,45 @@ import java.util.zip.DeflaterOutputStream;
 public class PowerEstimator implements Runnable {
   private static final String TAG = "PowerEstimator";
 
-  /* A dictionary used to assist in compression of the log files.  Strings that
-   * appear more frequently should be put towards the end of the dictionary. It
-   * is not critical that every string that be written to the log appear here.
-   */
-  private static final String DEFLATE_DICTIONARY =
-      "onoffidleoff-hookringinglowairplane-modebatteryedgeGPRS3Gunknown" +
-      "in-serviceemergency-onlyout-of-servicepower-offdisconnectedconnecting" +
-      "associateconnectedsuspendedphone-callservicenetworkbegin.0123456789" +
-      "GPSAudioWifi3GLCDCPU-power ";
-
   public static final int ALL_COMPONENTS = -1;
   public static final int ITERATION_INTERVAL = 1000; // 1 second
 
+  /* Number of iterations the model is validated over at a time. */
+  public static final int VALIDATION_WINDOW = 60;
+
   private UMLoggerService context;
   private SharedPreferences prefs;
-  private boolean plugged;
+  private volatile boolean plugged;
 
   private Vector<PowerComponent> powerComponents;
   private Vector<PowerFunction> powerFunctions;
   private Vector<HistoryBuffer> histories;
   private Map<Integer, String> uidAppIds;
 
+  /* Every model run over the collected data.  The last is the default model
+   * whose functions and histories are powerFunctions and histories above; it
+   * is the one logged in full and checked against the battery.  The others
+   * only log their total power.
+   */
+  private Vector<PowerModel> models;
+
+  /* The histories of the model picked for display. */
+  private volatile Vector<HistoryBuffer> shownHistories;
+  private SharedPreferences.OnSharedPreferenceChangeListener modelListener;
+
   // Miscellaneous data.
   private HistoryBuffer oledScoreHistory;
 
   private Object fileWriteLock = new Object();
   private LogUploader logUploader;
-  private OutputStreamWriter logStream;
-  private DeflaterOutputStream deflateStream;
+  private LogEncoder logStream;
+  private LogCodecMeter logMeter;
   
   private Object iterationLock = new Object();
   private long lastWrittenIteration;
 
+  private ModelValidator validator;
+
   public PowerEstimator(UMLoggerService context){
     this.context = context;
     prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -108,8 +116,92 @@ public class PowerEstimator implements Runnable {
     }
     oledScoreHistory = new HistoryBuffer(0);
 
+    /* The other models share the components so they cost only the power
+     * calculations.
+     */
+    models = new Vector<PowerModel>();
+    List<String> modelNames = PhoneSelector.getModels(context);
+    for(int m = 0; m < modelNames.size(); m++) {
+      String name = modelNames.get(m);
+      if(m == modelNames.size() - 1) {
+        models.add(new PowerModel(name, powerFunctions, histories));
+        break;
+      }
+      Vector<PowerFunction> functions = new Vector<PowerFunction>();
+      PhoneSelector.generateFunctions(powerComponents,
+          PhoneSelector.getCalculator(context, name), functions);
+      Vector<HistoryBuffer> modelHistories = new Vector<HistoryBuffer>();
+      for(int i = 0; i < powerComponents.size(); i++) {
+        modelHistories.add(new HistoryBuffer(300));
+      }
+      models.add(new PowerModel(name, functions, modelHistories));
+    }
+    showModel(prefs.getString("powerModel", "default"));
+    modelListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+      public void onSharedPreferenceChanged(SharedPreferences prefs,
+                                            String key) {
+        if("powerModel".equals(key)) {
+          showModel(prefs.getString(key, "default"));
+        }
+      }
+    };
+    prefs.registerOnSharedPreferenceChangeListener(modelListener);
+
     logUploader = new LogUploader(context);
     openLog(true);
+
+    /* Record how far the estimate is off from what the battery says for each
+     * window that we were running on battery.
+     */
+    validator = new ModelValidator(VALIDATION_WINDOW,
+        ITERATION_INTERVAL / 1000.0, new ModelValidator.Listener() {
+      public void windowDone(String config, long startIteration, int samples,
+                             double estimated, double measured) {
+        synchronized(fileWriteLock) {
+          if(logStream != null) try {
+            logStream.append("model-error ").append(config).append(' ')
+                     .append(startIteration).append(' ').append(samples)
+                     .append(' ').append(estimated).append(' ')
+                     .append(measured).append('\n');
+          } catch(IOException e) {
+            Log.w(TAG, "Failed to write to log file");
+          }
+        }
+      }
+    });
+  }
+
+  /* Registers the counters that are cheap enough to read many times a second:
+   * the battery current, the CPU frequency and the byte counts of the network
+   * interfaces.
+   */
+  private void addHighRateChannels(HighRateSampler highRate,
+                                   PhoneConstants constants, BatteryStats bst) {
+    if(bst.hasCurrent()) {
+      highRate.addLevel("current", bst.getCurrentFile(),
+                        bst.getCurrentScale(),
+                        new double[] {0.1, 0.2, 0.4, 0.8});
+    }
+
+    /* One bin for each of the phone's frequencies. */
+    double[] freqs = constants.cpuFreqs();
+    double[] edges = new double[Math.max(0, freqs.length - 1)];
+    for(int i = 0; i < edges.length; i++) {
+      edges[i] = (freqs[i] + freqs[i + 1]) / 2;
+    }
+    highRate.addLevel("cpufreq",
+        "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq", 1e-3, edges);
+
+    String[] ifaces = {
+      SystemInfo.getInstance().getProperty("wifi.interface"),
+      constants.threegInterface()
+    };
+    for(String iface : ifaces) {
+      if(iface == null || iface.length() == 0) continue;
+      String stats = "/sys/devices/virtual/net/" + iface + "/statistics/";
+      highRate.addRate(iface + "-tx", stats + "tx_bytes", 1, null);
+      highRate.addRate(iface + "-rx", stats + "rx_bytes", 1, null);
+    }
   }
 
   private void openLog(boolean init) {
@@ -124,11 +216,18 @@ public class PowerEstimator implements Runnable {
          */
         logUploader.upload(logFilename);
       }
-      Deflater deflater = new Deflater();
-      deflater.setDictionary(DEFLATE_DICTIONARY.getBytes());
-      deflateStream = new DeflaterOutputStream(
-                          new FileOutputStream(logFilename));
-      logStream = new OutputStreamWriter(deflateStream);
+      /* The upload server only understands plain zlib streams so the codec
+       * preference only applies to logs that are never sent anywhere.
+       */
+      LogCodec codec = LogCodec.forUpload();
+      if(!LogUploader.uploadSupported() ||
+         !prefs.getBoolean("sendPermission", true)) {
+        codec = LogCodec.forName(prefs.getString("logCodec",
+                                                 LogCodec.DEFAULT));
+      }
+      logMeter = new LogCodecMeter(codec);
+      logStream = new LogEncoder(logMeter.wrap(
+          new FileOutputStream(logFilename)));
     } catch(IOException e) {
       logStream = null;
       Log.e(TAG, "Failed to open log file.  No log will be kept.");
@@ -149,8 +248,11 @@ public class PowerEstimator implements Runnable {
       powerComponents.get(i).start();
     }
     IterationData[] dataTemp = new IterationData[components];
+    int[] uidPowers = new int[64];
+    int[] modelPowers = new int[models.size()];
 
     PhoneConstants phoneConstants = PhoneSelector.getConstants(context);
+    CalibratedConstants calibration = PhoneSelector.getCalibration(context);
     long[] memInfo = new long[4];
 
     int oledId = -1;
@@ -160,8 +262,33 @@ public class PowerEstimator implements Runnable {
         break;
       }
     }
+    int[] componentBits = new int[components];
+    for(int i = 0; i < components; i++) {
+      componentBits[i] = validator.componentBit(
+          powerComponents.get(i).getComponentName());
+    }
+
+    HighRateSampler highRate = HighRateSampler.getInstance();
+    addHighRateChannels(highRate, phoneConstants, bst);
+    try {
+      highRate.setRate(Integer.parseInt(
+          prefs.getString("highRateSampling", "0")));
+    } catch(NumberFormatException e) {
+      highRate.setRate(0);
+    }
+    HighRateSampler.Channel[] highRateChannels = highRate.getChannels();
+    HighRateSampler.Summary[] highRateSummaries =
+        new HighRateSampler.Summary[highRateChannels.length];
+    HighRateSampler.Summary currentSummary = null;
+    for(int i = 0; i < highRateChannels.length; i++) {
+      highRateSummaries[i] = new HighRateSampler.Summary(highRateChannels[i]);
+      if("current".equals(highRateChannels[i].getName())) {
+        currentSummary = highRateSummaries[i];
+      }
+    }
 
     double lastCurrent = -1;
+    double lastVoltage = -1;
 
     /* Indefinitely collect data on each of the power components. */
     boolean firstLogIteration = true;
@@ -181,7 +308,15 @@ public class PowerEstimator implements Runnable {
         break;
       }
 
+      for(int i = 0; i < highRateChannels.length; i++) {
+        highRateChannels[i].drain(highRateSummaries[i]);
+      }
+
       int totalPower = 0;
+      int config = 0;
+      for(int m = 0; m < modelPowers.length; m++) {
+        modelPowers[m] = 0;
+      }
       for(int i = 0; i < components; i++) {
         PowerComponent comp = powerComponents.get(i);
         IterationData data = comp.getData(iter);
@@ -193,24 +328,52 @@ public class PowerEstimator implements Runnable {
         }
         
         SparseArray<PowerData> uidPower = data.getUidPowerData();
+        if(uidPowers.length < uidPower.size()) {
+          uidPowers = new int[uidPower.size() * 2];
+        }
+        powerFunctions.get(i).calculateAll(uidPower, uidPowers);
         for(int j = 0; j < uidPower.size(); j++) {
           int uid = uidPower.keyAt(j);
           PowerData powerData = uidPower.valueAt(j);
-          int power = (int)powerFunctions.get(i).calculate(powerData);
+          int power = uidPowers[j];
           powerData.setCachedPower(power);
           histories.get(i).add(uid, iter, power);
           if(uid == SystemInfo.AID_ALL) {
             totalPower += power;
+            if(power > 0) {
+              config |= componentBits[i];
+            }
           }
           if(i == oledId) {
             OLED.OledData oledData = (OLED.OledData)powerData;
-            if(oledData.pixPower >= 0) {
-              oledScoreHistory.add(uid, iter, (int)(1000 * oledData.pixPower));
+            /* The score is for the whole screen showing what the uid
+             * shows.
+             */
+            if(oledData.pixPower >= 0 && oledData.share > 0) {
+              oledScoreHistory.add(uid, iter, (int)(1000 *
+                  oledData.pixPower / oledData.share));
+            }
+          }
+        }
+
+        for(int m = 0; m < models.size() - 1; m++) {
+          PowerModel model = models.get(m);
+          model.functions.get(i).calculateAll(uidPower, uidPowers);
+          for(int j = 0; j < uidPower.size(); j++) {
+            int uid = uidPower.keyAt(j);
+            model.histories.get(i).add(uid, iter, uidPowers[j]);
+            if(uid == SystemInfo.AID_ALL) {
+              modelPowers[m] += uidPowers[j];
             }
           }
         }
       }
 
+      if(calibration != null) {
+        /* The calibrated model is the one shown when calibration is on. */
+        totalPower += (int)Math.round(calibration.basePower());
+      }
+
       /* Update the uid set. */
       synchronized(fileWriteLock) { synchronized(uidAppIds) {
         for(int i = 0; i < components; i++) {
@@ -232,7 +395,8 @@ public class PowerEstimator implements Runnable {
               if(!firstLogIteration && logStream != null &&
                  (appId == null || !appId.equals(newAppId))) {
                 try {
-                  logStream.write("associate " + uid + " " + newAppId + "\n");
+                  logStream.append("associate ").append(uid).append(' ')
+                           .append(newAppId).append('\n');
                 } catch(IOException e) {
                   Log.w(TAG, "Failed to write to log file");
                 }
@@ -278,19 +442,54 @@ public class PowerEstimator implements Runnable {
         PowerWidget.updateWidget(context, this);
       }
 
+      double current = -1;
       if(bst.hasCurrent()) {
-        double current = bst.getCurrent();
+        current = bst.getCurrent();
         if(current != lastCurrent) {
-          writeToLog("batt_current " + current + "\n");
+          writeToLog("batt_current ", current);
           lastCurrent = current;
         }
       }
+      /* The average over the second from the high rate lane matches what the
+       * model estimates better than a single reading.
+       */
+      double measuredCurrent = current;
+      if(current != -1 && currentSummary != null &&
+         currentSummary.count != 0) {
+        measuredCurrent = currentSummary.mean;
+      }
+      double voltage = -1;
+      if(bst.hasVoltage()) {
+        voltage = bst.getVoltage();
+        if(voltage != lastVoltage) {
+          writeToLog("batt_voltage ", voltage);
+          lastVoltage = voltage;
+        }
+      }
+      try {
+        if(plugged || current == -1 || voltage <= 0) {
+          validator.finishWindow();
+        } else {
+          validator.sample(iter, config, totalPower,
+                           Math.abs(measuredCurrent) * voltage * 1000);
+        }
+      } catch(IOException e) {
+        /* The listener handles its own errors. */
+      }
+      if(calibration != null) {
+        if(plugged || current == -1 || voltage <= 0) {
+          calibration.skipSample();
+        } else {
+          calibration.addSample(dataTemp,
+                                Math.abs(measuredCurrent) * voltage * 1000);
+        }
+      }
       if(iter % (5*60) == 0) {
         if(bst.hasTemp()) {
-          writeToLog("batt_temp " + bst.getTemp() + "\n");
+          writeToLog("batt_temp ", bst.getTemp());
         }
         if(bst.hasCharge()) {
-          writeToLog("batt_charge " + bst.getCharge() + "\n");
+          writeToLog("batt_charge ", bst.getCharge());
         }
       }
       if(iter % (30*60) == 0) {
@@ -302,14 +501,14 @@ public class PowerEstimator implements Runnable {
                                 context.getContentResolver(),
                                 Settings.System.SCREEN_BRIGHTNESS, -1);
           if(brightness != -1) {
-            writeToLog("setting_brightness " + brightness + "\n");
+            writeToLog("setting_brightness ", brightness);
           }
         }
         int timeout = Settings.System.getInt(
                             context.getContentResolver(),
                             Settings.System.SCREEN_OFF_TIMEOUT, -1);
         if(timeout != -1) {
-          writeToLog("setting_screen_timeout " + timeout + "\n");
+          writeToLog("setting_screen_timeout ", timeout);
         }
         String httpProxy = Settings.Secure.getString(
                                 context.getContentResolver(),
@@ -331,34 +530,55 @@ public class PowerEstimator implements Runnable {
         if(logStream != null) try {
           if(firstLogIteration) {
             firstLogIteration = false;
-            logStream.write("time " + System.currentTimeMillis() + "\n");
+            logStream.append("time ").append(System.currentTimeMillis())
+                     .append('\n');
             Calendar cal = new GregorianCalendar();
-            logStream.write("localtime_offset " +
-                            (cal.get(Calendar.ZONE_OFFSET) +
-                             cal.get(Calendar.DST_OFFSET)) + "\n");
-            logStream.write("model " + phoneConstants.modelName() + "\n");
+            logStream.append("localtime_offset ")
+                     .append(cal.get(Calendar.ZONE_OFFSET) +
+                             cal.get(Calendar.DST_OFFSET)).append('\n');
+            logStream.append("model ").append(phoneConstants.modelName())
+                     .append('\n');
             if(NotificationService.available()) {
-              logStream.write("notifications-active\n");
+              logStream.append("notifications-active\n");
             }
             if(bst.hasFullCapacity()) {
-              logStream.write("batt_full_capacity " + bst.getFullCapacity()
-                              + "\n");
+              logStream.append("batt_full_capacity ")
+                       .append(bst.getFullCapacity()).append('\n');
             }
             synchronized(uidAppIds) {
               for(int uid : uidAppIds.keySet()) {
                 if(uid < SystemInfo.AID_APP) {
                   continue;
                 }
-                logStream.write("associate " + uid + " " + uidAppIds.get(uid)
-                                + "\n");
+                logStream.append("associate ").append(uid).append(' ')
+                         .append(uidAppIds.get(uid)).append('\n');
               }
             }
           }
-          logStream.write("begin " + iter + "\n");
-          logStream.write("total-power " + (long)Math.round(totalPower) + '\n');
+          logStream.append("begin ").append(iter).append('\n');
+          logStream.append("total-power ").append((long)Math.round(totalPower))
+                   .append('\n');
+          for(int m = 0; m < models.size() - 1; m++) {
+            logStream.append("total-power-").append(models.get(m).name)
+                     .append(' ').append(modelPowers[m]).append('\n');
+          }
+          for(int i = 0; i < highRateChannels.length; i++) {
+            HighRateSampler.Summary summary = highRateSummaries[i];
+            if(summary.count == 0) continue;
+            logStream.append("hf-").append(highRateChannels[i].getName())
+                     .append(' ').append(summary.count)
+                     .append(' ').append(summary.min)
+                     .append(' ').append(summary.max)
+                     .append(' ').append(summary.mean);
+            for(int j = 0; j < summary.binTimes.length; j++) {
+              logStream.append(' ').append(summary.binTimes[j]);
+            }
+            logStream.append('\n');
+          }
           if(hasMem) {
-            logStream.write("meminfo " + memInfo[0] + " " + memInfo[1] +
-                            " " + memInfo[2] + " " + memInfo[3] + "\n");
+            logStream.append("meminfo ").append(memInfo[0]).append(' ')
+                     .append(memInfo[1]).append(' ').append(memInfo[2])
+                     .append(' ').append(memInfo[3]).append('\n');
           }
           for(int i = 0; i < components; i++) {
             IterationData data = dataTemp[i];
@@ -369,17 +589,20 @@ public class PowerEstimator implements Runnable {
                 int uid = uidData.keyAt(j);
                 PowerData powerData = uidData.valueAt(j);
                 if(uid == SystemInfo.AID_ALL) {
-                  logStream.write(name + " " + (long)Math.round(
-                      powerData.getCachedPower()) + "\n");
+                  logStream.append(name).append(' ')
+                           .append(powerData.getCachedPower()).append('\n');
                   powerData.writeLogDataInfo(logStream);
                 } else {
-                  logStream.write(name + "-" + uid + " " + (long)Math.round(
-                                  powerData.getCachedPower()) + "\n");
+                  logStream.append(name).append('-').append(uid).append(' ')
+                           .append(powerData.getCachedPower()).append('\n');
                 }
               }
               data.recycle();
             }
           }
+          if(iter % (5*60) == 0) {
+            logMeter.writeSegment(logStream);
+          }
         } catch(IOException e) {
           Log.w(TAG, "Failed to write to log file");
         }
@@ -390,6 +613,7 @@ public class PowerEstimator implements Runnable {
            */
           if(logUploader.shouldUpload()) {
             try {
+              logMeter.writeSegment(logStream);
               logStream.close();
             } catch(IOException e) {
               Log.w(TAG, "Failed to flush and close log stream");
@@ -404,9 +628,16 @@ public class PowerEstimator implements Runnable {
       }
     }
 
+    prefs.unregisterOnSharedPreferenceChangeListener(modelListener);
+    highRate.setRate(0);
+
     /* Blank the widget's display and turn off power button. */
     PowerWidget.updateWidgetDone(context);
 
+    if(calibration != null) {
+      calibration.save();
+    }
+
     /* Have all of the power component threads exit. */
     logUploader.interrupt();
     for(int i = 0; i < components; i++) {
@@ -428,6 +659,7 @@ public class PowerEstimator implements Runnable {
      */
     synchronized(fileWriteLock) {
       if(logStream != null) try {
+        logMeter.writeSegment(logStream);
         logStream.close();
       } catch(IOException e) {
         Log.w(TAG, "Failed to flush log file on exit");
@@ -435,14 +667,49 @@ public class PowerEstimator implements Runnable {
     }
   }
   
+  /* Switches the histories reported to the UI to those of the named model.
+   * Unknown names, such as "default", pick the default model.
+   */
+  private void showModel(String name) {
+    PowerModel shown = models.get(models.size() - 1);
+    for(PowerModel model : models) {
+      if(model.name.equals(name)) {
+        shown = model;
+      }
+    }
+    shownHistories = shown.histories;
+  }
+
   public void plug(boolean plugged) {
+    this.plugged = plugged;
     logUploader.plug(plugged);
   }
 
   public void writeToLog(String m) {
     synchronized(fileWriteLock) {
       if(logStream != null) try {
-        logStream.write(m);
+        logStream.append(m);
+      } catch(IOException e) {
+        Log.w(TAG, "Failed to write message to power log");
+      }
+    }
+  }
+
+  /* Writes a single "<prefix><value>" line without building a String. */
+  private void writeToLog(String prefix, double value) {
+    synchronized(fileWriteLock) {
+      if(logStream != null) try {
+        logStream.append(prefix).append(value).append('\n');
+      } catch(IOException e) {
+        Log.w(TAG, "Failed to write message to power log");
+      }
+    }
+  }
+
+  private void writeToLog(String prefix, long value) {
+    synchronized(fileWriteLock) {
+      if(logStream != null) try {
+        logStream.append(prefix).append(value).append('\n');
       } catch(IOException e) {
         Log.w(TAG, "Failed to write message to power log");
       }
@@ -489,7 +756,7 @@ public class PowerEstimator implements Runnable {
     if(componentId == ALL_COMPONENTS) {
       int[] result = new int[count];
       for(int i = 0; i < components; i++) {
-        int[] comp = histories.get(i).get(uid, iteration, count);
+        int[] comp = shownHistories.get(i).get(uid, iteration, count);
         for(int j = 0; j < count; j++) {
           result[j] += comp[j];
         }
@@ -497,14 +764,14 @@ public class PowerEstimator implements Runnable {
       return result;
     }
     if(componentId < 0 || components <= componentId) return null;
-    return histories.get(componentId).get(uid, iteration, count);
+    return shownHistories.get(componentId).get(uid, iteration, count);
   }
 
   public long[] getTotals(int uid, int windowType) {
     int components = powerComponents.size();
     long[] ret = new long[components];
     for(int i = 0; i < components; i++) {
-      ret[i] = histories.get(i).getTotal(uid, windowType) *
+      ret[i] = shownHistories.get(i).getTotal(uid, windowType) *
                ITERATION_INTERVAL / 1000;
     }
     return ret;
@@ -514,7 +781,7 @@ public class PowerEstimator implements Runnable {
     long runningTime = 0;
     int components = powerComponents.size();
     for(int i = 0; i < components; i++) {
-      long entries = histories.get(i).getCount(uid, windowType);
+      long entries = shownHistories.get(i).getCount(uid, windowType);
       runningTime = entries > runningTime ? entries : runningTime;
     }
     return runningTime * ITERATION_INTERVAL / 1000;
@@ -544,7 +811,7 @@ public class PowerEstimator implements Runnable {
         int currentPower = 0;
         for(int i = 0; i < components; i++) {
           if((ignoreMask & 1 << i) == 0) {
-            currentPower += histories.get(i).get(uid, iteration, 1)[0];
+            currentPower += shownHistories.get(i).get(uid, iteration, 1)[0];
           }
         }
         double scale = ITERATION_INTERVAL / 1000.0;
@@ -582,5 +849,17 @@ public class PowerEstimator implements Runnable {
     }
     return -1;
   }
-}
 
+  private static class PowerModel {
+    public String name;
+    public Vector<PowerFunction> functions;
+    public Vector<HistoryBuffer> histories;
+
+    public PowerModel(String name, Vector<PowerFunction> functions,
+                      Vector<HistoryBuffer> histories) {
+      this.name = name;
+      this.functions = functions;
+      this.histories = histories;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import edu.umich.PowerTutor.R;
 import edu.umich.PowerTutor.phone.PhoneSelector;
 import edu.umich.PowerTutor.service.ICounterService;
 import edu.umich.PowerTutor.service.UMLoggerService;
+import edu.umich.PowerTutor.util.LogCodec;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -55,10 +56,10 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.util.zip.InflaterInputStream;
 import java.io.BufferedOutputStream;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -125,7 +126,7 @@ public class UMLogger extends Activity  {
     super.onResume();
     getApplicationContext().bindService(serviceIntent, conn, 0);
     if(prefs.getBoolean("firstRun", true)) {
-      if(PhoneSelector.getPhoneType() == PhoneSelector.PHONE_UNKNOWN) {
+      if(!PhoneSelector.phoneSupported(this)) {
         showDialog(DIALOG_UNKNOWN_PHONE);
       } else {
         showDialog(DIALOG_TOS);
@@ -176,7 +177,7 @@ public class UMLogger extends Activity  {
                 Environment.getExternalStorageDirectory(), "PowerTrace" + 
                     System.currentTimeMillis() + ".log");
             try {
-              InflaterInputStream logIn = new InflaterInputStream(
+              InputStream logIn = LogCodec.open(
                   openFileInput("PowerTrace.log"));
               BufferedOutputStream logOut = new BufferedOutputStream(
                   new FileOutputStream(writeFile));
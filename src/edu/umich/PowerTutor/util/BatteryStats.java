@@ -162,6 +162,18 @@ public class BatteryStats {
     return currentFile != null;
   }
 
+  /* The file the current is read from and the factor that converts its
+   * contents to amps, for reading it more often than getCurrent() is meant
+   * to be called.
+   */
+  public String getCurrentFile() {
+    return currentFile;
+  }
+
+  public double getCurrentScale() {
+    return currentConv;
+  }
+
   public double getCurrent() {
     long curr = sysInfo.readLongFromFile(currentFile);
     return curr == -1 ? -1.0 : currentConv * curr;
@@ -22,6 +22,11 @@ package edu.umich.PowerTutor.util;
 import edu.umich.PowerTutor.util.SystemInfo;
 
 import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
 
 import java.util.Arrays;
 import java.util.BitSet;
@@ -30,8 +35,21 @@ import java.util.List;
 /* This detector looks for transitions where one app leaves the foreground and
  * another enters the foreground to detect apps that are legitimately in the
  * foreground.  If no application is known to be legitimate system is returned.
+ *
+ * Asking the activity manager for the running processes is a binder call that
+ * builds a list of every process so it is only done after something that could
+ * have changed the foreground app: the screen coming on, the keyguard going
+ * away, the home key, or user activity when the notification hook is installed.
+ * The rest of the time the foreground uid is just the one last found.  Without
+ * the hook app switches made by touch can't be seen so while the screen is on
+ * the list is also checked every REFRESH_BACKSTOP_MS.  With the hook, or with
+ * the screen off, the check only guards against a missed event and is made
+ * every REFRESH_BACKSTOP_IDLE_MS.
  */
 public class ForegroundDetector {
+  private static final long REFRESH_BACKSTOP_MS = 1000;
+  private static final long REFRESH_BACKSTOP_IDLE_MS = 60000;
+
   int lastSize;
   int[] lastUids;
   int nowSize;
@@ -39,22 +57,105 @@ public class ForegroundDetector {
 
   private BitSet validated;
 
+  private Context context;
   private ActivityManager activityManager;
+  private BroadcastReceiver broadcastReceiver;
+  private NotificationService.DefaultReceiver notificationReceiver;
+  private volatile boolean screenOn;
+
+  private volatile int foregroundUid;
+  private volatile boolean dirty;
+  private volatile int refreshes;
+  private long nextRefresh;
 
-  public ForegroundDetector(ActivityManager activityManager) {
+  public ForegroundDetector(Context context) {
     lastSize = nowSize = 0;
     lastUids = new int[10];
     nowUids = new int[10];
     validated = new BitSet(1 << 16);
     validated.set(android.os.Process.myUid());
-    this.activityManager = activityManager;
+    foregroundUid = SystemInfo.AID_SYSTEM;
+    dirty = true;
+    screenOn = true;
+    this.context = context;
+    activityManager = (ActivityManager)
+        context.getSystemService(Context.ACTIVITY_SERVICE);
+
+    broadcastReceiver = new BroadcastReceiver() {
+      public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if(Intent.ACTION_SCREEN_OFF.equals(action)) {
+          screenOn = false;
+          return;
+        }
+        if(Intent.ACTION_SCREEN_ON.equals(action)) {
+          screenOn = true;
+        }
+        dirty = true;
+      }
+    };
+    IntentFilter intentFilter = new IntentFilter();
+    intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+    intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+    intentFilter.addAction(Intent.ACTION_USER_PRESENT);
+    intentFilter.addAction(Intent.ACTION_CLOSE_SYSTEM_DIALOGS);
+    context.registerReceiver(broadcastReceiver, intentFilter);
+
+    if(NotificationService.available()) {
+      notificationReceiver = new NotificationService.DefaultReceiver() {
+        /* The uid is the owner of the window that got the input so an app
+         * seen here is one the user is really using.
+         */
+        public void noteUserActivity(int uid, int event) {
+          if(SystemInfo.AID_APP <= uid && uid < 1 << 16) {
+            synchronized(validated) {
+              validated.set(uid);
+            }
+          }
+          dirty = true;
+        }
+      };
+      NotificationService.addHook(notificationReceiver);
+    }
   }
 
-  // Figure out what uid should be charged for screen usage.
+  public void close() {
+    context.unregisterReceiver(broadcastReceiver);
+    if(notificationReceiver != null) {
+      NotificationService.removeHook(notificationReceiver);
+    }
+  }
+
+  /* Figure out what uid should be charged for screen usage.  This is a read
+   * of the last answer unless there has been an event since it was found.
+   */
   public int getForegroundUid() {
+    if(dirty || SystemClock.elapsedRealtime() >= nextRefresh) {
+      refresh();
+    }
+    return foregroundUid;
+  }
+
+  /* Counts the times the running processes have been looked at, which is
+   * whenever something may have changed what is on the screen.
+   */
+  public int getRefreshCount() {
+    return refreshes;
+  }
+
+  private synchronized void refresh() {
+    dirty = false;
+    refreshes++;
+    nextRefresh = SystemClock.elapsedRealtime() +
+        (notificationReceiver == null && screenOn ? REFRESH_BACKSTOP_MS :
+                                                    REFRESH_BACKSTOP_IDLE_MS);
+
     SystemInfo sysInfo = SystemInfo.getInstance();
     List<ActivityManager.RunningAppProcessInfo> appProcs =
         activityManager.getRunningAppProcesses();
+    if(appProcs == null) {
+      return;
+    }
 
     // Move the last iteration to last and resize the other array if needed.
     int[] tmp = lastUids;
@@ -95,20 +196,23 @@ public class ForegroundDetector {
     if(indNow < nowSize) appEnter = nowUids[indNow];
     if(indLast < lastSize) appExit = lastUids[indLast];
 
-    // Found an interesting transition.  Validate both applications.
-    if(appEnter != -1 && appExit != -1) {
-      validated.set(appEnter);
-      validated.set(appExit);
-    }
-    
-    // Now find a valid application now.  Hopefully there is only one.  If there
-    // are none return system.  If there are several return the one with the
-    // highest uid.
-    for(int i = nowSize - 1; i >= 0; i--) {
-      if(validated.get(nowUids[i])) {
-        return nowUids[i];
+    synchronized(validated) {
+      // Found an interesting transition.  Validate both applications.
+      if(appEnter != -1 && appExit != -1) {
+        validated.set(appEnter);
+        validated.set(appExit);
+      }
+
+      // Now find a valid application now.  Hopefully there is only one.  If
+      // there are none return system.  If there are several return the one
+      // with the highest uid.
+      for(int i = nowSize - 1; i >= 0; i--) {
+        if(validated.get(nowUids[i])) {
+          foregroundUid = nowUids[i];
+          return;
+        }
       }
     }
-    return SystemInfo.AID_SYSTEM;
+    foregroundUid = SystemInfo.AID_SYSTEM;
   }
 }
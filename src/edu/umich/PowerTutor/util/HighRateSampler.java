@@ -0,0 +1,384 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/* A sampling lane that reads cheap counters such as interface statistics, the
+ * battery's current_now and the CPU frequency many times a second.  The 1 Hz
+ * estimator can't see a radio promotion or a CPU burst that is over within
+ * the second, but the counters can be read far more often than the per uid
+ * data can be collected.
+ *
+ * Each channel keeps a summary of its samples since the last call to drain():
+ * the minimum, maximum and time weighted mean and, if the channel was given
+ * bin edges, the time spent in each bin.  Components that need their own
+ * state at the sampling rate can add a Probe that is called on every sample.
+ * Once running the loop doesn't allocate.
+ */
+public class HighRateSampler implements Runnable {
+  private static final String TAG = "HighRateSampler";
+
+  private static HighRateSampler instance;
+
+  public static synchronized HighRateSampler getInstance() {
+    if(instance == null) {
+      instance = new HighRateSampler();
+    }
+    return instance;
+  }
+
+  /* Called from the sampling thread on every sample with the time of the
+   * sample as given by SystemClock.elapsedRealtime().
+   */
+  public interface Probe {
+    public void sample(long now);
+  }
+
+  /* A number read from a file, such as the ones in sysfs, that is kept open
+   * so that rereading it doesn't allocate.
+   */
+  public static class CounterFile {
+    private String path;
+    private RandomAccessFile file;
+    private byte[] buf;
+
+    public CounterFile(String path) {
+      this.path = path;
+      buf = new byte[32];
+    }
+
+    /* Returns the value in the file or -1 if it couldn't be read.  Negative
+     * values can't be told apart from a failure by this method; use
+     * read(long[]) for files that can hold them.
+     */
+    public long read() {
+      return readValue() ? value : -1;
+    }
+
+    private long value;
+
+    /* Reads the file into out[0].  Returns false if it couldn't be read. */
+    public boolean read(long[] out) {
+      if(!readValue()) return false;
+      out[0] = value;
+      return true;
+    }
+
+    private boolean readValue() {
+      try {
+        if(file == null) {
+          file = new RandomAccessFile(path, "r");
+        }
+        file.seek(0);
+        int ln = file.read(buf, 0, buf.length);
+        int i = 0;
+        while(i < ln && (buf[i] == ' ' || buf[i] == '\t')) i++;
+        boolean negative = i < ln && buf[i] == '-';
+        if(negative) i++;
+        if(i >= ln || buf[i] < '0' || buf[i] > '9') return false;
+        long result = 0;
+        for(; i < ln && buf[i] >= '0' && buf[i] <= '9'; i++) {
+          result = result * 10 + buf[i] - '0';
+        }
+        value = negative ? -result : result;
+        return true;
+      } catch(IOException e) {
+        close();
+        return false;
+      }
+    }
+
+    public void close() {
+      if(file != null) try {
+        file.close();
+      } catch(IOException e) {
+      }
+      file = null;
+    }
+  }
+
+  /* What a channel saw over one iteration. */
+  public static class Summary {
+    /* The number of samples, 0 if there were none. */
+    public int count;
+    public double min;
+    public double max;
+    public double mean;
+    /* The seconds covered by the samples. */
+    public double time;
+    /* The seconds spent in each bin.  Bin i covers values below edges[i] and
+     * at or above edges[i - 1].  Has one more element than the edges.
+     */
+    public double[] binTimes;
+
+    public Summary(Channel channel) {
+      binTimes = new double[channel.edges == null ? 0 :
+                            channel.edges.length + 1];
+    }
+  }
+
+  /* A sampled value is either the level read from the file or, for a counter
+   * that only goes up, its rate of change per second.
+   */
+  public static final int KIND_LEVEL = 0;
+  public static final int KIND_RATE = 1;
+
+  public static class Channel {
+    private String name;
+    private int kind;
+    private double scale;
+    private double[] edges;
+    private CounterFile file;
+    private long[] raw;
+
+    /* Only touched by the sampling thread. */
+    private long lastRaw;
+    private long lastTime;
+
+    /* Guarded by this. */
+    private int count;
+    private double min;
+    private double max;
+    private double sum;
+    private double time;
+    private double[] binTimes;
+
+    private Channel(String name, int kind, String path, double scale,
+                    double[] edges) {
+      this.name = name;
+      this.kind = kind;
+      this.scale = scale;
+      this.edges = edges;
+      file = new CounterFile(path);
+      raw = new long[1];
+      lastTime = -1;
+      binTimes = new double[edges == null ? 0 : edges.length + 1];
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public double[] getEdges() {
+      return edges;
+    }
+
+    private void sample(long now) {
+      if(!file.read(raw)) {
+        lastTime = -1;
+        return;
+      }
+      if(lastTime != -1 && now > lastTime &&
+         (kind == KIND_LEVEL || raw[0] >= lastRaw)) {
+        double deltaTime = (now - lastTime) / 1000.0;
+        double value = kind == KIND_LEVEL ? raw[0] * scale :
+                       (raw[0] - lastRaw) * scale / deltaTime;
+        int bin = 0;
+        if(edges != null) {
+          while(bin < edges.length && value >= edges[bin]) bin++;
+        }
+        synchronized(this) {
+          if(count == 0 || value < min) min = value;
+          if(count == 0 || value > max) max = value;
+          count++;
+          sum += value * deltaTime;
+          time += deltaTime;
+          if(edges != null) {
+            binTimes[bin] += deltaTime;
+          }
+        }
+      }
+      lastRaw = raw[0];
+      lastTime = now;
+    }
+
+    /* Called from the sampling thread as it exits. */
+    private void close() {
+      file.close();
+      lastTime = -1;
+    }
+
+    /* Copies the summary of the samples since the last call into out, which
+     * should have been made for this channel, and starts a new one.  Returns
+     * false if there weren't any samples.
+     */
+    public synchronized boolean drain(Summary out) {
+      out.count = count;
+      out.min = min;
+      out.max = max;
+      out.mean = time > 0 ? sum / time : 0;
+      out.time = time;
+      for(int i = 0; i < binTimes.length; i++) {
+        out.binTimes[i] = binTimes[i];
+        binTimes[i] = 0;
+      }
+      count = 0;
+      sum = time = 0;
+      return out.count != 0;
+    }
+  }
+
+  /* Replaced rather than changed so the sampling thread needs no lock. */
+  private volatile Channel[] channels;
+  private volatile Probe[] probes;
+
+  private Thread thread;
+  private volatile long interval;
+
+  private HighRateSampler() {
+    channels = new Channel[0];
+    probes = new Probe[0];
+  }
+
+  /* Adds a channel for a file holding a level such as a current.  Values are
+   * multiplied by scale.  edges, which may be null, gives the boundaries of
+   * the bins to keep residency for in increasing order.  If there is already
+   * a channel of the same name it is returned instead.
+   */
+  public Channel addLevel(String name, String path, double scale,
+                          double[] edges) {
+    return addChannel(name, KIND_LEVEL, path, scale, edges);
+  }
+
+  /* Like addLevel() but for a counter such as the bytes sent on an interface.
+   * The values are the counter's rate of change per second times scale.
+   */
+  public Channel addRate(String name, String path, double scale,
+                         double[] edges) {
+    return addChannel(name, KIND_RATE, path, scale, edges);
+  }
+
+  private synchronized Channel addChannel(String name, int kind, String path,
+                                          double scale, double[] edges) {
+    Channel channel = getChannel(name);
+    if(channel != null) return channel;
+    channel = new Channel(name, kind, path, scale, edges);
+    Channel[] result = new Channel[channels.length + 1];
+    System.arraycopy(channels, 0, result, 0, channels.length);
+    result[channels.length] = channel;
+    channels = result;
+    return channel;
+  }
+
+  public synchronized Channel getChannel(String name) {
+    for(Channel channel : channels) {
+      if(channel.name.equals(name)) return channel;
+    }
+    return null;
+  }
+
+  public synchronized Channel[] getChannels() {
+    return channels;
+  }
+
+  public synchronized void addProbe(Probe probe) {
+    Probe[] result = new Probe[probes.length + 1];
+    System.arraycopy(probes, 0, result, 0, probes.length);
+    result[probes.length] = probe;
+    probes = result;
+  }
+
+  public synchronized void removeProbe(Probe probe) {
+    for(int i = 0; i < probes.length; i++) {
+      if(probes[i] == probe) {
+        Probe[] result = new Probe[probes.length - 1];
+        System.arraycopy(probes, 0, result, 0, i);
+        System.arraycopy(probes, i + 1, result, i, result.length - i);
+        probes = result;
+        return;
+      }
+    }
+  }
+
+  /* Samples hz times a second.  0 stops the sampler. */
+  public synchronized void setRate(int hz) {
+    if(hz <= 0) {
+      stop();
+      return;
+    }
+    interval = Math.max(1, 1000 / hz);
+    if(thread == null) {
+      thread = new Thread(this, TAG);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /* Waits for the sampling thread to exit so that a later setRate() can't
+   * end up with two of them running.
+   */
+  private void stop() {
+    if(thread == null) return;
+    thread.interrupt();
+    boolean interrupted = false;
+    while(true) {
+      try {
+        thread.join();
+        break;
+      } catch(InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if(interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  public synchronized boolean isRunning() {
+    return thread != null;
+  }
+
+  public void run() {
+    android.os.Process.setThreadPriority(
+        android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);
+    Log.i(TAG, "Sampling every " + interval + " ms");
+    long next = SystemClock.elapsedRealtime();
+    while(!Thread.interrupted()) {
+      long now = SystemClock.elapsedRealtime();
+      Channel[] channels = this.channels;
+      for(int i = 0; i < channels.length; i++) {
+        channels[i].sample(now);
+      }
+      Probe[] probes = this.probes;
+      for(int i = 0; i < probes.length; i++) {
+        probes[i].sample(now);
+      }
+
+      /* Keep to the schedule but don't try to catch up on missed samples. */
+      next = Math.max(next + interval, now);
+      try {
+        Thread.sleep(Math.max(1, next - SystemClock.elapsedRealtime()));
+      } catch(InterruptedException e) {
+        break;
+      }
+    }
+
+    Channel[] channels = this.channels;
+    for(int i = 0; i < channels.length; i++) {
+      channels[i].close();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/* A compression scheme for the power log.  The codec that wrote a log doesn't
+ * need to be recorded anywhere; open() recognizes each format from the first
+ * couple of bytes of the stream.
+ *
+ * This class doesn't depend on any Android classes so that it can also be used
+ * by the offline log tools.
+ */
+public abstract class LogCodec {
+  public static final String DEFLATE = "deflate";
+  public static final String DEFLATE_FAST = "deflate-fast";
+  public static final String LZF = "lzf";
+  public static final String NONE = "none";
+
+  public static final String DEFAULT = DEFLATE;
+
+  /* A dictionary used to assist in compression of the log files.  Strings that
+   * appear more frequently should be put towards the end of the dictionary. It
+   * is not critical that every string that be written to the log appear here.
+   */
+  private static final byte[] DEFLATE_DICTIONARY = (
+      "onoffidleoff-hookringinglowairplane-modebatteryedgeGPRS3Gunknown" +
+      "in-serviceemergency-onlyout-of-servicepower-offdisconnectedconnecting" +
+      "associateconnectedsuspendedphone-callservicenetworkbegin.0123456789" +
+      "GPSAudioWifi3GLCDCPU-power ").getBytes();
+
+  /* Returns the codec with the given name.  Unrecognized names give the
+   * default codec.  The deflate codecs use a preset dictionary which a plain
+   * Inflater can't read without it, so these are only for logs that stay on
+   * the phone.
+   */
+  public static LogCodec forName(String name) {
+    if(DEFLATE_FAST.equals(name)) {
+      return new Deflate(DEFLATE_FAST, Deflater.BEST_SPEED, true);
+    } else if(LZF.equals(name)) {
+      return new Lzf();
+    } else if(NONE.equals(name)) {
+      return new None();
+    }
+    return new Deflate(DEFLATE, Deflater.DEFAULT_COMPRESSION, true);
+  }
+
+  /* Returns the codec for logs that may be uploaded.  This writes a plain
+   * zlib stream without a dictionary, which is all the upload server reads.
+   */
+  public static LogCodec forUpload() {
+    return new Deflate(DEFLATE, Deflater.DEFAULT_COMPRESSION, false);
+  }
+
+  /* Returns a stream giving the uncompressed contents of a log written with
+   * any of the codecs.
+   */
+  public static InputStream open(InputStream in) throws IOException {
+    PushbackInputStream pin = new PushbackInputStream(in, 2);
+    int b0 = pin.read();
+    int b1 = b0 == -1 ? -1 : pin.read();
+    if(b1 != -1) pin.unread(b1);
+    if(b0 != -1) pin.unread(b0);
+
+    if(b0 == 'Z' && b1 == 'V') {
+      return new LzfInputStream(pin);
+    } else if((b0 & 0x0F) == 8 && b1 != -1 && (b0 << 8 | b1) % 31 == 0) {
+      /* A zlib header: deflate method with a valid header checksum. */
+      return new DictionaryInflaterInputStream(pin);
+    }
+    return pin;
+  }
+
+  public abstract String getName();
+
+  /* Returns a stream that compresses everything written to it into out.
+   * Closing the returned stream closes out.
+   */
+  public abstract OutputStream wrap(OutputStream out) throws IOException;
+
+  private static class Deflate extends LogCodec {
+    private String name;
+    private int level;
+    private boolean dictionary;
+
+    public Deflate(String name, int level, boolean dictionary) {
+      this.name = name;
+      this.level = level;
+      this.dictionary = dictionary;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public OutputStream wrap(OutputStream out) throws IOException {
+      final Deflater deflater = new Deflater(level);
+      if(dictionary) {
+        deflater.setDictionary(DEFLATE_DICTIONARY);
+      }
+      return new DeflaterOutputStream(out, deflater) {
+        public void close() throws IOException {
+          /* The stream won't release a deflater it didn't create itself. */
+          try {
+            super.close();
+          } finally {
+            deflater.end();
+          }
+        }
+      };
+    }
+  }
+
+  private static class Lzf extends LogCodec {
+    public String getName() {
+      return LZF;
+    }
+
+    public OutputStream wrap(OutputStream out) throws IOException {
+      return new LzfOutputStream(out);
+    }
+  }
+
+  private static class None extends LogCodec {
+    public String getName() {
+      return NONE;
+    }
+
+    public OutputStream wrap(OutputStream out) throws IOException {
+      return out;
+    }
+  }
+
+  /* InflaterInputStream simply reports the end of the stream when a preset
+   * dictionary is needed so we drive the Inflater ourselves.  Logs written
+   * without the dictionary can still be read.
+   */
+  private static class DictionaryInflaterInputStream extends FilterInputStream {
+    private Inflater inflater;
+    private byte[] buf;
+    private byte[] single;
+
+    public DictionaryInflaterInputStream(InputStream in) {
+      super(in);
+      inflater = new Inflater();
+      buf = new byte[4096];
+      single = new byte[1];
+    }
+
+    public int read() throws IOException {
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(len == 0) return 0;
+      try {
+        while(true) {
+          int n = inflater.inflate(b, off, len);
+          if(n > 0) {
+            return n;
+          } else if(inflater.finished()) {
+            return -1;
+          } else if(inflater.needsDictionary()) {
+            inflater.setDictionary(DEFLATE_DICTIONARY);
+          } else if(inflater.needsInput()) {
+            int ln = in.read(buf, 0, buf.length);
+            if(ln == -1) {
+              /* Most likely the log was never closed properly. */
+              throw new EOFException("Unexpected end of log stream");
+            }
+            inflater.setInput(buf, 0, ln);
+          }
+        }
+      } catch(DataFormatException e) {
+        throw new IOException("Corrupt log stream: " + e.getMessage());
+      }
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while(skipped < n) {
+        int ln = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+        if(ln == -1) break;
+        skipped += ln;
+      }
+      return skipped;
+    }
+
+    public int available() throws IOException {
+      return inflater.finished() ? 0 : 1;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    public void close() throws IOException {
+      inflater.end();
+      super.close();
+    }
+  }
+}
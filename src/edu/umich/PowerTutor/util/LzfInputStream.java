@@ -0,0 +1,156 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/* Reads data written by LzfOutputStream. */
+public class LzfInputStream extends FilterInputStream {
+  private byte[] chunk;
+  private byte[] data;
+  private int dataPos;
+  private int dataLen;
+
+  public LzfInputStream(InputStream in) {
+    super(in);
+    chunk = new byte[LzfOutputStream.MAX_CHUNK];
+    data = new byte[LzfOutputStream.MAX_CHUNK];
+  }
+
+  public int read() throws IOException {
+    if(dataPos == dataLen && !readChunk()) {
+      return -1;
+    }
+    return data[dataPos++] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if(len == 0) return 0;
+    if(dataPos == dataLen && !readChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, dataLen - dataPos);
+    System.arraycopy(data, dataPos, b, off, n);
+    dataPos += n;
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while(skipped < n) {
+      if(dataPos == dataLen && !readChunk()) break;
+      int ln = (int)Math.min(n - skipped, dataLen - dataPos);
+      dataPos += ln;
+      skipped += ln;
+    }
+    return skipped;
+  }
+
+  public int available() throws IOException {
+    return dataLen - dataPos;
+  }
+
+  public boolean markSupported() {
+    return false;
+  }
+
+  /* Returns false at the end of the stream. */
+  private boolean readChunk() throws IOException {
+    int b0 = in.read();
+    if(b0 == -1) return false;
+    int b1 = in.read();
+    int type = in.read();
+    if(b0 != 'Z' || b1 != 'V') {
+      throw new IOException("Corrupt LZF chunk header");
+    }
+    if(type == 0) {
+      dataLen = readShort();
+      readFully(data, dataLen);
+    } else if(type == 1) {
+      int clen = readShort();
+      dataLen = readShort();
+      readFully(chunk, clen);
+      decompress(chunk, clen, data, dataLen);
+    } else {
+      throw new IOException("Unknown LZF chunk type " + type);
+    }
+    dataPos = 0;
+    return true;
+  }
+
+  private int readShort() throws IOException {
+    int hi = in.read();
+    int lo = in.read();
+    if(lo == -1) {
+      throw new EOFException("Unexpected end of log stream");
+    }
+    return hi << 8 | lo;
+  }
+
+  private void readFully(byte[] b, int len) throws IOException {
+    int pos = 0;
+    while(pos < len) {
+      int n = in.read(b, pos, len - pos);
+      if(n == -1) {
+        throw new EOFException("Unexpected end of log stream");
+      }
+      pos += n;
+    }
+  }
+
+  private static void decompress(byte[] in, int inLen, byte[] out, int outLen)
+      throws IOException {
+    int ip = 0;
+    int op = 0;
+    try {
+      while(ip < inLen) {
+        int ctrl = in[ip++] & 0xFF;
+        if(ctrl < LzfOutputStream.MAX_LITERAL) {
+          int len = ctrl + 1;
+          System.arraycopy(in, ip, out, op, len);
+          ip += len;
+          op += len;
+        } else {
+          int len = ctrl >> 5;
+          if(len == 7) {
+            len += in[ip++] & 0xFF;
+          }
+          len += 2;
+          int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+          if(ref < 0) {
+            throw new IOException("Corrupt LZF chunk");
+          }
+          /* The reference may overlap the output so copy a byte at a time. */
+          for(int i = 0; i < len; i++) {
+            out[op++] = out[ref++];
+          }
+        }
+      }
+    } catch(ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZF chunk");
+    }
+    if(op != outLen) {
+      throw new IOException("Corrupt LZF chunk");
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Compresses data using the LZF algorithm.  LZF gets considerably less
+ * compression than deflate but only costs a fraction of the CPU time.  Data is
+ * written in independent chunks of at most 64k each starting with a small
+ * header:
+ *
+ *   'Z' 'V' 0 <length:2>                          followed by raw bytes
+ *   'Z' 'V' 1 <compressed length:2> <length:2>    followed by LZF data
+ *
+ * This is the same chunk format used by other LZF implementations.
+ */
+public class LzfOutputStream extends FilterOutputStream {
+  public static final int MAX_CHUNK = 0xFFFF;
+
+  /* flush() leaves less than this much data buffered rather than writing a
+   * chunk too small to compress well.  close() always writes everything.
+   */
+  static final int MIN_FLUSH_CHUNK = 4096;
+
+  static final int MAX_LITERAL = 1 << 5;
+  static final int MAX_OFFSET = 1 << 13;
+  static final int MAX_REF = (1 << 8) + (1 << 3);
+
+  private static final int HASH_LOG = 14;
+  private static final int HASH_SIZE = 1 << HASH_LOG;
+
+  private byte[] raw;
+  private int rawLen;
+  private byte[] chunk;
+  private int[] hashTable;
+
+  public LzfOutputStream(OutputStream out) {
+    super(out);
+    raw = new byte[MAX_CHUNK];
+    /* Incompressible data is written out raw so a compressed chunk can never
+     * be larger than the input.  The extra room lets the compressor check for
+     * overflow once per token rather than once per byte.
+     */
+    chunk = new byte[7 + MAX_CHUNK + MAX_CHUNK / MAX_LITERAL + 8];
+    hashTable = new int[HASH_SIZE];
+  }
+
+  public void write(int b) throws IOException {
+    if(rawLen == raw.length) {
+      writeChunk();
+    }
+    raw[rawLen++] = (byte)b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while(len > 0) {
+      if(rawLen == raw.length) {
+        writeChunk();
+      }
+      int n = Math.min(len, raw.length - rawLen);
+      System.arraycopy(b, off, raw, rawLen, n);
+      rawLen += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  public void flush() throws IOException {
+    if(rawLen >= MIN_FLUSH_CHUNK) {
+      writeChunk();
+    }
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    try {
+      writeChunk();
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeChunk() throws IOException {
+    if(rawLen == 0) return;
+    int clen = compress(raw, rawLen, chunk, 7);
+    if(clen < 0 || clen >= rawLen) {
+      chunk[0] = 'Z';
+      chunk[1] = 'V';
+      chunk[2] = 0;
+      chunk[3] = (byte)(rawLen >> 8);
+      chunk[4] = (byte)rawLen;
+      out.write(chunk, 0, 5);
+      out.write(raw, 0, rawLen);
+    } else {
+      chunk[0] = 'Z';
+      chunk[1] = 'V';
+      chunk[2] = 1;
+      chunk[3] = (byte)(clen >> 8);
+      chunk[4] = (byte)clen;
+      chunk[5] = (byte)(rawLen >> 8);
+      chunk[6] = (byte)rawLen;
+      out.write(chunk, 0, 7 + clen);
+    }
+    rawLen = 0;
+  }
+
+  /* Compresses in[0..inLen) into out starting at outPos.  Returns the number
+   * of bytes written or -1 if the data did not compress.
+   */
+  private int compress(byte[] in, int inLen, byte[] out, int outPos) {
+    int[] table = hashTable;
+    for(int i = 0; i < HASH_SIZE; i++) {
+      table[i] = -1;
+    }
+    int start = outPos;
+    int limit = outPos + inLen;
+
+    /* Position of the pending literal run's length byte. */
+    int lit = 0;
+    int litPos = outPos++;
+    int ip = 0;
+    while(ip < inLen - 2) {
+      int hval = (in[ip] & 0xFF) << 16 | (in[ip + 1] & 0xFF) << 8 |
+                 (in[ip + 2] & 0xFF);
+      int slot = (hval * 0x9E3779B1) >>> (32 - HASH_LOG);
+      int ref = table[slot];
+      table[slot] = ip;
+      int off = ip - ref - 1;
+
+      if(ref >= 0 && off < MAX_OFFSET &&
+         in[ref] == in[ip] && in[ref + 1] == in[ip + 1] &&
+         in[ref + 2] == in[ip + 2]) {
+        int maxLen = Math.min(inLen - ip, MAX_REF);
+        int len = 3;
+        while(len < maxLen && in[ref + len] == in[ip + len]) len++;
+
+        if(outPos + 3 >= limit) return -1;
+        if(lit == 0) {
+          outPos--;
+        } else {
+          out[litPos] = (byte)(lit - 1);
+        }
+
+        int code = len - 2;
+        if(code < 7) {
+          out[outPos++] = (byte)((off >> 8) + (code << 5));
+        } else {
+          out[outPos++] = (byte)((off >> 8) + (7 << 5));
+          out[outPos++] = (byte)(code - 7);
+        }
+        out[outPos++] = (byte)off;
+
+        lit = 0;
+        litPos = outPos++;
+        ip += len;
+      } else {
+        if(outPos >= limit) return -1;
+        out[outPos++] = in[ip++];
+        if(++lit == MAX_LITERAL) {
+          out[litPos] = (byte)(MAX_LITERAL - 1);
+          lit = 0;
+          litPos = outPos++;
+        }
+      }
+    }
+    while(ip < inLen) {
+      if(outPos >= limit) return -1;
+      out[outPos++] = in[ip++];
+      if(++lit == MAX_LITERAL) {
+        out[litPos] = (byte)(MAX_LITERAL - 1);
+        lit = 0;
+        litPos = outPos++;
+      }
+    }
+    if(lit == 0) {
+      outPos--;
+    } else {
+      out[litPos] = (byte)(lit - 1);
+    }
+    return outPos - start;
+  }
+}
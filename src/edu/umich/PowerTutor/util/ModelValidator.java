@@ -0,0 +1,244 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/* Compares the estimated total power against the power actually measured at
+ * the battery.  Both are averaged over fixed windows of iterations since the
+ * battery's current reading lags and is filtered differently on every phone.
+ * Samples are grouped by component configuration, the set of components that
+ * were drawing any power, so that an error can be traced back to the constants
+ * of the components involved.
+ *
+ * Only samples taken while running on battery are meaningful; the caller should
+ * not pass samples in while the phone is plugged in.
+ *
+ * This class doesn't depend on any Android classes so that the same
+ * statistics can be computed on the phone and by the offline log tools.
+ */
+public class ModelValidator {
+  public static interface Listener {
+    /* Called when a window finishes for each configuration that had enough
+     * samples in that window.  Power is given in mW.
+     */
+    public void windowDone(String config, long startIteration, int samples,
+                           double estimated, double measured)
+        throws IOException;
+  }
+
+  /* A configuration needs to be present for at least this fraction of a window
+   * to be reported for it.
+   */
+  private static final double MIN_WINDOW_FRACTION = 0.25;
+
+  private static final int MAX_WINDOW_CONFIGS = 16;
+
+  private int windowSize;
+  private double iterationHours;
+  private Listener listener;
+
+  private Map<String, Integer> componentBits;
+  private String[] componentNames;
+
+  /* Sums for the current window for each configuration seen in it. */
+  private long window;
+  private int windowConfigs;
+  private int[] configs;
+  private int[] counts;
+  private double[] estSums;
+  private double[] measSums;
+
+  private Map<Integer, ConfigStats> stats;
+
+  /* windowSize is in iterations.  iterationSeconds is the length of an
+   * iteration which is used to express drift per hour.
+   */
+  public ModelValidator(int windowSize, double iterationSeconds,
+                        Listener listener) {
+    this.windowSize = windowSize;
+    this.iterationHours = iterationSeconds / 3600;
+    this.listener = listener;
+    componentBits = new HashMap<String, Integer>();
+    componentNames = new String[32];
+    window = -1;
+    configs = new int[MAX_WINDOW_CONFIGS];
+    counts = new int[MAX_WINDOW_CONFIGS];
+    estSums = new double[MAX_WINDOW_CONFIGS];
+    measSums = new double[MAX_WINDOW_CONFIGS];
+    stats = new HashMap<Integer, ConfigStats>();
+  }
+
+  /* Returns the bit used for the named component in configuration masks.
+   * Only the first 32 distinct components get a bit; the rest give 0.
+   */
+  public int componentBit(String name) {
+    Integer bit = componentBits.get(name);
+    if(bit == null) {
+      int n = componentBits.size();
+      bit = n < 32 ? 1 << n : 0;
+      componentBits.put(name, bit);
+      if(n < 32) componentNames[n] = name;
+    }
+    return bit;
+  }
+
+  /* Adds the sample for one iteration.  config is the OR of the bits of every
+   * component that drew power during the iteration.
+   */
+  public void sample(long iteration, int config, double estimated,
+                     double measured) throws IOException {
+    long win = iteration / windowSize;
+    if(win != window) {
+      finishWindow();
+      window = win;
+    }
+    int i = 0;
+    while(i < windowConfigs && configs[i] != config) i++;
+    if(i == windowConfigs) {
+      if(windowConfigs == MAX_WINDOW_CONFIGS) {
+        /* The configuration is changing too often to say anything. */
+        return;
+      }
+      windowConfigs++;
+      configs[i] = config;
+      counts[i] = 0;
+      estSums[i] = 0;
+      measSums[i] = 0;
+    }
+    counts[i]++;
+    estSums[i] += estimated;
+    measSums[i] += measured;
+  }
+
+  /* Reports whatever is in the current window.  Call this when the samples
+   * stop, such as when the phone is plugged in or at the end of a log.
+   */
+  public void finishWindow() throws IOException {
+    int minSamples = (int)Math.ceil(windowSize * MIN_WINDOW_FRACTION);
+    for(int i = 0; i < windowConfigs; i++) {
+      if(counts[i] < minSamples) continue;
+      double est = estSums[i] / counts[i];
+      double meas = measSums[i] / counts[i];
+      ConfigStats st = stats.get(configs[i]);
+      if(st == null) {
+        st = new ConfigStats(configName(configs[i]));
+        stats.put(configs[i], st);
+      }
+      st.add(window * windowSize * iterationHours, counts[i], est, meas);
+      if(listener != null) {
+        listener.windowDone(st.name, window * windowSize, counts[i], est,
+                            meas);
+      }
+    }
+    windowConfigs = 0;
+    window = -1;
+  }
+
+  /* Returns the components in config joined with '+' or "idle" if there are
+   * none.
+   */
+  public String configName(int config) {
+    if(config == 0) return "idle";
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < 32; i++) {
+      if((config & 1 << i) != 0 && componentNames[i] != null) {
+        if(sb.length() > 0) sb.append('+');
+        sb.append(componentNames[i]);
+      }
+    }
+    return sb.toString();
+  }
+
+  public Set<Integer> getConfigs() {
+    return stats.keySet();
+  }
+
+  /* Returns null if no window was reported for config. */
+  public ConfigStats getStats(int config) {
+    return stats.get(config);
+  }
+
+  /* Error statistics over all of the windows of one configuration.  Errors are
+   * estimated minus measured power in mW.
+   */
+  public static class ConfigStats {
+    public final String name;
+    public int windows;
+    public long samples;
+
+    private double errSum;
+    private double absErrSum;
+    private double sqErrSum;
+    private double measSum;
+
+    /* For the least squares fit of error against time. */
+    private double tSum;
+    private double ttSum;
+    private double teSum;
+
+    public ConfigStats(String name) {
+      this.name = name;
+    }
+
+    void add(double hours, int n, double estimated, double measured) {
+      double err = estimated - measured;
+      windows++;
+      samples += n;
+      errSum += err;
+      absErrSum += Math.abs(err);
+      sqErrSum += err * err;
+      measSum += measured;
+      tSum += hours;
+      ttSum += hours * hours;
+      teSum += hours * err;
+    }
+
+    /* Mean error; positive means the model overestimates. */
+    public double getBias() {
+      return errSum / windows;
+    }
+
+    /* Bias as a fraction of the mean measured power. */
+    public double getRelativeBias() {
+      return measSum == 0 ? Double.NaN : errSum / measSum;
+    }
+
+    public double getMeanAbsError() {
+      return absErrSum / windows;
+    }
+
+    public double getRmsError() {
+      return Math.sqrt(sqErrSum / windows);
+    }
+
+    /* Change in error per hour.  NaN until there are windows from two
+     * different times.
+     */
+    public double getDrift() {
+      double den = windows * ttSum - tSum * tSum;
+      if(windows < 2 || den <= 0) return Double.NaN;
+      return (windows * teSum - tSum * errSum) / den;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+/* A piecewise linear function through the points (xs[i], ys[i]) compiled into
+ * a table so that it can be evaluated without a binary search.  The x range
+ * is cut into equal cells each of which remembers how many of the xs are at or
+ * below its start.  Finding the segment for an x is then an array index plus,
+ * at most, a step over the one breakpoint that may fall inside the cell.  The
+ * result is exactly what searching and interpolating would give.
+ *
+ * The xs must be sorted in increasing order.  ys may be null if only
+ * upperBound() is needed.
+ */
+public class PiecewiseLinear {
+  /* Cells are made no smaller than this fraction of the range so that closely
+   * spaced points can't make the table huge.
+   */
+  private static final int MAX_CELLS = 1024;
+
+  private double[] xs;
+  private double[] ys;
+  private boolean clamp;
+
+  private double x0;
+  private double invWidth;
+  private int[] cellBound;
+
+  private double[] slope;
+  private double[] intercept;
+
+  /* If clamp is set x is clamped to the range of xs before evaluating,
+   * otherwise the first and last segments are extended outwards.
+   */
+  public PiecewiseLinear(double[] xs, double[] ys, boolean clamp) {
+    this.xs = xs;
+    this.ys = ys;
+    this.clamp = clamp;
+    int n = xs.length;
+
+    x0 = xs[0];
+    double range = xs[n - 1] - x0;
+    double width = range;
+    for(int i = 1; i < n; i++) {
+      double gap = xs[i] - xs[i - 1];
+      if(gap > 0 && gap < width) width = gap;
+    }
+    width = Math.max(width, range / MAX_CELLS);
+    int cells = width > 0 ? (int)Math.ceil(range / width) + 1 : 1;
+    invWidth = width > 0 ? 1 / width : 0;
+    cellBound = new int[cells];
+    for(int i = 0, bound = 0; i < cells; i++) {
+      double start = x0 + i * width;
+      while(bound < n && xs[bound] <= start) bound++;
+      cellBound[i] = bound;
+    }
+
+    if(ys != null && n > 1) {
+      slope = new double[n - 1];
+      intercept = new double[n - 1];
+      for(int i = 0; i + 1 < n; i++) {
+        double dx = xs[i + 1] - xs[i];
+        slope[i] = dx == 0 ? 0 : (ys[i + 1] - ys[i]) / dx;
+        intercept[i] = ys[i] - slope[i] * xs[i];
+      }
+    }
+  }
+
+  /* Returns true if this was compiled from exactly these arrays. */
+  public boolean isFor(double[] xs, double[] ys) {
+    return this.xs == xs && this.ys == ys;
+  }
+
+  /* Returns the largest index y such that if x were inserted into xs at y then
+   * xs would remain sorted.
+   */
+  public int upperBound(double x) {
+    if(x < x0) return 0;
+    double cell = (x - x0) * invWidth;
+    int bound = cell < cellBound.length ? cellBound[(int)cell] :
+                                          cellBound[cellBound.length - 1];
+    /* Rounding in the cell calculation can land us one cell too far. */
+    while(bound > 0 && xs[bound - 1] > x) bound--;
+    while(bound < xs.length && xs[bound] <= x) bound++;
+    return bound;
+  }
+
+  public double evaluate(double x) {
+    int n = xs.length;
+    if(n == 1) return ys[0];
+    if(clamp) {
+      if(x < x0) x = x0;
+      if(x > xs[n - 1]) x = xs[n - 1];
+    }
+    int ind = upperBound(x);
+    if(ind == 0) ind++;
+    if(ind == n) ind--;
+    return intercept[ind - 1] + slope[ind - 1] * x;
+  }
+}
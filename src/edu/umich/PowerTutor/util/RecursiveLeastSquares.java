@@ -0,0 +1,152 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+/* Fits y = theta . x incrementally with exponentially weighted recursive least
+ * squares.  Memory use is fixed by the number of coefficients no matter how
+ * many samples are seen.
+ *
+ * The fit starts from a prior estimate of theta with a variance for each
+ * coefficient.  With a forgetting factor below one the covariance of a
+ * coefficient that isn't being excited by the data (say the GPS power when the
+ * GPS is never turned on) would grow without bound, so the covariance is never
+ * allowed to exceed the prior.  Such coefficients just stay where they are.
+ */
+public class RecursiveLeastSquares {
+  private int n;
+  private double lambda;
+  private double[] theta;
+  private double[][] p;
+  private double[] maxVariance;
+  private long updates;
+
+  /* Scratch space. */
+  private double[] px;
+  private double[] gain;
+
+  public RecursiveLeastSquares(double[] prior, double[] priorVariance,
+                               double lambda) {
+    n = prior.length;
+    this.lambda = lambda;
+    theta = prior.clone();
+    maxVariance = priorVariance.clone();
+    p = new double[n][n];
+    for(int i = 0; i < n; i++) {
+      p[i][i] = priorVariance[i];
+    }
+    px = new double[n];
+    gain = new double[n];
+  }
+
+  public int size() {
+    return n;
+  }
+
+  public double[] getTheta() {
+    return theta;
+  }
+
+  public long getUpdates() {
+    return updates;
+  }
+
+  /* Incorporates the sample (x, y). */
+  public void update(double[] x, double y) {
+    /* px = P x, den = lambda + x' P x */
+    double den = lambda;
+    for(int i = 0; i < n; i++) {
+      double s = 0;
+      for(int j = 0; j < n; j++) {
+        s += p[i][j] * x[j];
+      }
+      px[i] = s;
+      den += x[i] * s;
+    }
+    if(!(den > 0)) return;
+
+    double err = y;
+    for(int i = 0; i < n; i++) {
+      err -= theta[i] * x[i];
+      gain[i] = px[i] / den;
+    }
+    for(int i = 0; i < n; i++) {
+      theta[i] += gain[i] * err;
+    }
+
+    /* P = (P - k x' P) / lambda.  P is symmetric so x' P = px'. */
+    for(int i = 0; i < n; i++) {
+      for(int j = 0; j < n; j++) {
+        p[i][j] = (p[i][j] - gain[i] * px[j]) / lambda;
+      }
+    }
+    for(int i = 0; i < n; i++) {
+      if(p[i][i] > maxVariance[i]) {
+        /* Scale the row and column so that P stays symmetric and positive
+         * definite.
+         */
+        double s = Math.sqrt(maxVariance[i] / p[i][i]);
+        for(int j = 0; j < n; j++) {
+          p[i][j] *= s;
+          p[j][i] *= s;
+        }
+      }
+    }
+    updates++;
+  }
+
+  /* Returns theta, the upper triangle of the covariance and the update count
+   * packed into a single array for storage.
+   */
+  public double[] save() {
+    double[] res = new double[n + n * (n + 1) / 2 + 1];
+    int k = 0;
+    for(int i = 0; i < n; i++) {
+      res[k++] = theta[i];
+    }
+    for(int i = 0; i < n; i++) {
+      for(int j = i; j < n; j++) {
+        res[k++] = p[i][j];
+      }
+    }
+    res[k] = updates;
+    return res;
+  }
+
+  /* Restores the state from the output of save().  Returns false and leaves
+   * the state alone if the data doesn't fit this model.
+   */
+  public boolean load(double[] data) {
+    if(data.length != n + n * (n + 1) / 2 + 1) return false;
+    for(double x : data) {
+      if(Double.isNaN(x) || Double.isInfinite(x)) return false;
+    }
+    int k = 0;
+    for(int i = 0; i < n; i++) {
+      theta[i] = data[k++];
+    }
+    for(int i = 0; i < n; i++) {
+      for(int j = i; j < n; j++) {
+        p[i][j] = p[j][i] = data[k++];
+      }
+    }
+    updates = (long)data[k];
+    return true;
+  }
+}
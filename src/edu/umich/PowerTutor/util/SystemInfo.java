@@ -359,10 +359,13 @@ public class SystemInfo {
   /* Returns -1 on failure. */
   public long readLongFromFile(String file) {
     if(methodReadProcFile == null) return -1;
+    /* readBuf is shared by every component thread. */
     try {
-      if((Boolean)methodReadProcFile.invoke(
-          null, file, READ_LONG_FORMAT, null, readBuf, null)) {
-        return readBuf[0];
+      synchronized(readBuf) {
+        if((Boolean)methodReadProcFile.invoke(
+            null, file, READ_LONG_FORMAT, null, readBuf, null)) {
+          return readBuf[0];
+        }
       }
     } catch(IllegalAccessException e) {
       Log.w(TAG, "Failed to get pid cpu usage");
@@ -0,0 +1,288 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/* Per uid network traffic counters shared by the network components.
+ *
+ * Where the kernel has the xt_qtaguid module all of the counters come from a
+ * single sequential read of /proc/net/xt_qtaguid/stats which gives bytes and
+ * packets for every uid broken down by interface and covers UDP as well as
+ * TCP.  The snapshot is reused by every component that asks within the same
+ * iteration.
+ *
+ * Otherwise this falls back on /proc/uid_stat which only has TCP byte counts
+ * summed over all interfaces and takes two file reads per uid.  Packet counts
+ * are then reported as -1.
+ */
+public class UidNetStats {
+  private static final String TAG = "UidNetStats";
+
+  private static final String QTAGUID_STATS = "/proc/net/xt_qtaguid/stats";
+  private static final String UID_STAT_DIR = "/proc/uid_stat";
+
+  /* Indices into the counts array filled in by getCounts(). */
+  public static final int RX_BYTES = 0;
+  public static final int RX_PACKETS = 1;
+  public static final int TX_BYTES = 2;
+  public static final int TX_PACKETS = 3;
+
+  /* A snapshot younger than this is shared rather than read again. */
+  private static final long MAX_AGE = 500;
+
+  private static UidNetStats instance = new UidNetStats();
+
+  public static UidNetStats getInstance() {
+    return instance;
+  }
+
+  private SystemInfo sysInfo;
+  private String qtaguidStats;
+  private boolean qtaguid;
+  private boolean uidStat;
+
+  private long lastRefresh;
+  private int generation;
+  private byte[] buf;
+  private long[] fields;
+
+  /* Counters by interface and then uid.  Each entry holds the four counters
+   * followed by the generation of the snapshot it was last seen in.  Entries
+   * are dropped once a snapshot no longer has them.
+   */
+  private Map<String, SparseArray<long[]>> ifaceStats;
+  private SparseArray<long[]> seenUids;
+
+  /* The same tables by the bytes of the interface name so that lines can be
+   * matched to their interface without building a String.
+   */
+  private List<byte[]> ifaceNames;
+  private List<SparseArray<long[]>> ifaceUids;
+
+  private UidNetStats() {
+    this(QTAGUID_STATS);
+  }
+
+  /* Reads the xt_qtaguid stats from somewhere else.  Used by the tests. */
+  UidNetStats(String qtaguidStats) {
+    sysInfo = SystemInfo.getInstance();
+    this.qtaguidStats = qtaguidStats;
+    qtaguid = new File(qtaguidStats).canRead();
+    uidStat = new File(UID_STAT_DIR).exists();
+    lastRefresh = -1;
+    buf = new byte[1 << 14];
+    fields = new long[9];
+    ifaceStats = new HashMap<String, SparseArray<long[]>>();
+    seenUids = new SparseArray<long[]>();
+    ifaceNames = new ArrayList<byte[]>();
+    ifaceUids = new ArrayList<SparseArray<long[]>>();
+  }
+
+  /* Returns true if per uid counters are available at all. */
+  public boolean isAvailable() {
+    return qtaguid || uidStat;
+  }
+
+  /* Returns true if the counters come from a snapshot so that looking up a uid
+   * costs nothing.  Otherwise each lookup reads files and callers should avoid
+   * asking about idle uids.
+   */
+  public boolean hasSnapshot() {
+    return qtaguid;
+  }
+
+  /* Takes a new snapshot unless the current one is recent enough. */
+  public synchronized void refresh() {
+    if(!qtaguid) return;
+    long now = SystemClock.elapsedRealtime();
+    if(lastRefresh != -1 && now - lastRefresh < MAX_AGE) return;
+    lastRefresh = now;
+    try {
+      readQtaguid();
+    } catch(IOException e) {
+      Log.w(TAG, "Failed to read " + qtaguidStats + ", using uid_stat");
+      qtaguid = false;
+    }
+  }
+
+  /* lastUids can be null.  The returned array is padded with -1 the same as
+   * SystemInfo.getUids().
+   */
+  public synchronized int[] getUids(int[] lastUids) {
+    if(!qtaguid) return sysInfo.getUids(lastUids);
+    int sz = seenUids.size();
+    if(lastUids == null || lastUids.length < sz || 2 * sz < lastUids.length) {
+      lastUids = new int[sz];
+    }
+    int pos = 0;
+    for(int i = 0; i < sz; i++) {
+      if(seenUids.valueAt(i)[4] == generation) {
+        lastUids[pos++] = seenUids.keyAt(i);
+      }
+    }
+    while(pos < lastUids.length) lastUids[pos++] = -1;
+    return lastUids;
+  }
+
+  /* Fills counts with the cumulative counters for uid on iface, indexed by
+   * RX_BYTES and the like.  Without xt_qtaguid the counters cover every
+   * interface and the packet counts are -1.  Returns false if there are no
+   * counters for the uid.
+   */
+  public synchronized boolean getCounts(int uid, String iface, long[] counts) {
+    if(!qtaguid) {
+      counts[RX_BYTES] = sysInfo.readLongFromFile(
+          UID_STAT_DIR + "/" + uid + "/tcp_rcv");
+      counts[TX_BYTES] = sysInfo.readLongFromFile(
+          UID_STAT_DIR + "/" + uid + "/tcp_snd");
+      counts[RX_PACKETS] = counts[TX_PACKETS] = -1;
+      if(counts[RX_BYTES] == -1 || counts[TX_BYTES] == -1) {
+        Log.w(TAG, "Failed to read uid read/write byte counts");
+        return false;
+      }
+      return true;
+    }
+    SparseArray<long[]> uids = ifaceStats.get(iface);
+    long[] stats = uids == null ? null : uids.get(uid);
+    if(stats == null || stats[4] != generation) return false;
+    System.arraycopy(stats, 0, counts, 0, 4);
+    return true;
+  }
+
+  private void readQtaguid() throws IOException {
+    int len = 0;
+    FileInputStream in = new FileInputStream(qtaguidStats);
+    try {
+      while(true) {
+        if(len == buf.length) {
+          byte[] nbuf = new byte[buf.length * 2];
+          System.arraycopy(buf, 0, nbuf, 0, len);
+          buf = nbuf;
+        }
+        int n = in.read(buf, len, buf.length - len);
+        if(n == -1) break;
+        len += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    /* Lines look like
+     *   idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets
+     *   tx_bytes tx_packets ...
+     * Only the lines with an accounting tag of 0x0 are the totals for the uid;
+     * the others break the same traffic down by socket tag.  The two counter
+     * sets (foreground and background) are summed.
+     */
+    generation++;
+    int pos = 0;
+    while(pos < len) {
+      int end = pos;
+      while(end < len && buf[end] != '\n') end++;
+      int fieldStart = pos;
+      int field = 0;
+      int ifaceStart = 0;
+      int ifaceEnd = 0;
+      boolean total = false;
+      for(int i = pos; i <= end && field < 9; i++) {
+        if(i < end && buf[i] != ' ') continue;
+        if(field == 1) {
+          ifaceStart = fieldStart;
+          ifaceEnd = i;
+        } else if(field == 2) {
+          total = i - fieldStart == 3 && buf[fieldStart] == '0' &&
+                  buf[fieldStart + 1] == 'x' && buf[fieldStart + 2] == '0';
+          if(!total) break;
+        } else {
+          long x = 0;
+          for(int j = fieldStart; j < i; j++) {
+            x = x * 10 + buf[j] - '0';
+          }
+          fields[field] = x;
+        }
+        field++;
+        fieldStart = i + 1;
+      }
+      pos = end + 1;
+      if(!total || field < 9) continue;
+
+      SparseArray<long[]> uids = findIface(ifaceStart, ifaceEnd);
+      int uid = (int)fields[3];
+      long[] stats = uids.get(uid);
+      if(stats == null) {
+        stats = new long[5];
+        uids.put(uid, stats);
+      }
+      if(stats[4] != generation) {
+        stats[RX_BYTES] = stats[RX_PACKETS] = 0;
+        stats[TX_BYTES] = stats[TX_PACKETS] = 0;
+        stats[4] = generation;
+      }
+      stats[RX_BYTES] += fields[5];
+      stats[RX_PACKETS] += fields[6];
+      stats[TX_BYTES] += fields[7];
+      stats[TX_PACKETS] += fields[8];
+      seenUids.put(uid, stats);
+    }
+
+    for(SparseArray<long[]> uids : ifaceUids) {
+      prune(uids);
+    }
+    prune(seenUids);
+  }
+
+  /* Returns the table for the interface named by buf[start..end). */
+  private SparseArray<long[]> findIface(int start, int end) {
+    for(int i = 0; i < ifaceNames.size(); i++) {
+      byte[] name = ifaceNames.get(i);
+      if(name.length != end - start) continue;
+      int j = 0;
+      while(j < name.length && name[j] == buf[start + j]) j++;
+      if(j == name.length) return ifaceUids.get(i);
+    }
+    byte[] name = new byte[end - start];
+    System.arraycopy(buf, start, name, 0, name.length);
+    SparseArray<long[]> uids = new SparseArray<long[]>();
+    ifaceNames.add(name);
+    ifaceUids.add(uids);
+    ifaceStats.put(new String(name), uids);
+    return uids;
+  }
+
+  /* Drops the uids that weren't in the latest snapshot. */
+  private void prune(SparseArray<long[]> uids) {
+    for(int i = uids.size() - 1; i >= 0; i--) {
+      if(uids.valueAt(i)[4] != generation) {
+        uids.remove(uids.keyAt(i));
+      }
+    }
+  }
+}
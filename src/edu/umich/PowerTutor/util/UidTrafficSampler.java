@@ -0,0 +1,249 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.SparseArray;
+
+/* Takes one snapshot of the per uid traffic counters each iteration and hands
+ * the same immutable view of it to every network component that asks.
+ *
+ * Counters are kept per interface.  With xt_qtaguid the kernel already splits
+ * them that way.  Without it the counters from /proc/uid_stat cover every
+ * interface so the change since the last snapshot is credited to whichever
+ * registered interface is the active network; otherwise both radios would be
+ * charged for the same bytes whenever both interfaces are up.
+ *
+ * Components should look at the counters rather than only what changed in the
+ * current iteration so that nothing is lost if they miss an iteration.
+ */
+public class UidTrafficSampler {
+  /* Without a snapshot a uid that has been idle for a while is only read this
+   * often (in iterations) to keep the number of file reads down.
+   */
+  private static final int MAX_IDLE_POLL = 10;
+
+  private static UidTrafficSampler instance;
+
+  public static synchronized UidTrafficSampler getInstance(Context context) {
+    if(instance == null) {
+      instance = new UidTrafficSampler(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private UidNetStats netStats;
+  private ConnectivityManager connectivityManager;
+
+  /* Interface names by ConnectivityManager network type. */
+  private SparseArray<String> ifaces;
+
+  private long lastIteration;
+  private Map<String, Traffic> snapshot;
+  private int[] lastUids;
+  private long[] counts;
+
+  /* Only used without xt_qtaguid. */
+  private SparseArray<UidState> uidStates;
+  private Map<String, SparseArray<long[]>> attributed;
+
+  private UidTrafficSampler(Context context) {
+    netStats = UidNetStats.getInstance();
+    connectivityManager = (ConnectivityManager)context.getSystemService(
+                              Context.CONNECTIVITY_SERVICE);
+    ifaces = new SparseArray<String>();
+    lastIteration = -1;
+    snapshot = new HashMap<String, Traffic>();
+    counts = new long[4];
+    uidStates = new SparseArray<UidState>();
+    attributed = new HashMap<String, SparseArray<long[]>>();
+  }
+
+  /* Registers iface as the interface used for networks of type networkType,
+   * one of the ConnectivityManager.TYPE_* constants.
+   */
+  public synchronized void addInterface(String iface, int networkType) {
+    ifaces.put(networkType, iface);
+    if(attributed.get(iface) == null) {
+      attributed.put(iface, new SparseArray<long[]>());
+    }
+  }
+
+  public boolean isAvailable() {
+    return netStats.isAvailable();
+  }
+
+  /* Returns the traffic on iface as of the given iteration.  The first caller
+   * for an iteration takes the snapshot.
+   */
+  public synchronized Traffic getTraffic(long iteration, String iface) {
+    if(iteration > lastIteration) {
+      lastIteration = iteration;
+      takeSnapshot(iteration);
+    }
+    Traffic traffic = snapshot.get(iface);
+    return traffic == null ? Traffic.EMPTY : traffic;
+  }
+
+  private void takeSnapshot(long iteration) {
+    netStats.refresh();
+    lastUids = netStats.getUids(lastUids);
+    Map<String, Traffic> next = new HashMap<String, Traffic>();
+    if(lastUids == null) {
+      snapshot = next;
+      return;
+    }
+
+    if(netStats.hasSnapshot()) {
+      for(int i = 0; i < ifaces.size(); i++) {
+        String iface = ifaces.valueAt(i);
+        Traffic traffic = new Traffic(lastUids.length);
+        for(int uid : lastUids) {
+          if(uid != -1 && netStats.getCounts(uid, iface, counts)) {
+            traffic.add(uid, counts);
+          }
+        }
+        next.put(iface, traffic);
+      }
+      snapshot = next;
+      return;
+    }
+
+    /* Work out where the traffic since the last snapshot should go. */
+    String activeIface = null;
+    NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+    if(info != null) {
+      activeIface = ifaces.get(info.getType());
+    }
+    SparseArray<long[]> active = activeIface == null ? null :
+                                 attributed.get(activeIface);
+
+    for(int uid : lastUids) {
+      if(uid == -1) continue;
+      UidState state = uidStates.get(uid);
+      if(state == null) {
+        state = new UidState();
+        uidStates.put(uid, state);
+      }
+      if(state.lastRead != -1 && iteration - state.lastRead <=
+         Math.min(MAX_IDLE_POLL, state.lastRead - state.lastActive)) {
+        /* Idle uids are read less often the longer they have been idle. */
+        continue;
+      }
+      if(!netStats.getCounts(uid, null, counts)) continue;
+      if(state.lastRead == -1) {
+        /* Start the uid off at zero everywhere so that the components have a
+         * starting point to measure its first traffic from.
+         */
+        for(SparseArray<long[]> totals : attributed.values()) {
+          totals.put(uid, new long[] {0, -1, 0, -1});
+        }
+      }
+      long rx = counts[UidNetStats.RX_BYTES];
+      long tx = counts[UidNetStats.TX_BYTES];
+      if(state.lastRead != -1 && active != null &&
+         (rx != state.rxBytes || tx != state.txBytes)) {
+        long[] total = active.get(uid);
+        if(total == null) {
+          /* The interface was registered after the uid was first seen. */
+          total = new long[] {0, -1, 0, -1};
+          active.put(uid, total);
+        }
+        total[UidNetStats.RX_BYTES] += Math.max(0, rx - state.rxBytes);
+        total[UidNetStats.TX_BYTES] += Math.max(0, tx - state.txBytes);
+      }
+      if(rx != state.rxBytes || tx != state.txBytes) {
+        state.lastActive = iteration;
+      }
+      state.rxBytes = rx;
+      state.txBytes = tx;
+      state.lastRead = iteration;
+    }
+
+    for(Map.Entry<String, SparseArray<long[]>> entry : attributed.entrySet()) {
+      SparseArray<long[]> totals = entry.getValue();
+      Traffic traffic = new Traffic(totals.size());
+      for(int i = 0; i < totals.size(); i++) {
+        traffic.add(totals.keyAt(i), totals.valueAt(i));
+      }
+      next.put(entry.getKey(), traffic);
+    }
+    snapshot = next;
+  }
+
+  private static class UidState {
+    public long rxBytes;
+    public long txBytes;
+    public long lastRead = -1;
+    public long lastActive = -1;
+  }
+
+  /* The running counters of every uid that has used one interface.  Packet
+   * counts are -1 when they aren't known.  Instances are never modified once
+   * handed out.
+   */
+  public static class Traffic {
+    public static final Traffic EMPTY = new Traffic(0);
+
+    private int size;
+    private int[] uids;
+    private long[] counts;
+
+    private Traffic(int capacity) {
+      uids = new int[capacity];
+      counts = new long[4 * capacity];
+    }
+
+    private void add(int uid, long[] uidCounts) {
+      uids[size] = uid;
+      System.arraycopy(uidCounts, 0, counts, 4 * size, 4);
+      size++;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int getUid(int i) {
+      return uids[i];
+    }
+
+    public long getRxBytes(int i) {
+      return counts[4 * i + UidNetStats.RX_BYTES];
+    }
+
+    public long getRxPackets(int i) {
+      return counts[4 * i + UidNetStats.RX_PACKETS];
+    }
+
+    public long getTxBytes(int i) {
+      return counts[4 * i + UidNetStats.TX_BYTES];
+    }
+
+    public long getTxPackets(int i) {
+      return counts[4 * i + UidNetStats.TX_PACKETS];
+    }
+  }
+}
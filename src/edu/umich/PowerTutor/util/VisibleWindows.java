@@ -0,0 +1,192 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.util;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* Reads the windows that are on the screen, topmost first, from the window
+ * manager's dump.  There is no API for this so the text of
+ * "dumpsys window windows" is parsed, which needs the DUMP permission.  That
+ * is only granted to system applications so on other installs, unless root
+ * has granted it, this never finds any windows and dumpsys isn't run.  Both
+ * the older format, where the owner is only given by the window's session,
+ * and the newer one with mOwnerUid are understood.
+ *
+ * Running dumpsys starts a process so this should only be read when
+ * something may have changed.
+ */
+public class VisibleWindows {
+  private static final String TAG = "VisibleWindows";
+
+  private static final Pattern WINDOW =
+      Pattern.compile("^\\s*Window #\\d+ Window\\{");
+  private static final Pattern OWNER_UID =
+      Pattern.compile("mOwnerUid=(\\d+)");
+  private static final Pattern SESSION_UID =
+      Pattern.compile("Session\\{\\S+ uid (\\d+)\\}");
+  private static final Pattern SHOWN_FRAME = Pattern.compile(
+      "mShownFrame=\\[(-?[\\d.]+),(-?[\\d.]+)\\]\\[(-?[\\d.]+),(-?[\\d.]+)\\]");
+
+  private int count;
+  private int[] uids;
+  /* left, top, right and bottom of each window in screen pixels. */
+  private float[] frames;
+  private boolean denied;
+
+  public VisibleWindows(Context context) {
+    this();
+    if(context.checkCallingOrSelfPermission(Manifest.permission.DUMP) !=
+       PackageManager.PERMISSION_GRANTED) {
+      Log.i(TAG, "No DUMP permission, the window list won't be read");
+      denied = true;
+    }
+  }
+
+  /* Only for parsing a dump that has already been read.  Used by the tests. */
+  VisibleWindows() {
+    uids = new int[16];
+    frames = new float[64];
+  }
+
+  /* The number of windows found by the last read(). */
+  public int getCount() {
+    return count;
+  }
+
+  public int getUid(int i) {
+    return uids[i];
+  }
+
+  public boolean contains(int i, float x, float y) {
+    return frames[4 * i] <= x && x < frames[4 * i + 2] &&
+           frames[4 * i + 1] <= y && y < frames[4 * i + 3];
+  }
+
+  /* Returns false if the windows couldn't be read.  Once the window manager
+   * has refused a dump it isn't asked again.
+   */
+  public boolean read() {
+    if(denied) return false;
+    count = 0;
+    java.lang.Process p = null;
+    try {
+      p = Runtime.getRuntime().exec(
+          new String[] {"dumpsys", "window", "windows"});
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(p.getInputStream()), 8192);
+      return parse(in);
+    } catch(IOException e) {
+      Log.w(TAG, "Failed to read the window list");
+      return false;
+    } catch(NumberFormatException e) {
+      Log.w(TAG, "Failed to parse the window list");
+      return false;
+    } finally {
+      if(p != null) {
+        p.destroy();
+      }
+    }
+  }
+
+  /* Reads the windows from the text of a dump. */
+  boolean parse(BufferedReader in) throws IOException {
+    count = 0;
+    int uid = -1;
+    boolean visible = false;
+    boolean haveFrame = false;
+    float[] frame = new float[4];
+    boolean inWindow = false;
+    for(String line = in.readLine(); line != null; line = in.readLine()) {
+      if(line.startsWith("Permission Denial")) {
+        Log.w(TAG, "Not allowed to read the window list");
+        denied = true;
+        return false;
+      }
+      if(WINDOW.matcher(line).find()) {
+        if(inWindow && visible && haveFrame && uid != -1) {
+          add(uid, frame);
+        }
+        inWindow = true;
+        uid = -1;
+        visible = true;
+        haveFrame = false;
+        continue;
+      } else if(!inWindow) {
+        continue;
+      } else if(!line.startsWith("    ")) {
+        /* The end of the window list. */
+        if(visible && haveFrame && uid != -1) {
+          add(uid, frame);
+        }
+        inWindow = false;
+        continue;
+      }
+
+      Matcher m = OWNER_UID.matcher(line);
+      if(m.find()) {
+        uid = Integer.parseInt(m.group(1));
+      } else if(uid == -1 && (m = SESSION_UID.matcher(line)).find()) {
+        uid = Integer.parseInt(m.group(1));
+      }
+      if(line.contains("mViewVisibility=") &&
+         !line.contains("mViewVisibility=0x0")) {
+        visible = false;
+      }
+      if(line.contains("mHasSurface=false") ||
+         line.contains("isReadyForDisplay()=false") ||
+         line.contains("mShownAlpha=0.0 ")) {
+        visible = false;
+      }
+      if((m = SHOWN_FRAME.matcher(line)).find()) {
+        for(int i = 0; i < 4; i++) {
+          frame[i] = Float.parseFloat(m.group(i + 1));
+        }
+        haveFrame = frame[2] > frame[0] && frame[3] > frame[1];
+      }
+    }
+    if(inWindow && visible && haveFrame && uid != -1) {
+      add(uid, frame);
+    }
+    return count > 0;
+  }
+
+  private void add(int uid, float[] frame) {
+    if(count == uids.length) {
+      int[] nuids = new int[count * 2];
+      float[] nframes = new float[count * 8];
+      System.arraycopy(uids, 0, nuids, 0, count);
+      System.arraycopy(frames, 0, nframes, 0, count * 4);
+      uids = nuids;
+      frames = nframes;
+    }
+    uids[count] = uid;
+    System.arraycopy(frame, 0, frames, count * 4, 4);
+    count++;
+  }
+}
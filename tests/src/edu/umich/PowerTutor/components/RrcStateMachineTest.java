@@ -0,0 +1,144 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.components;
+
+import junit.framework.TestCase;
+
+public class RrcStateMachineTest extends TestCase {
+  private static final double EPS = 1e-9;
+
+  /* Activity between two calls promotes as of the first of them and timers
+   * that aren't a whole number of iterations expire when they should.
+   */
+  public void testFractionalTimer() {
+    RrcStateMachine gsm = RrcStateMachine.gsm(2.5);
+    double[] times = new double[2];
+    gsm.advance(0, false, times);
+    assertTrue(gsm.isInitialized());
+
+    gsm.advance(1000, true, times);
+    assertEquals(RrcStateMachine.GSM_READY, gsm.getState());
+    assertTimes(times, 0, 1);
+
+    times = new double[2];
+    gsm.advance(5000, false, times);
+    assertEquals(RrcStateMachine.GSM_IDLE, gsm.getState());
+    assertTimes(times, 2.5, 1.5);
+  }
+
+  public void testUmtsPromotesOneStateAtATime() {
+    RrcStateMachine umts = RrcStateMachine.umts(5, 12);
+    double[] times = new double[3];
+    umts.advance(0, false, times);
+    umts.advance(1000, true, times);
+    assertEquals(RrcStateMachine.UMTS_FACH, umts.getState());
+    umts.advance(2000, true, times);
+    assertEquals(RrcStateMachine.UMTS_DCH, umts.getState());
+    assertTimes(times, 0, 1, 1);
+
+    /* DCH holds for 5 s after the last activity at 1 s, then FACH for 12 s
+     * from when it was entered.
+     */
+    times = new double[3];
+    umts.advance(10000, false, times);
+    assertEquals(RrcStateMachine.UMTS_FACH, umts.getState());
+    assertTimes(times, 0, 4, 4);
+
+    times = new double[3];
+    umts.advance(20000, false, times);
+    assertEquals(RrcStateMachine.UMTS_IDLE, umts.getState());
+    assertTimes(times, 2, 8, 0);
+  }
+
+  /* Several timers can run out within a single interval. */
+  public void testLteTailWithinOneInterval() {
+    RrcStateMachine lte = RrcStateMachine.lte(0.1, 10);
+    double[] times = new double[3];
+    lte.advance(0, false, times);
+    lte.advance(1000, true, times);
+    assertEquals(RrcStateMachine.LTE_DRX, lte.getState());
+    assertTimes(times, 0, 0.9, 0.1);
+
+    times = new double[3];
+    lte.advance(20000, false, times);
+    assertEquals(RrcStateMachine.LTE_IDLE, lte.getState());
+    assertTimes(times, 10, 9, 0);
+  }
+
+  public void testTakeOverFromActiveRadio() {
+    RrcStateMachine umts = RrcStateMachine.umts(5, 12);
+    double[] times = new double[3];
+    umts.advance(0, false, times);
+    umts.advance(1000, true, times);
+    umts.advance(2000, true, times);
+
+    RrcStateMachine lte = RrcStateMachine.lte(0.1, 10);
+    lte.takeOver(umts);
+    assertTrue(lte.isInitialized());
+    assertEquals(RrcStateMachine.LTE_CONNECTED, lte.getState());
+
+    /* The new machine's timers run from the switch. */
+    times = new double[3];
+    lte.advance(3000, false, times);
+    assertEquals(RrcStateMachine.LTE_DRX, lte.getState());
+    assertTimes(times, 0, 0.9, 0.1);
+  }
+
+  public void testTakeOverFromIdleRadio() {
+    RrcStateMachine umts = RrcStateMachine.umts(5, 12);
+    RrcStateMachine lte = RrcStateMachine.lte(0.1, 10);
+    lte.takeOver(umts);
+    assertFalse(lte.isInitialized());
+
+    double[] times = new double[3];
+    umts.advance(0, false, times);
+    umts.advance(1000, false, times);
+    lte.takeOver(umts);
+    assertEquals(RrcStateMachine.LTE_IDLE, lte.getState());
+    times = new double[3];
+    lte.advance(4000, false, times);
+    assertTimes(times, 3, 0, 0);
+  }
+
+  /* A timer of 0 keeps the radio in its state and time never runs back. */
+  public void testNoTimerAndClockSkew() {
+    RrcStateMachine gsm = RrcStateMachine.gsm(2);
+    gsm.setTimeouts(new double[] {0, 0});
+    double[] times = new double[2];
+    gsm.advance(5000, false, times);
+    gsm.advance(6000, true, times);
+    times = new double[2];
+    gsm.advance(60000, false, times);
+    assertEquals(RrcStateMachine.GSM_READY, gsm.getState());
+    assertTimes(times, 0, 54);
+
+    times = new double[2];
+    gsm.advance(50000, false, times);
+    assertTimes(times, 0, 0);
+
+    gsm.reset(70000);
+    assertEquals(RrcStateMachine.GSM_IDLE, gsm.getState());
+  }
+
+  private static void assertTimes(double[] times, double... expected) {
+    for(int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], times[i], EPS);
+    }
+  }
+}
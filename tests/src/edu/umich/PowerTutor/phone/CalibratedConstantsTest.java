@@ -0,0 +1,92 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.phone;
+
+import edu.umich.PowerTutor.components.RadioModel;
+import edu.umich.PowerTutor.components.RrcStateMachine;
+import edu.umich.PowerTutor.components.Threeg.ThreegData;
+import edu.umich.PowerTutor.service.IterationData;
+
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+public class CalibratedConstantsTest extends AndroidTestCase {
+  /* Enough samples for the fit to be used. */
+  private static final int SAMPLES = 10 * 60;
+
+  private DreamConstants base;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    base = new DreamConstants(getContext());
+    clearCalibration();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    clearCalibration();
+    super.tearDown();
+  }
+
+  private void clearCalibration() {
+    PreferenceManager.getDefaultSharedPreferences(getContext()).edit()
+        .remove("calibration_" + base.modelName()).commit();
+  }
+
+  /* A phone on LTE draws exactly what the base phone says it does.  That power
+   * isn't part of the fit so none of it should end up in the base power.
+   */
+  public void testOtherRadioPowerIsTakenOff() {
+    CalibratedConstants calibrated =
+        new CalibratedConstants(getContext(), base, false);
+    double[] times = {0.2, 0.5, 0.3};
+    double[] power = base.radioStatePower(RadioModel.LTE, "");
+    double measured = 0;
+    for(int i = 0; i < times.length; i++) {
+      measured += times[i] * power[i];
+    }
+    assertTrue(measured > 100);
+
+    ThreegData data = ThreegData.obtain();
+    data.init(0, 0, 0, RrcStateMachine.LTE_CONNECTED,
+              RrcStateMachine.LTE_STATE_NAMES, times, RadioModel.LTE, "");
+    IterationData iteration = IterationData.obtain();
+    iteration.setPowerData(data);
+    IterationData[] sample = {iteration};
+    for(int i = 0; i < SAMPLES; i++) {
+      calibrated.addSample(sample, measured);
+    }
+
+    assertTrue(calibrated.isCalibrated());
+    assertEquals(0, calibrated.basePower(), 1);
+    assertSame(power, calibrated.radioStatePower(RadioModel.LTE, ""));
+  }
+
+  /* The calculators ask for these every iteration. */
+  public void testRadioArraysAreReused() {
+    assertSame(base.radioStatePower(RadioModel.UMTS, "AT&T"),
+               base.radioStatePower(RadioModel.UMTS, "AT&T"));
+    assertSame(base.radioStateTimers(RadioModel.UMTS, "AT&T"),
+               base.radioStateTimers(RadioModel.UMTS, "AT&T"));
+    assertEquals(base.threegDchFachDelay("AT&T"),
+                 base.radioStateTimers(RadioModel.UMTS, "AT&T")[2], 0);
+  }
+}
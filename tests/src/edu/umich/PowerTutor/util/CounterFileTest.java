@@ -0,0 +1,97 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+public class CounterFileTest extends AndroidTestCase {
+  private File file;
+  private HighRateSampler.CounterFile counter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = new File(getContext().getCacheDir(), "counter");
+    file.delete();
+    counter = new HighRateSampler.CounterFile(file.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    counter.close();
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testReadsValue() throws IOException {
+    write("123456789012\n");
+    assertEquals(123456789012L, counter.read());
+    write("  \t42 extra\n");
+    assertEquals(42, counter.read());
+  }
+
+  /* The file is kept open so a rewrite, even a shorter one, must be seen. */
+  public void testRereadsChangedFile() throws IOException {
+    write("1000000\n");
+    assertEquals(1000000, counter.read());
+    write("7\n");
+    assertEquals(7, counter.read());
+  }
+
+  public void testNegativeValues() throws IOException {
+    write("-250\n");
+    long[] out = new long[1];
+    assertTrue(counter.read(out));
+    assertEquals(-250, out[0]);
+  }
+
+  public void testBadContents() throws IOException {
+    long[] out = {5};
+    write("");
+    assertFalse(counter.read(out));
+    assertEquals(-1, counter.read());
+    write("-\n");
+    assertFalse(counter.read(out));
+    write("N/A\n");
+    assertFalse(counter.read(out));
+    assertEquals(5, out[0]);
+  }
+
+  /* A file that shows up later, like a sysfs node after a driver loads, is
+   * picked up on the next read.
+   */
+  public void testMissingFile() throws IOException {
+    assertEquals(-1, counter.read());
+    write("3\n");
+    assertEquals(3, counter.read());
+  }
+
+  private void write(String text) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(text.getBytes("US-ASCII"));
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.util;
+
+import junit.framework.TestCase;
+
+public class PiecewiseLinearTest extends TestCase {
+  /* Uneven spacing, a repeated breakpoint and a tiny gap that forces the cell
+   * width down to the MAX_CELLS limit.
+   */
+  private static final double[] XS = {
+    245760, 384000, 384000, 528000, 528001, 614400, 1000000
+  };
+  private static final double[] YS = {
+    1.0, 1.5, 1.6, 2.0, 2.1, 2.5, 4.0
+  };
+
+  public void testUpperBoundMatchesLinearSearch() {
+    PiecewiseLinear f = new PiecewiseLinear(XS, YS, false);
+    for(double x = 200000; x <= 1100000; x += 997) {
+      assertEquals(upperBound(XS, x), f.upperBound(x));
+    }
+    for(double x : XS) {
+      assertEquals(upperBound(XS, x), f.upperBound(x));
+      double below = Math.nextAfter(x, Double.NEGATIVE_INFINITY);
+      assertEquals(upperBound(XS, below), f.upperBound(below));
+    }
+  }
+
+  public void testEvaluateInterpolates() {
+    PiecewiseLinear f = new PiecewiseLinear(XS, YS, true);
+    assertEquals(1.0, f.evaluate(245760), 1e-12);
+    assertEquals(1.25, f.evaluate((245760 + 384000) / 2.0), 1e-12);
+    assertEquals(1.8, f.evaluate(456000), 1e-12);
+    assertEquals(4.0, f.evaluate(1000000), 1e-12);
+  }
+
+  public void testClampAndExtend() {
+    double[] xs = {0, 10};
+    double[] ys = {0, 5};
+    PiecewiseLinear clamped = new PiecewiseLinear(xs, ys, true);
+    PiecewiseLinear extended = new PiecewiseLinear(xs, ys, false);
+    assertEquals(0, clamped.evaluate(-4), 0);
+    assertEquals(5, clamped.evaluate(14), 0);
+    assertEquals(-2, extended.evaluate(-4), 1e-12);
+    assertEquals(7, extended.evaluate(14), 1e-12);
+  }
+
+  public void testSinglePoint() {
+    PiecewiseLinear f = new PiecewiseLinear(new double[] {3},
+                                            new double[] {7}, false);
+    assertEquals(7, f.evaluate(-100), 0);
+    assertEquals(7, f.evaluate(100), 0);
+    assertEquals(0, f.upperBound(2));
+    assertEquals(1, f.upperBound(3));
+  }
+
+  public void testIsFor() {
+    PiecewiseLinear f = new PiecewiseLinear(XS, YS, false);
+    assertTrue(f.isFor(XS, YS));
+    assertFalse(f.isFor(XS.clone(), YS));
+  }
+
+  private static int upperBound(double[] xs, double x) {
+    int i = 0;
+    while(i < xs.length && xs[i] <= x) i++;
+    return i;
+  }
+}
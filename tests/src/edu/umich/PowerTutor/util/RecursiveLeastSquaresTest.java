@@ -0,0 +1,91 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.util;
+
+import junit.framework.TestCase;
+
+public class RecursiveLeastSquaresTest extends TestCase {
+  /* Noise free samples of y = 3 + 2 x1 - x2. */
+  public void testConvergesToExactFit() {
+    RecursiveLeastSquares rls = new RecursiveLeastSquares(
+        new double[] {0, 0, 0}, new double[] {1e6, 1e6, 1e6}, 1.0);
+    for(int i = 0; i < 200; i++) {
+      double x1 = i % 7;
+      double x2 = (i * 3) % 11;
+      rls.update(new double[] {1, x1, x2}, 3 + 2 * x1 - x2);
+    }
+    double[] theta = rls.getTheta();
+    assertEquals(3, theta[0], 1e-6);
+    assertEquals(2, theta[1], 1e-6);
+    assertEquals(-1, theta[2], 1e-6);
+    assertEquals(200, rls.getUpdates());
+  }
+
+  /* A coefficient whose input is always zero keeps its prior and its variance
+   * stays bounded however long the forgetting factor works on it.
+   */
+  public void testUnexcitedCoefficientStaysAtPrior() {
+    RecursiveLeastSquares rls = new RecursiveLeastSquares(
+        new double[] {0, 42}, new double[] {100, 4}, 0.99);
+    for(int i = 0; i < 5000; i++) {
+      rls.update(new double[] {1, 0}, 5);
+    }
+    assertEquals(5, rls.getTheta()[0], 1e-6);
+    assertEquals(42, rls.getTheta()[1], 0);
+    double[] saved = rls.save();
+    /* theta, then the upper triangle p00 p01 p11. */
+    assertTrue(saved[4] <= 4);
+  }
+
+  public void testSaveAndLoad() {
+    RecursiveLeastSquares rls = new RecursiveLeastSquares(
+        new double[] {1, 2}, new double[] {10, 10}, 0.999);
+    for(int i = 0; i < 50; i++) {
+      rls.update(new double[] {1, i}, 4 + 0.5 * i);
+    }
+    double[] saved = rls.save();
+
+    RecursiveLeastSquares copy = new RecursiveLeastSquares(
+        new double[] {1, 2}, new double[] {10, 10}, 0.999);
+    assertTrue(copy.load(saved));
+    assertEquals(rls.getUpdates(), copy.getUpdates());
+    for(int i = 0; i < 2; i++) {
+      assertEquals(rls.getTheta()[i], copy.getTheta()[i], 0);
+    }
+    /* Both carry on the same way from the restored covariance, give or take
+     * the rounding that kept the live one from being exactly symmetric.
+     */
+    rls.update(new double[] {1, 3}, 9);
+    copy.update(new double[] {1, 3}, 9);
+    for(int i = 0; i < 2; i++) {
+      assertEquals(rls.getTheta()[i], copy.getTheta()[i], 1e-9);
+    }
+  }
+
+  public void testLoadRejectsBadData() {
+    RecursiveLeastSquares rls = new RecursiveLeastSquares(
+        new double[] {1, 2}, new double[] {10, 10}, 1.0);
+    assertFalse(rls.load(new double[] {1, 2, 3}));
+    double[] saved = rls.save();
+    saved[2] = Double.NaN;
+    assertFalse(rls.load(saved));
+    assertEquals(1, rls.getTheta()[0], 0);
+    assertEquals(2, rls.getTheta()[1], 0);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+public class UidNetStatsTest extends AndroidTestCase {
+  private static final String HEADER =
+      "idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets " +
+      "tx_bytes tx_packets rx_tcp_bytes rx_tcp_packets\n";
+
+  private File stats;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    stats = new File(getContext().getCacheDir(), "qtaguid_stats");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    stats.delete();
+    super.tearDown();
+  }
+
+  /* Only the untagged lines count and the two counter sets are summed. */
+  public void testTotalsPerUidAndInterface() throws IOException {
+    write(HEADER +
+          "2 wlan0 0x0 10005 0 1000 10 200 2 0 0\n" +
+          "3 wlan0 0x0 10005 1 500 5 100 1 0 0\n" +
+          "4 wlan0 0x3e800000000 10005 0 999 9 999 9 0 0\n" +
+          "5 rmnet0 0x0 10005 0 70 7 30 3 0 0\n" +
+          "6 wlan0 0x0 10010 0 8 1 4 1 0 0\n");
+    UidNetStats net = new UidNetStats(stats.getPath());
+    assertTrue(net.hasSnapshot());
+    net.refresh();
+
+    long[] counts = new long[4];
+    assertTrue(net.getCounts(10005, "wlan0", counts));
+    assertEquals(1500, counts[UidNetStats.RX_BYTES]);
+    assertEquals(15, counts[UidNetStats.RX_PACKETS]);
+    assertEquals(300, counts[UidNetStats.TX_BYTES]);
+    assertEquals(3, counts[UidNetStats.TX_PACKETS]);
+    assertTrue(net.getCounts(10005, "rmnet0", counts));
+    assertEquals(70, counts[UidNetStats.RX_BYTES]);
+    assertEquals(3, counts[UidNetStats.TX_PACKETS]);
+    assertFalse(net.getCounts(10010, "rmnet0", counts));
+    assertFalse(net.getCounts(10005, "eth0", counts));
+
+    int[] uids = net.getUids(null);
+    assertEquals(2, uids.length);
+    assertEquals(10005, uids[0]);
+    assertEquals(10010, uids[1]);
+  }
+
+  /* A uid missing from the next snapshot is forgotten and the counts of the
+   * others are replaced rather than added to.
+   */
+  public void testNextSnapshot() throws IOException {
+    write(HEADER +
+          "2 wlan0 0x0 10005 0 1000 10 200 2 0 0\n" +
+          "3 wlan0 0x0 10010 0 8 1 4 1 0 0\n");
+    UidNetStats net = new UidNetStats(stats.getPath());
+    net.refresh();
+
+    write(HEADER +
+          "2 wlan0 0x0 10005 0 1600 16 300 3 0 0\n");
+    SystemClock.sleep(600);
+    net.refresh();
+
+    long[] counts = new long[4];
+    assertTrue(net.getCounts(10005, "wlan0", counts));
+    assertEquals(1600, counts[UidNetStats.RX_BYTES]);
+    assertFalse(net.getCounts(10010, "wlan0", counts));
+    int[] uids = net.getUids(new int[] {0, 0});
+    assertEquals(10005, uids[0]);
+    assertEquals(-1, uids[1]);
+  }
+
+  /* Snapshots within MAX_AGE of each other are shared. */
+  public void testRecentSnapshotIsReused() throws IOException {
+    write(HEADER + "2 wlan0 0x0 10005 0 1000 10 200 2 0 0\n");
+    UidNetStats net = new UidNetStats(stats.getPath());
+    net.refresh();
+    write(HEADER + "2 wlan0 0x0 10005 0 2000 20 400 4 0 0\n");
+    net.refresh();
+
+    long[] counts = new long[4];
+    assertTrue(net.getCounts(10005, "wlan0", counts));
+    assertEquals(1000, counts[UidNetStats.RX_BYTES]);
+  }
+
+  private void write(String text) throws IOException {
+    FileOutputStream out = new FileOutputStream(stats);
+    try {
+      out.write(text.getBytes("US-ASCII"));
+    } finally {
+      out.close();
+    }
+  }
+}
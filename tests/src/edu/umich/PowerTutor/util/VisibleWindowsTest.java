@@ -0,0 +1,125 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+package edu.umich.PowerTutor.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class VisibleWindowsTest extends TestCase {
+  /* The layout of "dumpsys window windows" up to Android 2.2, where the owner
+   * is only known from the session.
+   */
+  private static final String OLD_DUMP =
+      "WINDOW MANAGER WINDOWS (dumpsys window windows)\n" +
+      "  Window #3 Window{43a1b2c8 StatusBar paused=false}:\n" +
+      "    mSession=Session{43912345 uid 1000} mClient=android.os.Binder\n" +
+      "    mViewVisibility=0x0 mLastHidden=false mHaveFrame=true\n" +
+      "    mShownFrame=[0.0,0.0][480.0,38.0] last=[0.0,0.0][480.0,38.0]\n" +
+      "  Window #2 Window{43b0 com.example/com.example.Dialog paused=false}:\n" +
+      "    mSession=Session{43a2 uid 10042} mClient=android.os.Binder\n" +
+      "    mViewVisibility=0x8 mLastHidden=true mHaveFrame=true\n" +
+      "    mShownFrame=[40.0,300.0][440.0,500.0] last=[0.0,0.0][0.0,0.0]\n" +
+      "  Window #1 Window{43b4 com.example/com.example.Main paused=false}:\n" +
+      "    mSession=Session{43a2 uid 10042} mClient=android.os.Binder\n" +
+      "    mViewVisibility=0x0 mLastHidden=false mHaveFrame=true\n" +
+      "    mShownFrame=[0.0,38.0][480.0,800.0] last=[0.0,38.0][480.0,800.0]\n" +
+      "  Window #0 Window{43c0 com.android.wallpaper paused=false}:\n" +
+      "    mSession=Session{43a9 uid 10007} mClient=android.os.Binder\n" +
+      "    mHasSurface=false isReadyForDisplay()=false\n" +
+      "    mShownFrame=[0.0,0.0][960.0,800.0] last=[0.0,0.0][960.0,800.0]\n" +
+      "\n" +
+      "  mCurrentFocus=Window{43b4 com.example/com.example.Main}\n";
+
+  /* Later versions give the owner directly. */
+  private static final String NEW_DUMP =
+      "WINDOW MANAGER WINDOWS (dumpsys window windows)\n" +
+      "  Window #2 Window{41c0 u0 com.example.video/.Player}:\n" +
+      "    mSession=Session{41d0 3190:u0a10055} mClient=android.os.Binder\n" +
+      "    mOwnerUid=10055 mShowToOwnerOnly=true package=com.example.video\n" +
+      "    mViewVisibility=0x0 mHaveFrame=true mObscured=false\n" +
+      "    mShownFrame=[0.0,0.0][720.0,1280.0] isReadyForDisplay()=true\n" +
+      "  Window #1 Window{41c8 u0 com.example.toast}:\n" +
+      "    mOwnerUid=10060 mShowToOwnerOnly=false package=com.example\n" +
+      "    mShownAlpha=0.0 mAlpha=1.0 mLastAlpha=0.0\n" +
+      "    mShownFrame=[100.0,1000.0][620.0,1100.0] isReadyForDisplay()=true\n" +
+      "  Window #0 Window{41d8 u0 Keyguard}:\n" +
+      "    mOwnerUid=1000 mShowToOwnerOnly=false package=android\n" +
+      "    mShownFrame=[0.0,0.0][0.0,0.0] isReadyForDisplay()=true\n";
+
+  public void testOldFormat() throws IOException {
+    VisibleWindows windows = new VisibleWindows();
+    assertTrue(windows.parse(reader(OLD_DUMP)));
+    assertEquals(2, windows.getCount());
+    assertEquals(1000, windows.getUid(0));
+    assertEquals(10042, windows.getUid(1));
+    assertTrue(windows.contains(0, 240, 10));
+    assertFalse(windows.contains(0, 240, 38));
+    assertTrue(windows.contains(1, 240, 400));
+    assertFalse(windows.contains(1, 480, 400));
+  }
+
+  /* Hidden, transparent and empty windows are all left out. */
+  public void testNewFormat() throws IOException {
+    VisibleWindows windows = new VisibleWindows();
+    assertTrue(windows.parse(reader(NEW_DUMP)));
+    assertEquals(1, windows.getCount());
+    assertEquals(10055, windows.getUid(0));
+    assertTrue(windows.contains(0, 719, 1279));
+  }
+
+  /* A new parse replaces the windows of the last one. */
+  public void testReparse() throws IOException {
+    VisibleWindows windows = new VisibleWindows();
+    windows.parse(reader(OLD_DUMP));
+    windows.parse(reader(NEW_DUMP));
+    assertEquals(1, windows.getCount());
+    assertFalse(windows.parse(reader("")));
+    assertEquals(0, windows.getCount());
+  }
+
+  /* More windows than the arrays start out with. */
+  public void testManyWindows() throws IOException {
+    StringBuilder dump = new StringBuilder();
+    for(int i = 40; i > 0; i--) {
+      dump.append("  Window #" + i + " Window{" + i + " app}:\n")
+          .append("    mOwnerUid=" + (10000 + i) + "\n")
+          .append("    mShownFrame=[" + i + ".0,0.0][" + (i + 1) +
+                  ".0,10.0]\n");
+    }
+    VisibleWindows windows = new VisibleWindows();
+    assertTrue(windows.parse(reader(dump.toString())));
+    assertEquals(40, windows.getCount());
+    assertEquals(10001, windows.getUid(39));
+    assertTrue(windows.contains(39, 1.5f, 5));
+  }
+
+  public void testPermissionDenial() throws IOException {
+    VisibleWindows windows = new VisibleWindows();
+    assertFalse(windows.parse(reader(
+        "Permission Denial: can't dump WindowManager from pid=1234\n")));
+    assertFalse(windows.read());
+  }
+
+  private static BufferedReader reader(String text) {
+    return new BufferedReader(new StringReader(text));
+  }
+}
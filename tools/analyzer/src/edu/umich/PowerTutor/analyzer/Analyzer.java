@@ -0,0 +1,455 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import edu.umich.PowerTutor.util.LogCodec;
+import edu.umich.PowerTutor.util.ModelValidator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/* Command line entry point for analyzing PowerTutor power logs on a
+ * workstation.  Logs may be given in any of the formats written by the phone.
+ */
+public class Analyzer {
+  private static final String USAGE =
+      "usage: analyzer analyze [-o DIR] [-f csv|columnar] TRACE...\n" +
+      "       analyzer fleet [-o DIR] [-f csv|columnar] [-j N] TRACE|DIR...\n" +
+      "       analyzer validate [-o DIR] [-f csv|columnar] [-w N] [-v V] " +
+      "TRACE...\n" +
+      "\n" +
+      "  analyze   Writes per-app energy (apps), per-component power over time\n" +
+      "            (timeline) and estimated power against measured battery\n" +
+      "            current (battery) tables to DIR.  Traces are read in order\n" +
+      "            as a single log.  Use - to read standard input.\n" +
+      "\n" +
+      "  fleet     Writes the distribution of each app's average power over\n" +
+      "            a set of traces (fleet).  Each trace is treated as a\n" +
+      "            separate device and directories are searched for traces.\n" +
+      "\n" +
+      "  validate  Compares the estimated power to the measured battery power\n" +
+      "            over windows of N iterations, grouped by which components\n" +
+      "            were active.  Writes each window (validation) and the\n" +
+      "            bias, error and drift of each configuration\n" +
+      "            (validation_summary).\n" +
+      "\n" +
+      "  -o DIR    Output directory, defaults to the current directory.\n" +
+      "  -f FMT    csv (default) or columnar, see ColumnarTableWriter.\n" +
+      "  -j N      Number of traces to process at once, defaults to the\n" +
+      "            number of processors.\n" +
+      "  -w N      Validation window in iterations, defaults to 60.\n" +
+      "  -v V      Battery voltage to assume for logs without batt_voltage\n" +
+      "            lines, defaults to 3.7.\n";
+
+  public static void main(String[] args) {
+    if(args.length == 0) {
+      usage();
+    }
+    try {
+      String command = args[0];
+      String[] rest = Arrays.copyOfRange(args, 1, args.length);
+      if("analyze".equals(command)) {
+        analyze(new Options(rest));
+      } else if("fleet".equals(command)) {
+        fleet(new Options(rest));
+      } else if("validate".equals(command)) {
+        validate(new Options(rest));
+      } else {
+        usage();
+      }
+    } catch(IOException e) {
+      System.err.println("analyzer: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.print(USAGE);
+    System.exit(2);
+  }
+
+  private static void analyze(Options opts) throws IOException {
+    TraceSummary summary = new TraceSummary();
+    TimelineHandler timeline = new TimelineHandler(opts.table("timeline",
+        new String[] {"iteration", "component", "power_mw"},
+        new int[] {TableWriter.LONG, TableWriter.STRING, TableWriter.DOUBLE}));
+    BatteryHandler battery = new BatteryHandler(opts.table("battery",
+        new String[] {"iteration", "power_mw", "current_a"},
+        new int[] {TableWriter.LONG, TableWriter.DOUBLE, TableWriter.DOUBLE}));
+    LogHandler handler = new MultiHandler(summary, timeline, battery);
+
+    long lines = 0;
+    long skipped = 0;
+    for(String trace : opts.traces) {
+      InputStream in = openTrace(trace);
+      try {
+        LogParser parser = new LogParser(in, handler);
+        parser.parse();
+        lines += parser.getLineCount();
+        skipped += parser.getSkippedLineCount();
+      } finally {
+        in.close();
+      }
+    }
+    timeline.out.close();
+    battery.out.close();
+
+    TableWriter apps = opts.table("apps",
+        new String[] {"uid", "app", "component", "energy_mj"},
+        new int[] {TableWriter.LONG, TableWriter.STRING, TableWriter.STRING,
+                   TableWriter.DOUBLE});
+    writeApps(summary, apps);
+    apps.close();
+
+    Correlation corr = battery.correlation;
+    System.out.println("lines " + lines);
+    if(skipped > 0) {
+      System.out.println("skipped_lines " + skipped);
+    }
+    System.out.println("model " + summary.getModel());
+    System.out.println("iterations " + summary.getIterations());
+    System.out.println("energy_mj " + summary.getTotalEnergy());
+    System.out.println("truncated " + summary.isTruncated());
+    System.out.println("current_samples " + corr.getCount());
+    System.out.println("current_pearson_r " + corr.getPearson());
+    System.out.println("current_slope_mw_per_a " + corr.getSlope());
+  }
+
+  private static void fleet(Options opts) throws IOException {
+    List<File> files = new ArrayList<File>();
+    for(String trace : opts.traces) {
+      findTraces(new File(trace), files);
+    }
+    ForkJoinPool pool = new ForkJoinPool(opts.threads);
+    FleetAggregate agg = pool.invoke(
+        new FleetTask(files.toArray(new File[files.size()]), 0, files.size()));
+    pool.shutdown();
+
+    TableWriter out = opts.table("fleet", FleetAggregate.COLUMNS,
+                                 FleetAggregate.TYPES);
+    agg.write(out);
+    out.close();
+    System.out.println("traces " + agg.getTraceCount());
+    System.out.println("failed " + agg.getFailedCount());
+    System.out.println("empty " + agg.getEmptyCount());
+  }
+
+  private static void validate(Options opts) throws IOException {
+    final TableWriter windows = opts.table("validation",
+        new String[] {"config", "start_iteration", "samples", "estimated_mw",
+                      "measured_mw", "error_mw"},
+        new int[] {TableWriter.STRING, TableWriter.LONG, TableWriter.LONG,
+                   TableWriter.DOUBLE, TableWriter.DOUBLE, TableWriter.DOUBLE});
+    ModelValidator validator = new ModelValidator(opts.window,
+        TraceSummary.ITERATION_SECONDS, new ModelValidator.Listener() {
+      public void windowDone(String config, long startIteration, int samples,
+                             double estimated, double measured)
+          throws IOException {
+        windows.setString(0, config);
+        windows.setLong(1, startIteration);
+        windows.setLong(2, samples);
+        windows.setDouble(3, estimated);
+        windows.setDouble(4, measured);
+        windows.setDouble(5, estimated - measured);
+        windows.endRow();
+      }
+    });
+    LogHandler handler = new ValidationHandler(validator, opts.voltage);
+    for(String trace : opts.traces) {
+      InputStream in = openTrace(trace);
+      try {
+        new LogParser(in, handler).parse();
+      } finally {
+        in.close();
+      }
+    }
+    windows.close();
+
+    TableWriter summary = opts.table("validation_summary",
+        new String[] {"config", "windows", "samples", "bias_mw",
+                      "relative_bias", "mae_mw", "rms_mw",
+                      "drift_mw_per_hour"},
+        new int[] {TableWriter.STRING, TableWriter.LONG, TableWriter.LONG,
+                   TableWriter.DOUBLE, TableWriter.DOUBLE, TableWriter.DOUBLE,
+                   TableWriter.DOUBLE, TableWriter.DOUBLE});
+    List<Integer> configs = new ArrayList<Integer>(validator.getConfigs());
+    Collections.sort(configs);
+    for(int config : configs) {
+      ModelValidator.ConfigStats st = validator.getStats(config);
+      summary.setString(0, st.name);
+      summary.setLong(1, st.windows);
+      summary.setLong(2, st.samples);
+      summary.setDouble(3, st.getBias());
+      summary.setDouble(4, st.getRelativeBias());
+      summary.setDouble(5, st.getMeanAbsError());
+      summary.setDouble(6, st.getRmsError());
+      summary.setDouble(7, st.getDrift());
+      summary.endRow();
+      System.out.println(st.name + " windows=" + st.windows + " bias_mw=" +
+                         st.getBias() + " drift_mw_per_hour=" +
+                         st.getDrift());
+    }
+    summary.close();
+  }
+
+  private static void findTraces(File file, List<File> out) {
+    if(!file.isDirectory()) {
+      out.add(file);
+      return;
+    }
+    File[] children = file.listFiles();
+    if(children == null) return;
+    Arrays.sort(children);
+    for(File child : children) {
+      if(!child.getName().startsWith(".")) {
+        findTraces(child, out);
+      }
+    }
+  }
+
+  /* Splits the traces in half until each task has a single trace to decode
+   * and summarize, then merges the results back together on the way up.
+   */
+  private static class FleetTask extends RecursiveTask<FleetAggregate> {
+    private static final long serialVersionUID = 1L;
+
+    private File[] files;
+    private int start;
+    private int end;
+
+    public FleetTask(File[] files, int start, int end) {
+      this.files = files;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected FleetAggregate compute() {
+      if(end - start == 0) {
+        return new FleetAggregate();
+      } else if(end - start == 1) {
+        return summarize(files[start]);
+      }
+      int mid = (start + end) >>> 1;
+      FleetTask left = new FleetTask(files, start, mid);
+      left.fork();
+      FleetAggregate agg = new FleetTask(files, mid, end).compute();
+      agg.merge(left.join());
+      return agg;
+    }
+
+    private static FleetAggregate summarize(File file) {
+      TraceSummary summary = new TraceSummary();
+      try {
+        InputStream in = openTrace(file.getPath());
+        try {
+          new LogParser(in, summary).parse();
+        } finally {
+          in.close();
+        }
+      } catch(IOException e) {
+        System.err.println("analyzer: " + file + ": " + e.getMessage());
+        return FleetAggregate.failedTrace();
+      }
+      return FleetAggregate.fromTrace(summary);
+    }
+  }
+
+  /* One row per uid and component plus a "total" row for each uid. */
+  private static void writeApps(TraceSummary summary, TableWriter out)
+      throws IOException {
+    List<Integer> uids = new ArrayList<Integer>(summary.getUids());
+    Collections.sort(uids);
+    List<String> components = summary.getComponents();
+    for(int uid : uids) {
+      String app = uid == LogHandler.AID_ALL ? "all" : summary.getAppId(uid);
+      double total = 0;
+      for(int i = 0; i < components.size(); i++) {
+        double energy = summary.getEnergy(uid, i);
+        total += energy;
+        out.setLong(0, uid);
+        out.setString(1, app);
+        out.setString(2, components.get(i));
+        out.setDouble(3, energy);
+        out.endRow();
+      }
+      out.setLong(0, uid);
+      out.setString(1, app);
+      out.setString(2, "total");
+      out.setDouble(3, total);
+      out.endRow();
+    }
+  }
+
+  /* Opens a trace and undoes whatever compression the phone used. */
+  static InputStream openTrace(String trace) throws IOException {
+    InputStream in = "-".equals(trace) ? System.in :
+                     new FileInputStream(trace);
+    return LogCodec.open(new BufferedInputStream(in, 1 << 16));
+  }
+
+  /* Writes the global power of each component and the total every
+   * iteration.
+   */
+  private static class TimelineHandler extends LogHandler {
+    public TableWriter out;
+    private long iteration;
+
+    public TimelineHandler(TableWriter out) {
+      this.out = out;
+    }
+
+    public void begin(long iteration) {
+      this.iteration = iteration;
+    }
+
+    public void totalPower(double power) throws IOException {
+      out.setLong(0, iteration);
+      out.setString(1, "total");
+      out.setDouble(2, power);
+      out.endRow();
+    }
+
+    public void componentPower(String component, int uid, double power)
+        throws IOException {
+      if(uid != AID_ALL) return;
+      out.setLong(0, iteration);
+      out.setString(1, component);
+      out.setDouble(2, power);
+      out.endRow();
+    }
+  }
+
+  /* Pairs the estimated total power of each iteration with the battery
+   * current in effect for it.  batt_current is only logged when it changes so
+   * the last value seen is held.  The magnitude of the current is used since
+   * phones disagree on the sign of a discharging current.
+   */
+  private static class BatteryHandler extends LogHandler {
+    public TableWriter out;
+    public Correlation correlation;
+    private long iteration;
+    private double current;
+
+    public BatteryHandler(TableWriter out) {
+      this.out = out;
+      correlation = new Correlation();
+      current = Double.NaN;
+    }
+
+    public void time(long millis) {
+      /* A new log; don't carry a stale current over. */
+      current = Double.NaN;
+    }
+
+    public void begin(long iteration) {
+      this.iteration = iteration;
+    }
+
+    public void battCurrent(double current) {
+      this.current = Math.abs(current);
+    }
+
+    public void totalPower(double power) throws IOException {
+      if(Double.isNaN(current)) return;
+      out.setLong(0, iteration);
+      out.setDouble(1, power);
+      out.setDouble(2, current);
+      out.endRow();
+      correlation.add(current, power);
+    }
+  }
+
+  private static class Options {
+    public File dir;
+    public boolean columnar;
+    public int threads;
+    public int window;
+    public double voltage;
+    public List<String> traces;
+
+    public Options(String[] args) {
+      dir = new File(".");
+      traces = new ArrayList<String>();
+      threads = Runtime.getRuntime().availableProcessors();
+      window = 60;
+      voltage = 3.7;
+      for(int i = 0; i < args.length; i++) {
+        if("-o".equals(args[i]) && i + 1 < args.length) {
+          dir = new File(args[++i]);
+        } else if("-f".equals(args[i]) && i + 1 < args.length) {
+          String fmt = args[++i];
+          if("columnar".equals(fmt)) {
+            columnar = true;
+          } else if(!"csv".equals(fmt)) {
+            usage();
+          }
+        } else if("-j".equals(args[i]) && i + 1 < args.length) {
+          try {
+            threads = Integer.parseInt(args[++i]);
+          } catch(NumberFormatException e) {
+            usage();
+          }
+          if(threads < 1) usage();
+        } else if("-w".equals(args[i]) && i + 1 < args.length) {
+          try {
+            window = Integer.parseInt(args[++i]);
+          } catch(NumberFormatException e) {
+            usage();
+          }
+          if(window < 1) usage();
+        } else if("-v".equals(args[i]) && i + 1 < args.length) {
+          try {
+            voltage = Double.parseDouble(args[++i]);
+          } catch(NumberFormatException e) {
+            usage();
+          }
+        } else if(args[i].startsWith("-") && args[i].length() > 1) {
+          usage();
+        } else {
+          traces.add(args[i]);
+        }
+      }
+      if(traces.isEmpty()) {
+        usage();
+      }
+    }
+
+    public TableWriter table(String name, String[] names, int[] types)
+        throws IOException {
+      dir.mkdirs();
+      if(columnar) {
+        return new ColumnarTableWriter(new FileOutputStream(
+            new File(dir, name + ".ptc")), names, types);
+      }
+      return new CsvTableWriter(new FileOutputStream(
+          new File(dir, name + ".csv")), names, types);
+    }
+  }
+}
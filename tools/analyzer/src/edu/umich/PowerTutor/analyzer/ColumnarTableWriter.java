@@ -0,0 +1,248 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Writes a table in a simple column oriented binary format loosely modelled
+ * on Parquet.  Rows are buffered into row groups and each row group is written
+ * out one column at a time so that readers only interested in a few columns
+ * can skip over the rest.  The layout is
+ *
+ *   "PTC1"
+ *   row group 0: column chunk 0, column chunk 1, ...
+ *   row group 1: ...
+ *   footer
+ *   footer length (4 bytes, big endian)
+ *   "PTC1"
+ *
+ * The footer holds the number of columns followed by the name (varint length
+ * and UTF-8 bytes) and type byte of each column, then the number of row groups
+ * and for each row group its row count and the offset and length of each of
+ * its column chunks.  All of these are unsigned varints.  Column chunks are
+ * encoded by type:
+ *
+ *   LONG    zigzag varint deltas from the previous value (starting from 0)
+ *   DOUBLE  8 byte big endian IEEE 754 values
+ *   STRING  varint dictionary size, the dictionary entries (varint length and
+ *           UTF-8 bytes), then a varint dictionary index per row
+ */
+public class ColumnarTableWriter extends TableWriter {
+  private static final byte[] MAGIC = {'P', 'T', 'C', '1'};
+  private static final int ROW_GROUP_SIZE = 1 << 16;
+
+  private CountingStream out;
+  private int rowGroups;
+  private ByteArrayOutputStream rowGroupIndex;
+
+  private int rows;
+  private long[][] longs;
+  private double[][] doubles;
+  private int[][] ids;
+  private List<Map<String, Integer>> dicts;
+  private String[][] dictValues;
+
+  private byte[] scratch;
+
+  public ColumnarTableWriter(OutputStream out, String[] names, int[] types)
+      throws IOException {
+    super(names, types);
+    this.out = new CountingStream(new BufferedOutputStream(out, 1 << 16));
+    this.out.write(MAGIC);
+    rowGroupIndex = new ByteArrayOutputStream();
+    scratch = new byte[10];
+
+    int cols = names.length;
+    longs = new long[cols][];
+    doubles = new double[cols][];
+    ids = new int[cols][];
+    dicts = new ArrayList<Map<String, Integer>>(cols);
+    dictValues = new String[cols][];
+    for(int i = 0; i < cols; i++) {
+      dicts.add(null);
+      switch(types[i]) {
+        case LONG:
+          longs[i] = new long[ROW_GROUP_SIZE];
+          break;
+        case DOUBLE:
+          doubles[i] = new double[ROW_GROUP_SIZE];
+          break;
+        case STRING:
+          ids[i] = new int[ROW_GROUP_SIZE];
+          dicts.set(i, new HashMap<String, Integer>());
+          dictValues[i] = new String[16];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown column type");
+      }
+    }
+  }
+
+  public void setLong(int column, long value) {
+    longs[column][rows] = value;
+  }
+
+  public void setDouble(int column, double value) {
+    doubles[column][rows] = value;
+  }
+
+  public void setString(int column, String value) {
+    if(value == null) value = "";
+    Map<String, Integer> dict = dicts.get(column);
+    Integer id = dict.get(value);
+    if(id == null) {
+      id = dict.size();
+      dict.put(value, id);
+      if(id == dictValues[column].length) {
+        String[] nvalues = new String[id * 2];
+        System.arraycopy(dictValues[column], 0, nvalues, 0, id);
+        dictValues[column] = nvalues;
+      }
+      dictValues[column][id] = value;
+    }
+    ids[column][rows] = id;
+  }
+
+  public void endRow() throws IOException {
+    if(++rows == ROW_GROUP_SIZE) {
+      writeRowGroup();
+    }
+  }
+
+  public void close() throws IOException {
+    if(rows > 0) {
+      writeRowGroup();
+    }
+    ByteArrayOutputStream footer = new ByteArrayOutputStream();
+    writeVarint(footer, names.length);
+    for(int i = 0; i < names.length; i++) {
+      writeString(footer, names[i]);
+      footer.write(types[i]);
+    }
+    writeVarint(footer, rowGroups);
+    rowGroupIndex.writeTo(footer);
+    footer.writeTo(out);
+
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(footer.size());
+    dout.write(MAGIC);
+    dout.close();
+  }
+
+  private void writeRowGroup() throws IOException {
+    writeVarint(rowGroupIndex, rows);
+    for(int i = 0; i < names.length; i++) {
+      long start = out.count;
+      switch(types[i]) {
+        case LONG: {
+          long[] col = longs[i];
+          long last = 0;
+          for(int j = 0; j < rows; j++) {
+            long delta = col[j] - last;
+            writeVarint(out, delta << 1 ^ delta >> 63);
+            last = col[j];
+          }
+          break;
+        }
+        case DOUBLE: {
+          double[] col = doubles[i];
+          for(int j = 0; j < rows; j++) {
+            long bits = Double.doubleToLongBits(col[j]);
+            for(int k = 0; k < 8; k++) {
+              scratch[k] = (byte)(bits >>> (56 - 8 * k));
+            }
+            out.write(scratch, 0, 8);
+          }
+          break;
+        }
+        case STRING: {
+          Map<String, Integer> dict = dicts.get(i);
+          int size = dict.size();
+          writeVarint(out, size);
+          for(int j = 0; j < size; j++) {
+            writeString(out, dictValues[i][j]);
+          }
+          int[] col = ids[i];
+          for(int j = 0; j < rows; j++) {
+            writeVarint(out, col[j]);
+          }
+          /* Each row group gets its own dictionary. */
+          dict.clear();
+          break;
+        }
+      }
+      writeVarint(rowGroupIndex, start);
+      writeVarint(rowGroupIndex, out.count - start);
+    }
+    rowGroups++;
+    rows = 0;
+  }
+
+  private void writeString(OutputStream os, String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    writeVarint(os, b.length);
+    os.write(b);
+  }
+
+  private void writeVarint(OutputStream os, long x) throws IOException {
+    int n = 0;
+    while((x & ~0x7FL) != 0) {
+      scratch[n++] = (byte)(x & 0x7F | 0x80);
+      x >>>= 7;
+    }
+    scratch[n++] = (byte)x;
+    os.write(scratch, 0, n);
+  }
+
+  private static class CountingStream extends OutputStream {
+    private OutputStream out;
+    public long count;
+
+    public CountingStream(OutputStream out) {
+      this.out = out;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
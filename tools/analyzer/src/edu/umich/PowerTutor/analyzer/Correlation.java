@@ -0,0 +1,79 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+/* Streaming Pearson correlation and least squares fit between two series.
+ * Uses the numerically stable update of the co-moments so that very long
+ * traces don't lose precision.
+ */
+public class Correlation {
+  private long n;
+  private double meanX;
+  private double meanY;
+  private double m2x;
+  private double m2y;
+  private double cxy;
+
+  public void add(double x, double y) {
+    n++;
+    double dx = x - meanX;
+    meanX += dx / n;
+    double dy = y - meanY;
+    meanY += dy / n;
+    m2x += dx * (x - meanX);
+    m2y += dy * (y - meanY);
+    cxy += dx * (y - meanY);
+  }
+
+  /* Combines the samples of another Correlation into this one. */
+  public void merge(Correlation o) {
+    if(o.n == 0) return;
+    long tn = n + o.n;
+    double dx = o.meanX - meanX;
+    double dy = o.meanY - meanY;
+    double f = (double)n * o.n / tn;
+    m2x += o.m2x + dx * dx * f;
+    m2y += o.m2y + dy * dy * f;
+    cxy += o.cxy + dx * dy * f;
+    meanX += dx * o.n / tn;
+    meanY += dy * o.n / tn;
+    n = tn;
+  }
+
+  public long getCount() {
+    return n;
+  }
+
+  /* Returns NaN if either series has no variance. */
+  public double getPearson() {
+    if(n < 2 || m2x == 0 || m2y == 0) return Double.NaN;
+    return cxy / Math.sqrt(m2x * m2y);
+  }
+
+  /* Slope of the least squares fit of y against x. */
+  public double getSlope() {
+    if(n < 2 || m2x == 0) return Double.NaN;
+    return cxy / m2x;
+  }
+
+  public double getIntercept() {
+    return meanY - getSlope() * meanX;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/* Writes a table as CSV with a header row. */
+public class CsvTableWriter extends TableWriter {
+  private Writer out;
+  private String[] row;
+
+  public CsvTableWriter(OutputStream out, String[] names, int[] types)
+      throws IOException {
+    super(names, types);
+    this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"),
+                                  1 << 16);
+    row = new String[names.length];
+    for(int i = 0; i < names.length; i++) {
+      row[i] = names[i];
+    }
+    endRow();
+  }
+
+  public void setLong(int column, long value) {
+    row[column] = Long.toString(value);
+  }
+
+  public void setDouble(int column, double value) {
+    row[column] = Double.isNaN(value) ? "" : Double.toString(value);
+  }
+
+  public void setString(int column, String value) {
+    row[column] = value;
+  }
+
+  public void endRow() throws IOException {
+    for(int i = 0; i < row.length; i++) {
+      if(i > 0) out.write(',');
+      String field = row[i];
+      if(field == null) {
+        /* Leave the field empty. */
+      } else if(field.indexOf(',') != -1 || field.indexOf('"') != -1 ||
+                field.indexOf('\n') != -1) {
+        out.write('"');
+        out.write(field.replace("\"", "\"\""));
+        out.write('"');
+      } else {
+        out.write(field);
+      }
+      row[i] = null;
+    }
+    out.write('\n');
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,219 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Per-app power collected over many traces.  Every trace contributes one
+ * sample per app and component: the average power the app drew from that
+ * component over the length of the trace.  Apps are identified by the
+ * appId@version they were associated with so that the same app can be matched
+ * up across devices where it was given different uids.  Uids that were never
+ * associated (the system uids) are named "uid-<uid>".  An app only gets
+ * samples from the traces it appears in.
+ */
+public class FleetAggregate {
+  public static final String[] COLUMNS = {
+      "app", "component", "traces", "mean_mw", "p50_mw", "p90_mw", "p99_mw",
+      "max_mw"};
+  public static final int[] TYPES = {
+      TableWriter.STRING, TableWriter.STRING, TableWriter.LONG,
+      TableWriter.DOUBLE, TableWriter.DOUBLE, TableWriter.DOUBLE,
+      TableWriter.DOUBLE, TableWriter.DOUBLE};
+
+  private int traces;
+  private int failed;
+  private int empty;
+  private Map<String, Map<String, Samples>> apps;
+
+  public FleetAggregate() {
+    apps = new HashMap<String, Map<String, Samples>>();
+  }
+
+  /* Builds the aggregate for a single trace. */
+  public static FleetAggregate fromTrace(TraceSummary summary) {
+    FleetAggregate agg = new FleetAggregate();
+    agg.traces = 1;
+    double seconds = summary.getIterations() * TraceSummary.ITERATION_SECONDS;
+    if(seconds <= 0) {
+      agg.empty = 1;
+      return agg;
+    }
+
+    /* More than one uid can map to the same app within a trace, say when it
+     * was reinstalled, so energy is summed per app before it becomes the
+     * trace's one sample.
+     */
+    List<String> components = summary.getComponents();
+    Map<String, double[]> energy = new HashMap<String, double[]>();
+    for(int uid : summary.getUids()) {
+      String app = appName(summary, uid);
+      double[] appEnergy = energy.get(app);
+      if(appEnergy == null) {
+        appEnergy = new double[components.size()];
+        energy.put(app, appEnergy);
+      }
+      for(int i = 0; i < components.size(); i++) {
+        appEnergy[i] += summary.getEnergy(uid, i);
+      }
+    }
+    for(Map.Entry<String, double[]> entry : energy.entrySet()) {
+      double[] appEnergy = entry.getValue();
+      double total = 0;
+      for(int i = 0; i < components.size(); i++) {
+        total += appEnergy[i];
+        agg.add(entry.getKey(), components.get(i), appEnergy[i] / seconds);
+      }
+      agg.add(entry.getKey(), "total", total / seconds);
+    }
+    return agg;
+  }
+
+  /* A trace that could not be read. */
+  public static FleetAggregate failedTrace() {
+    FleetAggregate agg = new FleetAggregate();
+    agg.failed = 1;
+    return agg;
+  }
+
+  private static String appName(TraceSummary summary, int uid) {
+    if(uid == LogHandler.AID_ALL) return "all";
+    String appId = summary.getAppId(uid);
+    return appId != null ? appId : "uid-" + uid;
+  }
+
+  private void add(String app, String component, double power) {
+    Map<String, Samples> comps = apps.get(app);
+    if(comps == null) {
+      comps = new HashMap<String, Samples>();
+      apps.put(app, comps);
+    }
+    Samples samples = comps.get(component);
+    if(samples == null) {
+      samples = new Samples();
+      comps.put(component, samples);
+    }
+    samples.add(power);
+  }
+
+  /* Moves all of the samples of other into this aggregate. */
+  public void merge(FleetAggregate other) {
+    traces += other.traces;
+    failed += other.failed;
+    empty += other.empty;
+    for(Map.Entry<String, Map<String, Samples>> app : other.apps.entrySet()) {
+      Map<String, Samples> comps = apps.get(app.getKey());
+      if(comps == null) {
+        apps.put(app.getKey(), app.getValue());
+        continue;
+      }
+      for(Map.Entry<String, Samples> comp : app.getValue().entrySet()) {
+        Samples samples = comps.get(comp.getKey());
+        if(samples == null) {
+          comps.put(comp.getKey(), comp.getValue());
+        } else {
+          samples.addAll(comp.getValue());
+        }
+      }
+    }
+  }
+
+  public int getTraceCount() {
+    return traces;
+  }
+
+  public int getFailedCount() {
+    return failed;
+  }
+
+  /* Traces that were read but had no iterations in them. */
+  public int getEmptyCount() {
+    return empty;
+  }
+
+  /* One row per app and component with the distribution of its average
+   * power across traces in mW.
+   */
+  public void write(TableWriter out) throws IOException {
+    List<String> names = new ArrayList<String>(apps.keySet());
+    Collections.sort(names);
+    for(String app : names) {
+      Map<String, Samples> comps = apps.get(app);
+      List<String> compNames = new ArrayList<String>(comps.keySet());
+      Collections.sort(compNames);
+      for(String comp : compNames) {
+        Samples samples = comps.get(comp);
+        samples.sort();
+        out.setString(0, app);
+        out.setString(1, comp);
+        out.setLong(2, samples.size);
+        out.setDouble(3, samples.mean());
+        out.setDouble(4, samples.percentile(50));
+        out.setDouble(5, samples.percentile(90));
+        out.setDouble(6, samples.percentile(99));
+        out.setDouble(7, samples.values[samples.size - 1]);
+        out.endRow();
+      }
+    }
+  }
+
+  private static class Samples {
+    public double[] values = new double[4];
+    public int size;
+    private double sum;
+
+    public void add(double x) {
+      if(size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = x;
+      sum += x;
+    }
+
+    public void addAll(Samples o) {
+      if(size + o.size > values.length) {
+        values = Arrays.copyOf(values, Math.max(size * 2, size + o.size));
+      }
+      System.arraycopy(o.values, 0, values, size, o.size);
+      size += o.size;
+      sum += o.sum;
+    }
+
+    public void sort() {
+      Arrays.sort(values, 0, size);
+    }
+
+    public double mean() {
+      return sum / size;
+    }
+
+    /* Nearest rank percentile; the samples must be sorted. */
+    public double percentile(int p) {
+      int rank = (int)Math.ceil(p / 100.0 * size);
+      return values[Math.max(0, rank - 1)];
+    }
+  }
+}
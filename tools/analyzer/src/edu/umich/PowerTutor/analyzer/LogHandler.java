@@ -0,0 +1,71 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.IOException;
+
+/* Receives the lines of a power log as they are parsed.  Handlers only need to
+ * override the callbacks they are interested in.  Strings passed to the
+ * callbacks other than event() are shared between calls so they may be
+ * compared by identity.
+ */
+public abstract class LogHandler {
+  /* The uid used for the global entry of a component. */
+  public static final int AID_ALL = -1;
+
+  /* Called for the first line of the log (and after every log rollover). */
+  public void time(long millis) throws IOException {}
+
+  public void model(String model) throws IOException {}
+
+  public void associate(int uid, String appId) throws IOException {}
+
+  public void begin(long iteration) throws IOException {}
+
+  public void totalPower(double power) throws IOException {}
+
+  /* The power, in mW, of one component for one uid in the current iteration.
+   * uid is AID_ALL for the component total.
+   */
+  public void componentPower(String component, int uid, double power)
+      throws IOException {}
+
+  /* Measured battery current in amps.  This is only written when it changes
+   * and appears before the begin line of the iteration it was measured in.
+   */
+  public void battCurrent(double current) throws IOException {}
+
+  public void meminfo(long total, long free, long buffers, long cached)
+      throws IOException {}
+
+  /* Any other line consisting of a key and a single number, e.g. "CPU-freq"
+   * or "signal".
+   */
+  public void value(String key, double value) throws IOException {}
+
+  /* Any remaining line.  rest is everything after the first space. */
+  public void event(String key, String rest) throws IOException {}
+
+  /* Called once the log has been fully read.  truncated is true if the log
+   * ended in the middle of a compressed block, usually because it was still
+   * being written.
+   */
+  public void end(boolean truncated) throws IOException {}
+}
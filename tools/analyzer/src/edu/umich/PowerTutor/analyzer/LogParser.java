@@ -0,0 +1,369 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/* Streams through a decoded power log and hands each line to a LogHandler.
+ * Lines are tokenized directly out of a byte buffer and keys are looked up in a
+ * small symbol table so that the common per-iteration lines are parsed without
+ * allocating anything.  Memory use is independent of the length of the log.
+ */
+public class LogParser {
+  private static final int BUFFER_SIZE = 1 << 16;
+  /* Lines longer than this are skipped rather than growing the buffer without
+   * bound on a corrupt log.
+   */
+  private static final int MAX_LINE = 1 << 20;
+
+  private static final String K_TIME = "time";
+  private static final String K_MODEL = "model";
+  private static final String K_ASSOCIATE = "associate";
+  private static final String K_BEGIN = "begin";
+  private static final String K_TOTAL_POWER = "total-power";
+  private static final String K_BATT_CURRENT = "batt_current";
+  private static final String K_MEMINFO = "meminfo";
+  private static final String K_SIGNAL = "signal";
+
+  private InputStream in;
+  private LogHandler handler;
+  private Symbols symbols;
+
+  private byte[] buf;
+  private int pos;
+  private int lim;
+  private int scan;
+  private int lineStart;
+  private int lineEnd;
+  private boolean skipping;
+
+  /* Cursor used by the field parsing helpers. */
+  private int cur;
+  private boolean numberOk;
+
+  private long lines;
+  private long skippedLines;
+
+  public LogParser(InputStream in, LogHandler handler) {
+    this.in = in;
+    this.handler = handler;
+    buf = new byte[BUFFER_SIZE];
+    symbols = new Symbols();
+    for(String key : new String[] {K_TIME, K_MODEL, K_ASSOCIATE, K_BEGIN,
+                                   K_TOTAL_POWER, K_BATT_CURRENT, K_MEMINFO,
+                                   K_SIGNAL}) {
+      symbols.add(key);
+    }
+  }
+
+  /* Parses the whole stream.  A stream that ends abruptly is not an error;
+   * everything up to the last complete line is delivered and the handler is
+   * told that the log was truncated.
+   */
+  public void parse() throws IOException {
+    boolean truncated = false;
+    try {
+      while(nextLine()) {
+        lines++;
+        handleLine(lineStart, lineEnd);
+      }
+    } catch(EOFException e) {
+      truncated = true;
+    }
+    handler.end(truncated);
+  }
+
+  public long getLineCount() {
+    return lines;
+  }
+
+  /* The number of lines dropped for being longer than MAX_LINE. */
+  public long getSkippedLineCount() {
+    return skippedLines;
+  }
+
+  private boolean nextLine() throws IOException {
+    while(true) {
+      for(; scan < lim; scan++) {
+        if(buf[scan] != '\n') continue;
+        if(skipping) {
+          skipping = false;
+          pos = scan + 1;
+          continue;
+        }
+        lineStart = pos;
+        lineEnd = scan;
+        pos = ++scan;
+        return true;
+      }
+      if(pos > 0) {
+        System.arraycopy(buf, pos, buf, 0, lim - pos);
+        lim -= pos;
+        scan -= pos;
+        pos = 0;
+      } else if(lim == buf.length && buf.length >= MAX_LINE) {
+        /* Throw away what we have of the line and everything up to the next
+         * newline.
+         */
+        if(!skipping) skippedLines++;
+        skipping = true;
+        lim = scan = 0;
+      } else if(lim == buf.length) {
+        byte[] nbuf = new byte[buf.length * 2];
+        System.arraycopy(buf, 0, nbuf, 0, lim);
+        buf = nbuf;
+      }
+      int n = in.read(buf, lim, buf.length - lim);
+      if(n == -1) {
+        if(pos == lim || skipping) return false;
+        /* Final line without a newline. */
+        lineStart = pos;
+        lineEnd = lim;
+        pos = scan = lim;
+        return true;
+      }
+      lim += n;
+    }
+  }
+
+  private void handleLine(int s, int e) throws IOException {
+    if(s < e && buf[e - 1] == '\r') e--;
+    if(s == e) return;
+    int sp = s;
+    while(sp < e && buf[sp] != ' ') sp++;
+    int rest = Math.min(sp + 1, e);
+
+    /* Per uid component lines look like "<component>-<uid> <power>".  Check
+     * for them before looking up the key so that every uid doesn't end up in
+     * the symbol table.
+     */
+    int dash = sp - 1;
+    while(dash > s && isDigit(buf[dash])) dash--;
+    if(dash > s && dash < sp - 1 && buf[dash] == '-') {
+      double power = parseOnlyNumber(rest, e);
+      if(numberOk) {
+        cur = dash + 1;
+        int uid = (int)parseLong(sp);
+        handler.componentPower(symbols.get(buf, s, dash - s), uid, power);
+        return;
+      }
+    }
+
+    String key = symbols.get(buf, s, sp - s);
+    if(key == K_BEGIN) {
+      cur = rest;
+      handler.begin(parseLong(e));
+    } else if(key == K_TOTAL_POWER) {
+      handler.totalPower(parseOnlyNumber(rest, e));
+    } else if(key == K_BATT_CURRENT) {
+      handler.battCurrent(parseOnlyNumber(rest, e));
+    } else if(key == K_TIME) {
+      cur = rest;
+      handler.time(parseLong(e));
+    } else if(key == K_MODEL) {
+      handler.model(string(rest, e));
+    } else if(key == K_ASSOCIATE) {
+      cur = rest;
+      int uid = (int)parseLong(e);
+      handler.associate(uid, string(Math.min(cur + 1, e), e));
+    } else if(key == K_MEMINFO) {
+      cur = rest;
+      long total = parseLong(e);
+      cur++;
+      long free = parseLong(e);
+      cur++;
+      long buffers = parseLong(e);
+      cur++;
+      long cached = parseLong(e);
+      handler.meminfo(total, free, buffers, cached);
+    } else {
+      double value = parseOnlyNumber(rest, e);
+      if(!numberOk) {
+        handler.event(key, string(rest, e));
+      } else if(key != K_SIGNAL && isComponentName(s, sp)) {
+        /* The global line of a component is just its name and power. */
+        handler.componentPower(key, LogHandler.AID_ALL, value);
+      } else {
+        handler.value(key, value);
+      }
+    }
+  }
+
+  private boolean isComponentName(int s, int e) {
+    for(int i = s; i < e; i++) {
+      byte b = buf[i];
+      if(!isDigit(b) && (b < 'a' || 'z' < b) && (b < 'A' || 'Z' < b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isDigit(byte b) {
+    return '0' <= b && b <= '9';
+  }
+
+  /* Parses a signed integer starting at cur and leaves cur just after it. */
+  private long parseLong(int e) {
+    boolean neg = cur < e && buf[cur] == '-';
+    if(neg) cur++;
+    long x = 0;
+    for(; cur < e && isDigit(buf[cur]); cur++) {
+      x = x * 10 + (buf[cur] - '0');
+    }
+    return neg ? -x : x;
+  }
+
+  /* Parses [s, e) as a single number setting numberOk to indicate whether it
+   * was one.  Booleans are reported as 0 and 1.
+   */
+  private double parseOnlyNumber(int s, int e) {
+    numberOk = false;
+    if(s >= e) return 0;
+    if(matches(s, e, "true")) {
+      numberOk = true;
+      return 1;
+    } else if(matches(s, e, "false")) {
+      numberOk = true;
+      return 0;
+    }
+
+    int i = s;
+    boolean neg = buf[i] == '-';
+    if(neg) i++;
+    /* With at most 15 digits both the digits and the power of ten are exact
+     * doubles so a single division gives the correctly rounded value.
+     */
+    long digitValue = 0;
+    long scale = 1;
+    int digits = 0;
+    for(; i < e && isDigit(buf[i]); i++, digits++) {
+      digitValue = digitValue * 10 + (buf[i] - '0');
+    }
+    if(i < e && buf[i] == '.') {
+      for(i++; i < e && isDigit(buf[i]) && digits <= 15; i++, digits++) {
+        digitValue = digitValue * 10 + (buf[i] - '0');
+        scale *= 10;
+      }
+    }
+    if(i == e && digits > 0 && digits <= 15) {
+      numberOk = true;
+      double x = digitValue / (double)scale;
+      return neg ? -x : x;
+    }
+
+    /* Exponents, NaN and the like are rare enough to go the slow way. */
+    for(int j = s; j < e; j++) {
+      if(buf[j] == ' ') return 0;
+    }
+    try {
+      double x = Double.parseDouble(string(s, e));
+      numberOk = true;
+      return x;
+    } catch(NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  private boolean matches(int s, int e, String str) {
+    if(e - s != str.length()) return false;
+    for(int i = 0; i < str.length(); i++) {
+      if(buf[s + i] != str.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private String string(int s, int e) {
+    try {
+      return new String(buf, s, e - s, "UTF-8");
+    } catch(UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /* Maps byte strings to a single shared String instance. */
+  private static class Symbols {
+    /* Stop adding symbols past this point so that a strange log can't use up
+     * all of our memory.
+     */
+    private static final int MAX_SYMBOLS = 1 << 14;
+
+    private byte[][] keys;
+    private String[] values;
+    private int size;
+
+    public Symbols() {
+      keys = new byte[MAX_SYMBOLS * 2][];
+      values = new String[MAX_SYMBOLS * 2];
+    }
+
+    public void add(String str) {
+      byte[] b = str.getBytes();
+      int slot = find(b, 0, b.length);
+      if(keys[slot] == null) {
+        keys[slot] = b;
+        values[slot] = str;
+        size++;
+      }
+    }
+
+    public String get(byte[] b, int off, int len) {
+      int slot = find(b, off, len);
+      if(keys[slot] != null) {
+        return values[slot];
+      }
+      String str;
+      try {
+        str = new String(b, off, len, "UTF-8");
+      } catch(UnsupportedEncodingException ex) {
+        throw new RuntimeException(ex);
+      }
+      if(size < MAX_SYMBOLS) {
+        byte[] key = new byte[len];
+        System.arraycopy(b, off, key, 0, len);
+        keys[slot] = key;
+        values[slot] = str;
+        size++;
+      }
+      return str;
+    }
+
+    private int find(byte[] b, int off, int len) {
+      int h = 0;
+      for(int i = 0; i < len; i++) {
+        h = h * 31 + b[off + i];
+      }
+      int mask = keys.length - 1;
+      for(int slot = (h * 0x9E3779B1) >>> 16 & mask; ;
+          slot = (slot + 1) & mask) {
+        byte[] key = keys[slot];
+        if(key == null) return slot;
+        if(key.length == len) {
+          int i = 0;
+          while(i < len && key[i] == b[off + i]) i++;
+          if(i == len) return slot;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.IOException;
+
+/* Passes every callback on to each of a list of handlers in order. */
+public class MultiHandler extends LogHandler {
+  private LogHandler[] handlers;
+
+  public MultiHandler(LogHandler... handlers) {
+    this.handlers = handlers;
+  }
+
+  public void time(long millis) throws IOException {
+    for(LogHandler h : handlers) h.time(millis);
+  }
+
+  public void model(String model) throws IOException {
+    for(LogHandler h : handlers) h.model(model);
+  }
+
+  public void associate(int uid, String appId) throws IOException {
+    for(LogHandler h : handlers) h.associate(uid, appId);
+  }
+
+  public void begin(long iteration) throws IOException {
+    for(LogHandler h : handlers) h.begin(iteration);
+  }
+
+  public void totalPower(double power) throws IOException {
+    for(LogHandler h : handlers) h.totalPower(power);
+  }
+
+  public void componentPower(String component, int uid, double power)
+      throws IOException {
+    for(LogHandler h : handlers) h.componentPower(component, uid, power);
+  }
+
+  public void battCurrent(double current) throws IOException {
+    for(LogHandler h : handlers) h.battCurrent(current);
+  }
+
+  public void meminfo(long total, long free, long buffers, long cached)
+      throws IOException {
+    for(LogHandler h : handlers) h.meminfo(total, free, buffers, cached);
+  }
+
+  public void value(String key, double value) throws IOException {
+    for(LogHandler h : handlers) h.value(key, value);
+  }
+
+  public void event(String key, String rest) throws IOException {
+    for(LogHandler h : handlers) h.event(key, rest);
+  }
+
+  public void end(boolean truncated) throws IOException {
+    for(LogHandler h : handlers) h.end(truncated);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.IOException;
+
+/* A sink for rows of a table with a fixed schema.  Values for the current row
+ * are set column by column and the row is finished with endRow().
+ */
+public abstract class TableWriter {
+  public static final int LONG = 0;
+  public static final int DOUBLE = 1;
+  public static final int STRING = 2;
+
+  protected String[] names;
+  protected int[] types;
+
+  public TableWriter(String[] names, int[] types) {
+    if(names.length != types.length) {
+      throw new IllegalArgumentException("Schema names and types differ");
+    }
+    this.names = names;
+    this.types = types;
+  }
+
+  public abstract void setLong(int column, long value);
+
+  public abstract void setDouble(int column, double value);
+
+  public abstract void setString(int column, String value);
+
+  public abstract void endRow() throws IOException;
+
+  public abstract void close() throws IOException;
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* Accumulates the energy used by each uid for each component over a trace.
+ * Memory use only depends on the number of uids and components seen.
+ */
+public class TraceSummary extends LogHandler {
+  /* PowerEstimator.ITERATION_INTERVAL */
+  public static final double ITERATION_SECONDS = 1.0;
+
+  private String model;
+  private long iterations;
+  private double totalEnergy;
+  private boolean truncated;
+
+  private Map<String, Integer> componentIndex;
+  private List<String> components;
+  private Map<Integer, double[]> uidEnergy;
+  private Map<Integer, String> appIds;
+
+  public TraceSummary() {
+    componentIndex = new HashMap<String, Integer>();
+    components = new ArrayList<String>();
+    uidEnergy = new HashMap<Integer, double[]>();
+    appIds = new HashMap<Integer, String>();
+  }
+
+  public void model(String model) {
+    this.model = model;
+  }
+
+  public void associate(int uid, String appId) {
+    appIds.put(uid, appId);
+  }
+
+  public void totalPower(double power) {
+    iterations++;
+    totalEnergy += power * ITERATION_SECONDS;
+  }
+
+  public void componentPower(String component, int uid, double power) {
+    Integer index = componentIndex.get(component);
+    if(index == null) {
+      index = components.size();
+      componentIndex.put(component, index);
+      components.add(component);
+    }
+    double[] energy = uidEnergy.get(uid);
+    if(energy == null || energy.length <= index) {
+      double[] nenergy = new double[Math.max(8, index + 1)];
+      if(energy != null) {
+        System.arraycopy(energy, 0, nenergy, 0, energy.length);
+      }
+      energy = nenergy;
+      uidEnergy.put(uid, energy);
+    }
+    energy[index] += power * ITERATION_SECONDS;
+  }
+
+  public void end(boolean truncated) {
+    this.truncated |= truncated;
+  }
+
+  public String getModel() {
+    return model;
+  }
+
+  public long getIterations() {
+    return iterations;
+  }
+
+  /* Total estimated energy in mJ. */
+  public double getTotalEnergy() {
+    return totalEnergy;
+  }
+
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public List<String> getComponents() {
+    return components;
+  }
+
+  /* Includes AID_ALL for the component totals. */
+  public Set<Integer> getUids() {
+    return uidEnergy.keySet();
+  }
+
+  /* Energy in mJ used by uid in the component with the given index. */
+  public double getEnergy(int uid, int component) {
+    double[] energy = uidEnergy.get(uid);
+    return energy == null || energy.length <= component ? 0 :
+           energy[component];
+  }
+
+  /* Returns null if the uid was never associated with an application. */
+  public String getAppId(int uid) {
+    return appIds.get(uid);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import edu.umich.PowerTutor.util.ModelValidator;
+
+import java.io.IOException;
+
+/* Feeds the estimated and measured power of each iteration of a log into a
+ * ModelValidator, the same way PowerEstimator does on the phone.  The
+ * measured power is |batt_current| * batt_voltage.  Logs written before the
+ * voltage was logged fall back on a nominal battery voltage.  Iterations
+ * while the phone was plugged in, according to the battery-change events, are
+ * left out.
+ */
+public class ValidationHandler extends LogHandler {
+  private static final String BATT_VOLTAGE = "batt_voltage";
+  private static final String BATTERY_CHANGE = "battery-change";
+
+  private ModelValidator validator;
+  private double defaultVoltage;
+
+  private long iteration;
+  private double estimated;
+  private int config;
+  private double current;
+  private double voltage;
+  private boolean plugged;
+
+  public ValidationHandler(ModelValidator validator, double defaultVoltage) {
+    this.validator = validator;
+    this.defaultVoltage = defaultVoltage;
+    reset();
+  }
+
+  private void reset() {
+    estimated = Double.NaN;
+    current = Double.NaN;
+    voltage = defaultVoltage;
+    plugged = false;
+  }
+
+  /* The battery lines for an iteration are written before its begin line so
+   * the previous iteration has to be finished off as soon as one shows up.
+   */
+  private void finishIteration() throws IOException {
+    if(!Double.isNaN(estimated) && !plugged && !Double.isNaN(current) &&
+       voltage > 0) {
+      validator.sample(iteration, config, estimated,
+                       current * voltage * 1000);
+    }
+    estimated = Double.NaN;
+  }
+
+  public void time(long millis) throws IOException {
+    finishIteration();
+    validator.finishWindow();
+    reset();
+  }
+
+  public void begin(long iteration) throws IOException {
+    finishIteration();
+    this.iteration = iteration;
+    config = 0;
+  }
+
+  public void totalPower(double power) {
+    estimated = power;
+  }
+
+  public void componentPower(String component, int uid, double power) {
+    if(uid == AID_ALL && power > 0) {
+      config |= validator.componentBit(component);
+    }
+  }
+
+  public void battCurrent(double current) throws IOException {
+    finishIteration();
+    /* -1 is what BatteryStats gives when the read failed. */
+    this.current = current == -1 ? Double.NaN : Math.abs(current);
+  }
+
+  public void value(String key, double value) throws IOException {
+    if(key.equals(BATT_VOLTAGE)) {
+      finishIteration();
+      voltage = value;
+    }
+  }
+
+  public void event(String key, String rest) throws IOException {
+    if(key.equals(BATTERY_CHANGE)) {
+      finishIteration();
+      /* "battery-change <plugged> <level>/<scale> ..." */
+      int sp = rest.indexOf(' ');
+      plugged = !"0".equals(sp == -1 ? rest : rest.substring(0, sp));
+      if(plugged) {
+        validator.finishWindow();
+      }
+    }
+  }
+
+  public void end(boolean truncated) throws IOException {
+    finishIteration();
+    validator.finishWindow();
+  }
+}
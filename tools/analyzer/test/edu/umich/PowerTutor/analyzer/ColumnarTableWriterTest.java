@@ -0,0 +1,150 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Writes a table spanning several row groups and reads it back following the
+ * layout described in ColumnarTableWriter.  Run with "make test".
+ */
+public class ColumnarTableWriterTest {
+  private static final String[] NAMES = {"iteration", "app", "power"};
+  private static final int[] TYPES = {
+    TableWriter.LONG, TableWriter.STRING, TableWriter.DOUBLE
+  };
+  private static final String[] APPS = {"", "com.a", "com.b", "\u00e9t\u00e9"};
+  private static final int ROWS = (1 << 16) * 2 + 123;
+
+  public static void main(String[] args) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ColumnarTableWriter writer = new ColumnarTableWriter(bout, NAMES, TYPES);
+    for(int i = 0; i < ROWS; i++) {
+      writer.setLong(0, iteration(i));
+      writer.setString(1, i % 7 == 0 ? null : APPS[i % APPS.length]);
+      writer.setDouble(2, power(i));
+      writer.endRow();
+    }
+    writer.close();
+
+    ByteBuffer buf = ByteBuffer.wrap(bout.toByteArray());
+    byte[] magic = new byte[4];
+    buf.get(magic);
+    check("head magic", "PTC1", new String(magic, "US-ASCII"));
+    buf.position(buf.limit() - 4);
+    buf.get(magic);
+    check("tail magic", "PTC1", new String(magic, "US-ASCII"));
+    int footerLen = buf.getInt(buf.limit() - 8);
+
+    ByteBuffer footer = buf.duplicate();
+    footer.position(buf.limit() - 8 - footerLen);
+    check("columns", (long)NAMES.length, varint(footer));
+    for(int i = 0; i < NAMES.length; i++) {
+      check("name", NAMES[i], string(footer));
+      check("type", TYPES[i], (int)footer.get());
+    }
+    long groups = varint(footer);
+    check("row groups", 3L, groups);
+
+    int row = 0;
+    for(int g = 0; g < groups; g++) {
+      int rows = (int)varint(footer);
+      for(int c = 0; c < NAMES.length; c++) {
+        ByteBuffer chunk = buf.duplicate();
+        chunk.position((int)varint(footer));
+        int end = chunk.position() + (int)varint(footer);
+        readChunk(chunk, c, row, rows);
+        check("chunk end", end, chunk.position());
+      }
+      row += rows;
+    }
+    check("rows", ROWS, row);
+    check("footer end", buf.limit() - 8, footer.position());
+
+    System.out.println("ColumnarTableWriterTest passed");
+  }
+
+  private static void readChunk(ByteBuffer chunk, int column, int row,
+                                int rows) throws IOException {
+    switch(TYPES[column]) {
+      case TableWriter.LONG: {
+        long last = 0;
+        for(int j = 0; j < rows; j++) {
+          long z = varint(chunk);
+          last += z >>> 1 ^ -(z & 1);
+          check("long", iteration(row + j), last);
+        }
+        break;
+      }
+      case TableWriter.DOUBLE:
+        for(int j = 0; j < rows; j++) {
+          check("double", power(row + j), chunk.getDouble());
+        }
+        break;
+      case TableWriter.STRING: {
+        String[] dict = new String[(int)varint(chunk)];
+        for(int j = 0; j < dict.length; j++) {
+          dict[j] = string(chunk);
+        }
+        check("dictionary", true,
+              dict.length <= APPS.length &&
+              Arrays.asList(APPS).containsAll(Arrays.asList(dict)));
+        for(int j = 0; j < rows; j++) {
+          int i = row + j;
+          check("string", i % 7 == 0 ? "" : APPS[i % APPS.length],
+                dict[(int)varint(chunk)]);
+        }
+        break;
+      }
+    }
+  }
+
+  private static long iteration(int i) {
+    return i % 5 == 0 ? -i : (long)i * 1000003;
+  }
+
+  private static double power(int i) {
+    return i % 11 == 0 ? Double.NaN : i / 3.0;
+  }
+
+  private static long varint(ByteBuffer b) {
+    long x = 0;
+    for(int shift = 0; ; shift += 7) {
+      byte v = b.get();
+      x |= (long)(v & 0x7F) << shift;
+      if(v >= 0) return x;
+    }
+  }
+
+  private static String string(ByteBuffer b) throws IOException {
+    byte[] s = new byte[(int)varint(b)];
+    b.get(s);
+    return new String(s, "UTF-8");
+  }
+
+  private static void check(String what, Object expected, Object actual) {
+    if(!expected.equals(actual)) {
+      throw new AssertionError(what + ": expected " + expected + " got " +
+                               actual);
+    }
+  }
+}
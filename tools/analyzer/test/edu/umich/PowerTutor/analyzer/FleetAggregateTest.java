@@ -0,0 +1,80 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Checks that an app seen under two uids in one trace counts as a single
+ * sample holding the energy of both.  Run with "make test".
+ */
+public class FleetAggregateTest {
+  public static void main(String[] args) throws IOException {
+    TraceSummary summary = new TraceSummary();
+    summary.associate(10001, "com.a@1");
+    summary.associate(10002, "com.a@1");
+    summary.associate(10003, "com.b@1");
+    for(int i = 0; i < 4; i++) {
+      summary.totalPower(700);
+      summary.componentPower("CPU", 10001, 100);
+      summary.componentPower("CPU", 10002, 300);
+      summary.componentPower("CPU", 10003, 50);
+      summary.componentPower("Wifi", 10002, 200);
+    }
+    summary.end(false);
+
+    FleetAggregate agg = FleetAggregate.fromTrace(summary);
+    final Map<String, Double> means = new HashMap<String, Double>();
+    final Map<String, Long> counts = new HashMap<String, Long>();
+    agg.write(new TableWriter(FleetAggregate.COLUMNS, FleetAggregate.TYPES) {
+      private String app;
+      private String comp;
+      public void setLong(int column, long value) {
+        if(column == 2) counts.put(app + "/" + comp, value);
+      }
+      public void setDouble(int column, double value) {
+        if(column == 3) means.put(app + "/" + comp, value);
+      }
+      public void setString(int column, String value) {
+        if(column == 0) app = value;
+        if(column == 1) comp = value;
+      }
+      public void endRow() {}
+      public void close() {}
+    });
+
+    check("com.a CPU samples", 1L, counts.get("com.a@1/CPU"));
+    check("com.a CPU", 400.0, means.get("com.a@1/CPU"));
+    check("com.a Wifi", 200.0, means.get("com.a@1/Wifi"));
+    check("com.a total samples", 1L, counts.get("com.a@1/total"));
+    check("com.a total", 600.0, means.get("com.a@1/total"));
+    check("com.b CPU", 50.0, means.get("com.b@1/CPU"));
+    check("com.b total", 50.0, means.get("com.b@1/total"));
+    System.out.println("FleetAggregateTest passed");
+  }
+
+  private static void check(String what, Object expected, Object actual) {
+    if(!expected.equals(actual)) {
+      throw new AssertionError(what + ": expected " + expected + " got " +
+                               actual);
+    }
+  }
+}
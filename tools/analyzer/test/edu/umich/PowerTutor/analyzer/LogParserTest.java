@@ -0,0 +1,149 @@
+/*
+Copyright (C) 2011 The University of Michigan
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+Please send inquiries to powertutor@umich.edu
+*/
+
+package edu.umich.PowerTutor.analyzer;
+
+import edu.umich.PowerTutor.util.LogCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Writes logs through each codec and checks that the parser gives back every
+ * line.  Run with "make test".
+ */
+public class LogParserTest {
+  private static class Recorder extends LogHandler {
+    public List<String> seen = new ArrayList<String>();
+    public boolean truncated;
+
+    public void time(long millis) { seen.add("time " + millis); }
+    public void model(String model) { seen.add("model " + model); }
+    public void associate(int uid, String appId) {
+      seen.add("associate " + uid + " " + appId);
+    }
+    public void begin(long iteration) { seen.add("begin " + iteration); }
+    public void totalPower(double power) { seen.add("total " + power); }
+    public void componentPower(String component, int uid, double power) {
+      seen.add("power " + component + " " + uid + " " + power);
+    }
+    public void battCurrent(double current) { seen.add("batt " + current); }
+    public void meminfo(long total, long free, long buffers, long cached) {
+      seen.add("mem " + total + " " + free + " " + buffers + " " + cached);
+    }
+    public void value(String key, double value) {
+      seen.add("value " + key + " " + value);
+    }
+    public void event(String key, String rest) {
+      seen.add("event " + key + " " + rest);
+    }
+    public void end(boolean truncated) { this.truncated = truncated; }
+  }
+
+  public static void main(String[] args) throws IOException {
+    StringBuilder log = new StringBuilder();
+    List<String> expected = new ArrayList<String>();
+    log.append("time 1300000000000\nmodel passion\nassociate 10034 com.x\n");
+    expected.add("time 1300000000000");
+    expected.add("model passion");
+    expected.add("associate 10034 com.x");
+    for(int i = 0; i < 20000; i++) {
+      double power = i * 0.25 + 1e-7;
+      log.append("begin ").append(i)
+         .append("\ntotal-power ").append(power)
+         .append("\nCPU ").append(power)
+         .append("\nCPU-10034 ").append(i)
+         .append("\nGPS ").append(i / 3.0)
+         .append("\nbatt_current -0.125\r\n")
+         .append("meminfo 1 2 3 4\nCPU-freq 245000\nOLED-screen-on true\n")
+         .append("plug unplugged\n");
+      expected.add("begin " + i);
+      expected.add("total " + power);
+      expected.add("power CPU -1 " + power);
+      expected.add("power CPU 10034 " + (double)i);
+      expected.add("power GPS -1 " + i / 3.0);
+      expected.add("batt -0.125");
+      expected.add("mem 1 2 3 4");
+      expected.add("value CPU-freq 245000.0");
+      expected.add("value OLED-screen-on 1.0");
+      expected.add("event plug unplugged");
+    }
+    log.append("no-newline 1");
+    expected.add("value no-newline 1.0");
+    byte[] raw = log.toString().getBytes("UTF-8");
+
+    for(String name : new String[] {LogCodec.DEFLATE, LogCodec.LZF,
+                                    LogCodec.NONE}) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      OutputStream out = LogCodec.forName(name).wrap(bout);
+      for(int off = 0; off < raw.length; off += 1000) {
+        out.write(raw, off, Math.min(1000, raw.length - off));
+        out.flush();
+      }
+      out.close();
+
+      Recorder rec = parse(LogCodec.open(
+          new ByteArrayInputStream(bout.toByteArray())));
+      checkLines(name, expected, rec.seen);
+      check(name + " truncated", false, rec.truncated);
+    }
+
+    /* An overlong line is dropped without taking the lines around it. */
+    StringBuilder longLog = new StringBuilder("begin 1\n");
+    for(int i = 0; i < (3 << 20) / 8; i++) longLog.append("xxxxxxxx");
+    longLog.append(" 1\nbegin 2\n");
+    InputStream in = new ByteArrayInputStream(
+        longLog.toString().getBytes("UTF-8"));
+    Recorder rec = new Recorder();
+    LogParser parser = new LogParser(in, rec);
+    parser.parse();
+    List<String> longExpected = new ArrayList<String>();
+    longExpected.add("begin 1");
+    longExpected.add("begin 2");
+    checkLines("long lines", longExpected, rec.seen);
+    check("skipped", 1L, parser.getSkippedLineCount());
+
+    System.out.println("LogParserTest passed");
+  }
+
+  private static Recorder parse(InputStream in) throws IOException {
+    Recorder rec = new Recorder();
+    new LogParser(in, rec).parse();
+    return rec;
+  }
+
+  private static void checkLines(String what, List<String> expected,
+                                 List<String> actual) {
+    for(int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+      check(what + " line " + i, expected.get(i), actual.get(i));
+    }
+    check(what + " line count", expected.size(), actual.size());
+  }
+
+  private static void check(String what, Object expected, Object actual) {
+    if(!expected.equals(actual)) {
+      throw new AssertionError(what + ": expected " + expected + " got " +
+                               actual);
+    }
+  }
+}